@@ -0,0 +1,46 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How long each audio codec takes to encode and decode a single frame, which clients do for
+ * every frame they send and receive and the mixer does for every frame it mixes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class AudioCodecBenchmark {
+
+    @Param({"PCM", "MU_LAW", "IMA_ADPCM"})
+    public String codecName;
+
+    private AudioCodec codec;
+    private short[] samples;
+    private short[] decoded;
+    private byte[] encoded;
+    private int encodedLength;
+
+    @Setup
+    public void setUp() {
+        codec = Samples.codec(codecName);
+        samples = Samples.voice(1);
+        decoded = new short[samples.length];
+        encoded = new byte[codec.getMaxEncodedSize(samples.length)];
+        encodedLength = codec.encode(samples, samples.length, encoded, 0);
+    }
+
+    @Benchmark
+    public int encode() {
+        return codec.encode(samples, samples.length, encoded, 0);
+    }
+
+    @Benchmark
+    public int decode() {
+        return codec.decode(encoded, 0, encodedLength, decoded);
+    }
+}
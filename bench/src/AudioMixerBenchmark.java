@@ -0,0 +1,80 @@
+package chat;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How long the AudioMixer takes over one 20ms period of a room: decoding a frame from each
+ * speaker, mixing them, and encoding and sending the mix to everyone listening and a mix without
+ * their own voice to each speaker. The mixer has 20ms to do this for every room at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class AudioMixerBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int speakers;
+
+    @Param({"10", "1000"})
+    public int listeners;
+
+    @Param({"PCM", "MU_LAW", "IMA_ADPCM"})
+    public String codecName;
+
+    private AudioMixer mixer;
+    private Room room;
+    private AudioCodec codec;
+    private int[] speakerIds;
+    private byte[][] frames;
+    private int sequence;
+
+    @Setup
+    public void setUp() {
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        Server server = new Server(0);
+        room = server.getRoom(server.GLOBAL_ROOM_ID);
+
+        speakerIds = new int[speakers];
+        for( int i = 0; i < speakers + listeners; i++ ) {
+            InMemoryConnection client = new InMemoryConnection(server.nextUserId());
+            server.addConnection(client);
+            client.speak(MessageCodec.Format.BINARY);
+            server.joinGlobalRoom(client.userId);
+            if( i < speakers ) {
+                speakerIds[i] = client.userId;
+            }
+        }
+
+        // Set by hand, since the server only chooses a codec once audio has been sent to it
+        codec = Samples.codec(codecName);
+        room.setAudioCodec(codec);
+
+        frames = new byte[speakers][];
+        for( int i = 0; i < speakers; i++ ) {
+            short[] samples = Samples.voice(i);
+            byte[] encoded = new byte[codec.getMaxEncodedSize(samples.length)];
+            frames[i] = Arrays.copyOf(encoded,
+                    codec.encode(samples, samples.length, encoded, 0));
+        }
+
+        // The mixer is run by hand rather than on its own thread
+        mixer = new AudioMixer(server);
+    }
+
+    @Benchmark
+    public void mixPeriod() {
+        long now = System.currentTimeMillis();
+        for( int i = 0; i < speakers; i++ ) {
+            mixer.offer(room, speakerIds[i], new AudioStream.Frame(i, sequence, now, false,
+                        codec.getId(), frames[i]));
+        }
+        sequence++;
+        mixer.mixRooms();
+    }
+}
@@ -0,0 +1,50 @@
+package chat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How long it takes to encode a message into a frame and decode it again, for every type of
+ * message in every format, at the sizes chat lines, pasted text and file chunks come in. The
+ * compressed format covers the cost of compression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class CodecBenchmark {
+
+    // Every type and every format, unless narrowed with -p
+    @Param
+    public MessageType type;
+
+    @Param
+    public MessageCodec.Format format;
+
+    @Param({"64", "4096", "65536"})
+    public int size;
+
+    private Message<?> message;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        message = Samples.message(type, size);
+        frame = MessageCodec.encodeFrame(message, format);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return MessageCodec.encodeFrame(message, format);
+    }
+
+    @Benchmark
+    public Message<?> decode() throws IOException, ClassNotFoundException {
+        return MessageCodec.decode(frame, MessageCodec.HEADER_SIZE,
+                frame.length - MessageCodec.HEADER_SIZE);
+    }
+}
@@ -0,0 +1,26 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How long MessageType.getTypeFromCommand takes to look up what the client types after a slash,
+ * for the first command, the last, and one that does not exist.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class CommandBenchmark {
+
+    @Param({"createroom", "listrooms", "nosuchcommand"})
+    public String command;
+
+    @Benchmark
+    public MessageType getTypeFromCommand() {
+        return MessageType.getTypeFromCommand(command);
+    }
+}
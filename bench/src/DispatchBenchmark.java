@@ -0,0 +1,68 @@
+package chat;
+
+import java.io.Serializable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How long Server.notifyHandlers takes to pass a command to its handlers under each execution
+ * policy. Handlers that are not run inline are handed to their threads, so for them this is the
+ * cost of queueing, and of turning the command away once their queues are full.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class DispatchBenchmark {
+
+    @Param({"INLINE", "PER_TYPE", "BY_SENDER"})
+    public String policy;
+
+    @Param({"1", "4"})
+    public int handlers;
+
+    private Server server;
+    private Message<String> message;
+    private final LongAdder handled = new LongAdder();
+
+    @Setup
+    public void setUp() {
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        server = new Server(0);
+
+        ExecutionPolicy executionPolicy;
+        switch( policy ) {
+            case "PER_TYPE":
+                executionPolicy = ExecutionPolicy.PER_TYPE;
+                break;
+            case "BY_SENDER":
+                executionPolicy = ExecutionPolicy.BY_SENDER;
+                break;
+            default:
+                executionPolicy = ExecutionPolicy.INLINE;
+                break;
+        }
+
+        // The server has no handlers of its own for chat, which is sent to rooms instead
+        for( int i = 0; i < handlers; i++ ) {
+            server.registerHandler(MessageType.CHAT, this::handle, executionPolicy);
+        }
+
+        message = new Message<>("somebody", Message.SERVER_ID, "listrooms", MessageType.CHAT);
+        message.setSenderId(1042);
+    }
+
+    @Benchmark
+    public void notifyHandlers() {
+        server.notifyHandlers(message);
+    }
+
+    private <E extends Serializable> void handle(Message<E> received) {
+        handled.increment();
+    }
+}
@@ -0,0 +1,61 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How long Server.sendMessageToRoom takes to send a chat message to every member of a room, from
+ * a room of one up to a room of ten thousand. Members are in-memory connections, so this is the
+ * server's share of the work: giving the message an id, encoding it once per format, keeping it
+ * in the scrollback and queueing it for each member.
+ *
+ * Members are either all sent binary frames, which is the common case and shares one frame
+ * between everyone, or split evenly between every format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class FanOutBenchmark {
+
+    private static final MessageCodec.Format[] FORMATS = MessageCodec.Format.values();
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int members;
+
+    @Param({"BINARY", "MIXED"})
+    public String formats;
+
+    private Server server;
+    private Room room;
+    private Message<String> message;
+
+    @Setup
+    public void setUp() {
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        server = new Server(0);
+        server.setCompression(true);
+        room = server.getRoom(server.GLOBAL_ROOM_ID);
+
+        for( int i = 0; i < members; i++ ) {
+            InMemoryConnection client = new InMemoryConnection(server.nextUserId());
+            server.addConnection(client);
+            client.speak(formats.equals("MIXED") ? FORMATS[i % FORMATS.length]
+                    : MessageCodec.Format.BINARY);
+            server.joinGlobalRoom(client.userId);
+        }
+
+        message = new Message<>("somebody", room.getId(), Samples.text(64), MessageType.CHAT);
+        message.setSenderId(0);
+    }
+
+    @Benchmark
+    public void sendMessageToRoom() {
+        // Every message sent to a room is given its own id
+        message.setId(0);
+        server.sendMessageToRoom(message, room);
+    }
+}
@@ -0,0 +1,32 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How many message ids IdGenerator hands out a second, to one thread and to eight threads
+ * sharing a generator as the threads reading clients do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class IdGeneratorBenchmark {
+
+    private final IdGenerator ids = new IdGenerator(3);
+
+    @Benchmark
+    @Threads(1)
+    public long next() {
+        return ids.next();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long nextShared() {
+        return ids.next();
+    }
+}
@@ -0,0 +1,55 @@
+package chat;
+
+/**
+ * A client that is not connected to anything. Frames queued for it are taken off its queue and
+ * counted straight away, standing in for the engine's writer, so benchmarks measure what the
+ * server does to send a message rather than what the network does.
+ */
+final class InMemoryConnection extends ClientConnection {
+
+    private long bytesWritten;
+
+    InMemoryConnection(int userId) {
+        super(userId, 1024, OutboundQueue.SlowConsumerPolicy.DROP_BULK_FIRST);
+        this.clientName = "user" + userId;
+    }
+
+    /**
+     * Makes the server send this client messages in a format, as if the client had sent a
+     * message in it. The server must allow compression for the compressed format to be used.
+     */
+    void speak(MessageCodec.Format format) {
+        byte version;
+        switch( format ) {
+            case BINARY:
+                version = MessageCodec.BINARY_VERSION;
+                break;
+            case COMPRESSED:
+                version = MessageCodec.COMPRESSED_VERSION;
+                break;
+            default:
+                return;
+        }
+        frameReceived(new byte[] { version }, 0);
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    protected void framesQueued() {
+        OutboundQueue.Frame frame;
+        while( (frame = outbound.poll()) != null ) {
+            bytesWritten += frame.bytes.length;
+            frame.done();
+        }
+    }
+
+    protected void slowConsumer() {
+        // Frames never wait, so the queue never fills
+    }
+
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,63 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * How the members of a room hold up as the room grows. Joining and leaving copy the members, so
+ * they get slower with size, while checking for a member and walking the members, which happen
+ * on every message, should stay cheap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class RoomBenchmark {
+
+    // What the members can decode, which the room counts as they join and leave
+    private static final int CODECS = AudioCodecs.supportedMask();
+
+    @Param({"10", "1000", "10000"})
+    public int members;
+
+    private Room room;
+    private int joining;
+    private int member;
+
+    @Setup
+    public void setUp() {
+        room = new Room(12, "benchmark", new Scrollback(50, 64 * 1024));
+
+        // Spread out, like the ids of members who joined at different times
+        for( int i = 0; i < members; i++ ) {
+            room.addUser(i * 2, CODECS);
+        }
+
+        // A member from the middle of the room, and someone next to them who is not a member
+        member = members / 2 * 2;
+        joining = member + 1;
+    }
+
+    @Benchmark
+    public void joinAndLeave() {
+        room.addUser(joining, CODECS);
+        room.removeUser(joining, CODECS);
+    }
+
+    @Benchmark
+    public boolean hasUser() {
+        return room.hasUser(member);
+    }
+
+    @Benchmark
+    public long iterate() {
+        long total = 0;
+        for( int userId : room.getUsers() ) {
+            total += userId;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,107 @@
+package chat;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Builds the messages and audio the benchmarks work with. Everything is made from a fixed seed,
+ * so every run measures the same bytes.
+ */
+final class Samples {
+
+    private static final String WORDS = "so I think we should really talk about what happened "
+        + "in the meeting today before anyone else hears about it from somebody else ";
+
+    private Samples() { }
+
+    /**
+     * @return Chat-like text of the given length in UTF-8 bytes
+     */
+    static String text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        while( text.length() < size ) {
+            text.append(WORDS, 0, Math.min(WORDS.length(), size - text.length()));
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Random bytes, which like most files that are shared do not compress
+     */
+    static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return A frame of samples that sounds more like a voice than silence or noise does
+     */
+    static short[] voice(int seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[AudioStream.SAMPLES_PER_FRAME];
+        for( int i = 0; i < samples.length; i++ ) {
+            double t = (double) i / AudioStream.SAMPLE_RATE;
+            double tone = Math.sin(2 * Math.PI * (180 + seed * 20) * t) * 6000
+                + Math.sin(2 * Math.PI * 720 * t) * 2000;
+            samples[i] = (short) (tone + random.nextGaussian() * 300);
+        }
+        return samples;
+    }
+
+    /**
+     * @param name The name of one of the codecs in AudioCodecs
+     */
+    static AudioCodec codec(String name) {
+        switch( name ) {
+            case "PCM":
+                return AudioCodecs.PCM;
+            case "MU_LAW":
+                return AudioCodecs.MU_LAW;
+            case "IMA_ADPCM":
+                return AudioCodecs.IMA_ADPCM;
+            default:
+                throw new IllegalArgumentException("No codec named " + name);
+        }
+    }
+
+    /**
+     * Builds a message of a type with the contents the client or server would send it with. The
+     * size applies to contents that carry text or data, and is ignored for the rest.
+     */
+    static Message<?> message(MessageType type, int size) {
+        Message<?> message = new Message<>("somebody", 12, contents(type, size), type);
+        message.setSenderId(1042);
+        message.setId(new IdGenerator(3).next());
+        return message;
+    }
+
+    private static Serializable contents(MessageType type, int size) {
+        switch( type ) {
+            case CONNECTION_SUCCESS:
+            case LOGIN_SUCCESS:
+            case LEAVE_ROOM_SUCCESS:
+            case AUDIO_CODEC:
+            case AUDIO_CODECS:
+                return 1042;
+            case FILE:
+                return new FileTransfer.Header(7, "meeting-notes.txt", 1L << 20);
+            case FILE_CHUNK:
+                return new FileTransfer.Chunk(7, 1L << 20, Message.SERVER_ID, bytes(size));
+            case FILE_END:
+                return new FileTransfer.End(7, 1L << 20, 0x1234abcdL);
+            case FILE_CREDIT:
+            case FILE_RESUME:
+                return new FileTransfer.Control(7, 1042, 1L << 20);
+            case AUDIO:
+                return new AudioStream.Frame(3, 120, 1767225600000L, false, bytes(size));
+            case SESSION:
+                return "0123456789abcdef0123456789abcdef";
+            case RESUME:
+                return new SessionResume("0123456789abcdef0123456789abcdef",
+                        new int[] { 0, 12, 40 }, new long[] { 1L << 40, 1L << 41, 0 });
+            default:
+                return text(size);
+        }
+    }
+}
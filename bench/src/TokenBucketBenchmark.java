@@ -0,0 +1,55 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * What checking a rate limit adds to every message read from a client. Each client has buckets
+ * of its own, which only its reader uses, while a room's buckets are shared by everyone sending
+ * to it. Buckets are checked with limits that let everything through and limits that refuse
+ * almost everything, since a refused check does not change the bucket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+public class TokenBucketBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Limits {
+        @Param({"UNLIMITED", "FLOODED"})
+        public String load;
+
+        TokenBucket.Limit limit;
+
+        @Setup
+        public void setUp() {
+            limit = load.equals("FLOODED") ? new TokenBucket.Limit(1, 1)
+                : new TokenBucket.Limit(1e12, 1e12);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientBucket {
+        final TokenBucket bucket = new TokenBucket();
+    }
+
+    @State(Scope.Benchmark)
+    public static class RoomBucket {
+        final TokenBucket bucket = new TokenBucket();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean client(Limits limits, ClientBucket client) {
+        return client.bucket.tryTake(limits.limit, 1, System.nanoTime());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean room(Limits limits, RoomBucket room) {
+        return room.bucket.tryTake(limits.limit, 1, System.nanoTime());
+    }
+}
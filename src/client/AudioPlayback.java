@@ -0,0 +1,268 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+import java.util.Arrays;
+
+/**
+ * Plays every incoming audio stream through a single output line. The line and the thread that
+ * writes to it are created once and kept for the life of the client, and every buffer is
+ * allocated up front, so a new stream costs nothing more than claiming a free slot.
+ *
+ * Each stream has its own jitter buffer. Once per frame the playback thread takes the next frame
+ * from every stream that is playing, adds them together, and writes the mix to the line. The line
+ * is opened with a buffer of only a few frames, so writing to it blocks until there is room and
+ * that is what paces playback. The delay added on the receiving side is the jitter buffer's
+ * target plus the line's buffer, which together with a 20ms capture frame keeps mouth to ear
+ * latency on a LAN to around 150ms.
+ */
+public class AudioPlayback implements Runnable {
+
+    /**
+     * The format of all audio sent between clients
+     */
+    public static final AudioFormat FORMAT = new AudioFormat(AudioStream.SAMPLE_RATE, 16, 1,
+            true, true);
+
+    // How many streams can be played at once; frames for any more are dropped
+    private static final int MAX_STREAMS = 8;
+
+    // How many frames to hold back to ride out jitter before starting to play
+    private static final int TARGET_DELAY_FRAMES = 3;
+
+    // How many frames the output line may hold
+    private static final int LINE_BUFFER_FRAMES = 3;
+
+    // How long to wait for a stream that stops without its last frame
+    private static final long IDLE_TIMEOUT_MILLIS = 1000;
+
+    private final Stream[] streams;
+
+    // The number of streams in use, guarded by the streams array
+    private int activeStreams;
+
+    // Only used by the playback thread
+    private final int[] total;
+    private final short[] mixed;
+    private final byte[] pcm;
+    private SourceDataLine speakers;
+
+    public AudioPlayback() {
+        this.streams = new Stream[MAX_STREAMS];
+        for( int i = 0; i < streams.length; i++ ) {
+            streams[i] = new Stream();
+        }
+
+        this.total = new int[AudioStream.SAMPLES_PER_FRAME];
+        this.mixed = new short[AudioStream.SAMPLES_PER_FRAME];
+        this.pcm = new byte[AudioStream.FRAME_SIZE];
+    }
+
+    /**
+     * Starts the playback thread, which sleeps until there is audio to play.
+     */
+    public void start() {
+        Thread playback = new Thread(this, "audio-playback");
+        playback.setDaemon(true);
+        playback.start();
+    }
+
+    /**
+     * Adds a frame that has arrived for a stream.
+     *
+     * @param senderId The id of the user that sent the stream
+     * @param frame The frame of audio
+     * @return true if the frame started a new stream
+     */
+    public boolean offer(int senderId, AudioStream.Frame frame) {
+        long key = ((long) senderId << 32) | (frame.streamId & 0xFFFFFFFFL);
+
+        synchronized( streams ) {
+            Stream free = null;
+            for( Stream stream : streams ) {
+                if( stream.active && stream.key == key ) {
+                    stream.jitterBuffer.offer(frame);
+                    return false;
+                } else if( !stream.active && free == null ) {
+                    free = stream;
+                }
+            }
+
+            // A stream whose first frame is its last has nothing to play
+            if( free == null || frame.last ) {
+                return false;
+            }
+
+            free.claim(key);
+            free.jitterBuffer.offer(frame);
+            activeStreams++;
+            streams.notifyAll();
+            return true;
+        }
+    }
+
+    public void run() {
+        try {
+            while( true ) {
+                synchronized( streams ) {
+                    while( activeStreams == 0 ) {
+                        streams.wait();
+                    }
+                }
+
+                if( !openLine() ) {
+                    // Without a line the audio can only be thrown away
+                    discardAll();
+                    continue;
+                }
+
+                if( mixFrame() ) {
+                    speakers.write(pcm, 0, pcm.length);
+                } else {
+                    // Nothing is ready to play yet
+                    Thread.sleep(AudioStream.FRAME_MILLIS / 4);
+                }
+            }
+        } catch( InterruptedException ie ) {
+            // Stop playing
+        } finally {
+            if( speakers != null ) {
+                speakers.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the output line the first time it is needed. After that it stays open, and simply
+     * runs dry while there is nothing to play.
+     *
+     * @return Whether the line is open
+     */
+    private boolean openLine() {
+        if( speakers != null ) {
+            return true;
+        }
+
+        try {
+            DataLine.Info info = new DataLine.Info(SourceDataLine.class, FORMAT);
+            SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+            line.open(FORMAT, AudioStream.FRAME_SIZE * LINE_BUFFER_FRAMES);
+            line.start();
+            speakers = line;
+            return true;
+        } catch( LineUnavailableException | IllegalArgumentException e ) {
+            System.err.println("There was an error getting the audio output line!");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Mixes the next frame of every stream that is playing into the PCM buffer, and frees the
+     * slots of streams that have finished.
+     *
+     * @return Whether any stream has started playing
+     */
+    private boolean mixFrame() {
+        boolean playing = false;
+        long now = System.currentTimeMillis();
+
+        synchronized( streams ) {
+            Arrays.fill(total, 0);
+
+            for( Stream stream : streams ) {
+                if( !stream.active ) {
+                    continue;
+                }
+
+                if( stream.jitterBuffer.isFinished()
+                        || now - stream.jitterBuffer.getLastArrival() > IDLE_TIMEOUT_MILLIS ) {
+                    stream.active = false;
+                    activeStreams--;
+                    continue;
+                }
+
+                AudioStream.Frame frame = stream.jitterBuffer.poll();
+                if( !stream.jitterBuffer.isStarted() ) {
+                    continue;
+                }
+
+                playing = true;
+                int length = stream.next(frame);
+                for( int i = 0; i < length; i++ ) {
+                    total[i] += stream.samples[i];
+                }
+            }
+        }
+
+        for( int i = 0; i < mixed.length; i++ ) {
+            mixed[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, total[i]));
+        }
+        AudioStream.toBytes(mixed, mixed.length, pcm, 0);
+
+        return playing;
+    }
+
+    private void discardAll() {
+        synchronized( streams ) {
+            for( Stream stream : streams ) {
+                stream.active = false;
+            }
+            activeStreams = 0;
+        }
+    }
+
+    /**
+     * A slot for a single incoming stream, reused once that stream has finished
+     */
+    private static final class Stream {
+        private final JitterBuffer jitterBuffer;
+
+        // The samples to play for the current frame
+        private final short[] samples;
+
+        private long key;
+        private boolean active;
+
+        // A lost frame is covered by repeating the one before it, once
+        private boolean repeat;
+        private int length;
+
+        Stream() {
+            this.jitterBuffer = new JitterBuffer(TARGET_DELAY_FRAMES);
+            this.samples = new short[AudioStream.SAMPLES_PER_FRAME];
+        }
+
+        void claim(long newKey) {
+            jitterBuffer.reset();
+            key = newKey;
+            active = true;
+            repeat = false;
+            length = 0;
+        }
+
+        /**
+         * Decodes the frame due to be played into the samples buffer.
+         *
+         * @param frame The frame, or null if it was lost
+         * @return The number of samples to play
+         */
+        int next(AudioStream.Frame frame) {
+            AudioCodec codec = frame == null ? null : AudioCodecs.get(frame.codec);
+
+            if( codec != null && frame.data.length > 0 ) {
+                length = codec.decode(frame.data, 0, frame.data.length, samples);
+                repeat = true;
+            } else if( frame == null && repeat ) {
+                repeat = false;
+            } else {
+                // The empty last frame, or a second frame lost in a row
+                length = 0;
+            }
+
+            return length;
+        }
+    }
+}
@@ -4,7 +4,6 @@ import java.io.FileNotFoundException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
 
@@ -12,19 +11,22 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.TargetDataLine;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatClient extends JFrame {
 
     // Chat client components
     private Client client;
+    private FileTransferManager transfers;
     private String clientName, hostname;
     private int portNumber;
     private ClientSettings settings;
@@ -37,7 +39,11 @@ public class ChatClient extends JFrame {
     private JTextField messageToSend;
     private JButton send, cancel, sendFile;
 
-    private boolean recordingAudio = false;
+    // Audio being streamed to and from rooms
+    private volatile boolean recordingAudio = false;
+    private final AtomicInteger nextAudioStreamId = new AtomicInteger();
+    private final AudioPlayback audioPlayback = new AudioPlayback();
+    private final Map<Integer, AudioCodec> roomAudioCodecs = new ConcurrentHashMap<>();
 
     /**
      * Creates a new chat client which will connect to the specified server.
@@ -45,6 +51,16 @@ public class ChatClient extends JFrame {
      * settings ClientSettings object from which to draw connection settings
      */
     public ChatClient( ClientSettings settings ) {
+        this(settings, false);
+    }
+
+    /**
+     * Creates a new chat client which will connect to the specified server.
+     *
+     * settings ClientSettings object from which to draw connection settings
+     * virtualThreads Whether the connection should be read from on a virtual thread
+     */
+    public ChatClient( ClientSettings settings, boolean virtualThreads ) {
         this.settings = settings;
         this.clientName = settings.getClientName();
         this.hostname = settings.getHostname();
@@ -52,17 +68,24 @@ public class ChatClient extends JFrame {
 
         initFrame();
         initComponents();
+        audioPlayback.start();
 
         this.client = new Client(clientName, hostname, portNumber);
+        this.client.setVirtualThreads(virtualThreads);
+        this.transfers = new FileTransferManager(client, clientName,
+                (roomId, text) -> appendToRoom(text, roomId));
 
         // Login handlers
         this.client.registerHandler(MessageType.LOGIN_SUCCESS, this::displayWelcome);
+        this.client.registerHandler(MessageType.LOGIN_SUCCESS, this::announceAudioCodecs);
         this.client.registerHandler(MessageType.LOGIN_FAILURE, this::displayRetryDialog);
 
         // Communication message handlers
         this.client.registerHandler(MessageType.CHAT, this::displayMessage);
-        this.client.registerHandler(MessageType.FILE, this::receiveFile);
+        this.client.registerHandler(MessageType.FILE, this::receiveFile, ExecutionPolicy.BY_SENDER);
         this.client.registerHandler(MessageType.AUDIO, this::receiveAudio);
+        this.client.registerHandler(MessageType.AUDIO_CODEC, this::setRoomAudioCodec);
+        this.client.registerHandler(MessageType.ERROR, this::displayError);
 
         // Command reply messages
         this.client.registerHandler(MessageType.JOIN_ROOM_SUCCESS, this::joinRoom);
@@ -184,59 +207,58 @@ public class ChatClient extends JFrame {
     }
 
     /**
-     * This function handles messages which contain file data and are downloaded and saved on your
-     * local computer. The user will be able to cancel the saving of the file before it actually
-     * saves
+     * This function handles the announcement of a file being shared with a room. The file starts
+     * streaming in straight away, but is only saved if the user agrees to download it and chooses
+     * where to save it. Until then it is kept in a temporary file.
      *
-     * @param message A message, presumably containing the bytes of the file as contents.
+     * @param message A message, presumably containing the header of the file as contents.
      */
     private <E extends Serializable> void receiveFile(Message<E> message) {
         System.out.printf("Received file message from id %d\n", message.getSenderId());
-        // If I sent the file, don't make me download it
-        if( message.getSenderId() == this.client.getClientId() ) {
+
+        FileTransferManager.IncomingTransfer transfer;
+        try {
+            // If I sent the file, don't make me download it
+            transfer = this.transfers.receive(message);
+            if( transfer == null ) {
+                return;
+            }
+        } catch( IOException ioe ) {
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "Error receiving file!", "Error!", JOptionPane.ERROR_MESSAGE));
             return;
         }
 
-        // Ensure that the contents of the message is the byte array
-        E messageContents = message.getContents();
         String sender = message.getSender();
 
-        if( messageContents instanceof byte[] ) {
+        // Ask the user on the event thread so that the rest of the file keeps arriving
+        SwingUtilities.invokeLater(() -> {
             // The user must confirm that they want to download the file
             int dialogAnswer = JOptionPane.showConfirmDialog(this,
-                    String.format("%s has sent a file. Would you like to download it?", sender),
+                    String.format("%s has sent %s (%d bytes). Would you like to download it?",
+                        sender, transfer.getFileName(), transfer.getSize()),
                     "File Download", JOptionPane.YES_NO_OPTION);
 
             if( dialogAnswer == JOptionPane.YES_OPTION ) {
-                SwingUtilities.invokeLater(() -> {
-                    JFileChooser jfc = new JFileChooser();
-                    int returnVal = jfc.showSaveDialog(this);
-
-                    // They must choose where to save the file
-                    if( returnVal == JFileChooser.APPROVE_OPTION ) {
-                        File file = jfc.getSelectedFile();
-
-                        // Write the bytes to the file
-                        try(FileOutputStream fos = new FileOutputStream(file)) {
-                            fos.write((byte[]) messageContents);
-                            fos.flush();
-                        } catch( IOException ioe ) {
-                            JOptionPane.showMessageDialog(this, "Error saving file!", "Error!",
-                                JOptionPane.ERROR_MESSAGE);
-                        }
-                    }
-                });
+                JFileChooser jfc = new JFileChooser();
+                jfc.setSelectedFile(new File(transfer.getFileName()));
+                int returnVal = jfc.showSaveDialog(this);
+
+                // They must choose where to save the file
+                if( returnVal == JFileChooser.APPROVE_OPTION ) {
+                    transfer.saveTo(jfc.getSelectedFile());
+                    return;
+                }
             }
-        } else {
-            JOptionPane.showMessageDialog(this, "Message contents must contain file data!",
-                    "Error!", JOptionPane.ERROR_MESSAGE);
-        }
+
+            transfer.cancel();
+        });
     }
 
     /**
      * This function allows users to send a file to their current rooom. The user wil be allowed to
-     * choose the file that they wish to send and it will be distributed across the current room
-     * that they are viewing.
+     * choose the file that they wish to send and it will be streamed to the current room that they
+     * are viewing.
      */
     private void sendFile() {
         // Let the user choose a file to send
@@ -244,59 +266,59 @@ public class ChatClient extends JFrame {
         JFileChooser jfc = new JFileChooser();
         int returnVal = jfc.showOpenDialog(this);
 
-        // If the user chose an option, read the file into a byte array
+        // If the user chose an option, stream the file to the room
         if (returnVal == JFileChooser.APPROVE_OPTION) {
-            File file = jfc.getSelectedFile();
-            byte[] fileBytes = new byte[(int) file.length()];
-
-            // Read in the bytes for the file
-            try( FileInputStream fis = new FileInputStream(file) ) {
-                fis.read(fileBytes);
-            } catch( IOException ioe ) {
-                System.err.printf("Error reading from %s\n", file.getName());
-                ioe.printStackTrace();
-                return;
-            }
-
-            // Create and send the message
-            Message<byte[]> fileMessage = new Message<>(clientName, currentRoom, fileBytes,
-                    MessageType.FILE);
-
-            client.writeMessage(fileMessage);
+            transfers.sendFile(jfc.getSelectedFile(), currentRoom);
         }
     }
 
+    /**
+     * Streams the microphone to the current room for as long as the push to talk key is held.
+     * Each 20ms of audio is sent as soon as it has been captured.
+     */
     private void sendAudio() {
         try {
-            // Get the microphone
-            AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, true);
+            // Get the microphone, buffering only a couple of frames so that audio is not held back
+            AudioFormat format = AudioPlayback.FORMAT;
             DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
             TargetDataLine microphone = (TargetDataLine) AudioSystem.getLine(info);
-            microphone.open(format);
+            microphone.open(format, AudioStream.FRAME_SIZE * 2);
 
-            // Set up the output stream for the audio data
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            int CHUNK_SIZE = 1024;
-            byte[] data = new byte[microphone.getBufferSize() / 5];
+            int streamId = nextAudioStreamId.getAndIncrement();
+            int roomId = getCurrentRoom();
+            AudioCodec codec = roomAudioCodecs.getOrDefault(roomId, AudioCodecs.PCM);
             microphone.start();
 
-            // Start recording in a separte thread
+            // Start streaming in a separate thread
             Thread recordingThread = new Thread(() -> {
-                System.out.println("Starting recording...");
+                byte[] pcm = new byte[AudioStream.FRAME_SIZE];
+                short[] samples = new short[AudioStream.SAMPLES_PER_FRAME];
+                byte[] encoded = new byte[codec.getMaxEncodedSize(samples.length)];
+
+                int sequence = 0;
                 while( recordingAudio ) {
-                    int numBytesRead = microphone.read(data, 0, CHUNK_SIZE);
-                    out.write(data, 0, numBytesRead);
+                    int numBytesRead = microphone.read(pcm, 0, pcm.length);
+                    if( numBytesRead < pcm.length ) {
+                        break;
+                    }
+
+                    int count = AudioStream.toSamples(pcm, 0, pcm.length, samples);
+                    byte[] data = Arrays.copyOf(encoded, codec.encode(samples, count, encoded, 0));
+
+                    AudioStream.Frame frame = new AudioStream.Frame(streamId, sequence++,
+                            System.currentTimeMillis(), false, codec.getId(), data);
+                    client.writeMessage(new Message<>(clientName, roomId, frame,
+                                MessageType.AUDIO));
                 }
-                System.out.println("Finished recording...");
 
-                // Create new message
-                byte[] audio = out.toByteArray();
-                Message<byte[]> message = new Message<>(clientName, getCurrentRoom(), audio,
-                    MessageType.AUDIO);
+                microphone.stop();
+                microphone.close();
 
-                System.out.println("Sending message...");
-                client.writeMessage(message);
-            });
+                // Let the listeners know that the stream is over
+                AudioStream.Frame last = new AudioStream.Frame(streamId, sequence,
+                        System.currentTimeMillis(), true, codec.getId(), new byte[0]);
+                client.writeMessage(new Message<>(clientName, roomId, last, MessageType.AUDIO));
+            }, "audio-capture-" + streamId);
 
             recordingThread.start();
         } catch( LineUnavailableException lue ) {
@@ -305,44 +327,40 @@ public class ChatClient extends JFrame {
         }
     }
 
+    /**
+     * Plays a frame of audio from a room, noting in the room when someone starts talking.
+     */
     private <E extends Serializable> void receiveAudio(Message<E> message) {
-        E messageContents = message.getContents();
-
         // Don't play audio sent by me
-        if( message.getSenderId() == this.client.getClientId() ) {
+        if( message.getSenderId() == this.client.getClientId()
+                || !(message.getContents() instanceof AudioStream.Frame) ) {
             return;
         }
 
-        // Add to the message history that an audio message was recieved
-        String toDisplay = String.format("%s: [Audio Message]\n", message.getSender());
-        appendToRoom(toDisplay, message.getDestination());
-
-        if( messageContents instanceof byte[] ) {
-            byte[] audioData = (byte[]) messageContents;
+        AudioStream.Frame frame = (AudioStream.Frame) message.getContents();
+        if( audioPlayback.offer(message.getSenderId(), frame) ) {
+            // Add to the message history that someone has started talking
+            String toDisplay = String.format("%s: [Audio Message]\n", message.getSender());
+            appendToRoom(toDisplay, message.getDestination());
+        }
+    }
 
-            // Get the speakers
-            AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, true);
-            DataLine.Info dataLineInfo = new DataLine.Info(SourceDataLine.class, format);
-            SourceDataLine speakers;
+    /**
+     * Tells the server which audio codecs this client can decode, so that rooms can use the best
+     * codec their members have in common.
+     */
+    private <E extends Serializable> void announceAudioCodecs(Message<E> message) {
+        Message<Integer> codecs = new Message<>(clientName, Message.SERVER_ID,
+                AudioCodecs.supportedMask(), MessageType.AUDIO_CODECS);
+        client.writeMessage(codecs);
+    }
 
-            try {
-                speakers = (SourceDataLine) AudioSystem.getLine(dataLineInfo);
-                speakers.open(format);
-            } catch( LineUnavailableException lue ) {
-                System.err.println("There was an error getting the audio output line!");
-                lue.printStackTrace();
-                return;
+    private <E extends Serializable> void setRoomAudioCodec(Message<E> message) {
+        if( message.getContents() instanceof Integer ) {
+            AudioCodec codec = AudioCodecs.get((Integer) message.getContents());
+            if( codec != null ) {
+                roomAudioCodecs.put(message.getDestination(), codec);
             }
-
-            // Create a thread to play the audio
-            Thread playThread = new Thread(() -> {
-                speakers.start();
-                speakers.write(audioData, 0, audioData.length);
-                speakers.drain();
-                speakers.stop();
-                speakers.close();
-            });
-            playThread.start();
         }
     }
 
@@ -359,6 +377,16 @@ public class ChatClient extends JFrame {
         appendToRoom(toDisplay, message.getDestination());
     }
 
+    /**
+     * Shows an error from the server in the room it is about, or in the current room if it is not
+     * about one that is open.
+     */
+    private <E extends Serializable> void displayError(Message<E> message) {
+        int roomId = this.rooms.containsKey(message.getDestination())
+            ? message.getDestination() : getCurrentRoom();
+        appendToRoom(String.format("%s: %s\n", message.getSender(), message.getContents()), roomId);
+    }
+
     private <E extends Serializable> void displayWelcome(Message<E> message) {
         String toDisplay = String.format("You have connected to %s:%d!\n", hostname, portNumber);
         appendToRoom(toDisplay, message.getDestination());
@@ -370,10 +398,13 @@ public class ChatClient extends JFrame {
     }
 
     private <E extends Serializable> void displayRetryDialog(Message<E> message) {
-        String newUserId = JOptionPane.showInputDialog(this, message.getContents(), "Enter Username", JOptionPane.PLAIN_MESSAGE);
-        Message<String> newLogin = new Message<>(newUserId, Message.SERVER_ID, newUserId, MessageType.LOGIN_INFORMATION);
-        message.setSenderId(this.client.getClientId());
-        client.writeMessage(newLogin);
+        // Ask on the event thread rather than holding up the thread that reads from the server
+        SwingUtilities.invokeLater(() -> {
+            String newUserId = JOptionPane.showInputDialog(this, message.getContents(), "Enter Username", JOptionPane.PLAIN_MESSAGE);
+            Message<String> newLogin = new Message<>(newUserId, Message.SERVER_ID, newUserId, MessageType.LOGIN_INFORMATION);
+            message.setSenderId(this.client.getClientId());
+            client.writeMessage(newLogin);
+        });
     }
 
     private <E extends Serializable> void joinRoom(Message<E> message) {
@@ -434,6 +465,7 @@ public class ChatClient extends JFrame {
 
     public static void main( String[] args ) {
         ClientSettings settings;
+        boolean virtualThreads = args.length > 3 && args[3].equals("virtual");
 
         if( args.length > 2 ) {
             settings = ClientSettings.DEFAULT;
@@ -456,7 +488,7 @@ public class ChatClient extends JFrame {
         ClientSettings.saveSettings(settings);
 
         // Create the chat client
-        ChatClient cc = new ChatClient(settings);
+        ChatClient cc = new ChatClient(settings, virtualThreads);
         SwingUtilities.invokeLater(() -> cc.setVisible(true));
     }
 }
@@ -3,15 +3,25 @@ import java.net.UnknownHostException;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 
+import java.util.ArrayDeque;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Client {
+    // How many times, and how often, to try reaching the server again when the connection drops
+    private static final int RECONNECT_ATTEMPTS = 30;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    // The most messages held back while reconnecting
+    private static final int MAX_UNSENT = 256;
+
     // Connection information
     private Socket socket;
     private String hostname;
@@ -19,35 +29,91 @@ public class Client {
     private int clientId;
 
     // Streaming information
-    private ObjectOutputStream writeToServer;
-    private ObjectInputStream readFromServer;
+    private DataOutputStream writeToServer;
+    private DataInputStream readFromServer;
+    private final ReentrantLock writeLock;
+    private boolean virtualThreads;
+    private MessageCodec.Format format;
+
+    // Whether to ask the server for compression, and whether the server has agreed to it
+    private boolean compression;
+    private volatile boolean compressing;
+
+    // The token the server gave this client to resume its session with, and the id of the last
+    // chat message seen in each room, which tells the server what was missed
+    private volatile String sessionToken;
+    private final Map<Integer, Long> lastSeen;
+
+    // Messages written while the connection is down, sent once the session has been resumed.
+    // Messages are held from when the connection drops until the session is resumed or given up
+    // on, and once the server cannot be reached again nothing more is sent at all. All of this
+    // is only touched with the write lock held.
+    private final ArrayDeque<Message<?>> unsent;
+    private boolean reconnecting;
+    private boolean lost;
 
     // Other information maintained by the client
     private String clientName;
-    private Map<MessageType, List<MessageHandler>> handlers;
+    private MessageDispatcher handlers;
     private MessageHandler defaultHandler;
 
     public Client(String clientName, String hostname, int portNumber) {
         this.clientName = clientName;
         this.hostname = hostname;
         this.portNumber = portNumber;
-        this.handlers = new HashMap<>();
+        // Only the connection to the server is read, so waiting for a full handler queue just
+        // stops reading from the server until the handler catches up
+        this.handlers = new MessageDispatcher("client-handler", true);
+        this.writeLock = new ReentrantLock();
+        this.format = MessageCodec.Format.BINARY;
+        this.compression = true;
+        this.lastSeen = new ConcurrentHashMap<>();
+        this.unsent = new ArrayDeque<>();
 
         registerHandler(MessageType.CONNECTION_SUCCESS, this::validateUsername);
+        registerHandler(MessageType.SESSION, this::setSessionToken);
+        registerHandler(MessageType.RESUME_SUCCESS, this::sessionResumed);
+        registerHandler(MessageType.RESUME_FAILURE, this::loginAgain);
+        registerHandler(MessageType.LEAVE_ROOM_SUCCESS, this::forgetRoom);
+    }
+
+    /**
+     * Sets whether the reader for this client is started on a virtual thread. This must be called
+     * before the connection is established.
+     *
+     * @param virtualThreads true if a virtual thread should be used when available
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets the format messages are written to the server in. Binary is used by default; the
+     * serialized format is kept for talking to servers that do not understand binary messages.
+     * The server replies in binary only once it has received a binary message.
+     *
+     * @param format The format to write messages in
+     */
+    public void setWireFormat(MessageCodec.Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets whether to ask the server to compress the messages sent in both directions. It is
+     * asked by sending the login compressed, and agrees by replying with compressed messages,
+     * after which this client compresses what it sends as well. Compression is only used with
+     * the binary format. This must be called before the connection is established.
+     *
+     * @param compression true if compression should be asked for
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
     }
 
     public void establishConnection() {
         // Open the connection to the server
         try {
-            this.socket = new Socket(hostname, portNumber);
-            this.writeToServer = new ObjectOutputStream(this.socket.getOutputStream());
-            this.readFromServer = new ObjectInputStream(this.socket.getInputStream());
-
-            // Start the reader thread
-            ClientReader reader = new ClientReader(this.readFromServer);
-            Thread readerThread = new Thread(reader);
-            readerThread.start();
-
+            connect();
         } catch( UnknownHostException uhe ) {
             System.err.printf("Could not connect to %s:%d\n", hostname, portNumber);
             uhe.printStackTrace();
@@ -57,13 +123,180 @@ public class Client {
         }
     }
 
+    private void connect() throws IOException {
+        Socket newSocket = new Socket(hostname, portNumber);
+        newSocket.setTcpNoDelay(true);
+
+        writeLock.lock();
+        try {
+            this.socket = newSocket;
+            this.writeToServer = new DataOutputStream(
+                    new BufferedOutputStream(newSocket.getOutputStream()));
+            this.readFromServer = new DataInputStream(
+                    new BufferedInputStream(newSocket.getInputStream()));
+
+            // Compression is agreed again on every connection
+            this.compressing = false;
+        } finally {
+            writeLock.unlock();
+        }
+
+        // Start the reader thread
+        ClientReader reader = new ClientReader(this.readFromServer);
+        ReaderThreads.start("client-reader", reader, virtualThreads);
+    }
+
+    /**
+     * Connects to the server again after the connection has dropped, so that the session can be
+     * resumed. Only clients that have been given a session try.
+     *
+     * @return false if the server could not be reached again
+     */
+    private boolean reconnect() {
+        if( sessionToken == null ) {
+            return false;
+        }
+
+        try {
+            socket.close();
+        } catch( IOException ioe ) {
+            // The socket is being replaced anyway
+        }
+
+        for( int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++ ) {
+            System.err.printf("Lost the connection to %s:%d, reconnecting (%d/%d)\n", hostname,
+                    portNumber, attempt, RECONNECT_ATTEMPTS);
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+                connect();
+                return true;
+            } catch( IOException ioe ) {
+                // Try again after the delay
+            } catch( InterruptedException ie ) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
     private <E extends Serializable> void validateUsername(Message<E> message) {
         setClientId(message);
 
-        // Send client information to the server
+        if( sessionToken != null ) {
+            resumeSession();
+        } else {
+            login();
+        }
+    }
+
+    /**
+     * Sends client information to the server
+     */
+    private void login() {
         Message<String> loginInfo = new Message<>(clientName, Message.SERVER_ID, clientName,
                 MessageType.LOGIN_INFORMATION);
-        writeMessage(loginInfo);
+        writeNow(loginInfo, loginFormat());
+    }
+
+    /**
+     * Asks the server to carry on the session the connection that dropped was in, telling it the
+     * last message seen in each room.
+     */
+    private void resumeSession() {
+        int[] roomIds = new int[lastSeen.size()];
+        long[] lastMessageIds = new long[roomIds.length];
+        int rooms = 0;
+        for( Map.Entry<Integer, Long> room : lastSeen.entrySet() ) {
+            if( rooms == roomIds.length ) {
+                break;
+            }
+            roomIds[rooms] = room.getKey();
+            lastMessageIds[rooms] = room.getValue();
+            rooms++;
+        }
+
+        SessionResume resume = new SessionResume(sessionToken, roomIds, lastMessageIds);
+        writeNow(new Message<>(clientName, Message.SERVER_ID, resume, MessageType.RESUME),
+                loginFormat());
+    }
+
+    /**
+     * Sends what was written while the connection was down, and tells the rooms whose missed
+     * messages could not all be sent.
+     */
+    private <E extends Serializable> void sessionResumed(Message<E> message) {
+        if( message.getContents() instanceof SessionResume.Resumed ) {
+            for( int roomId : ((SessionResume.Resumed) message.getContents()).incompleteRoomIds ) {
+                notifyLocally(roomId, "Not every message sent while you were away was kept, "
+                        + "some are missing");
+            }
+        }
+
+        writeLock.lock();
+        try {
+            reconnecting = false;
+            while( !unsent.isEmpty() ) {
+                if( !write(unsent.peek(), writeFormat()) ) {
+                    // Held again until the next connection resumes the session
+                    reconnecting = true;
+                    break;
+                }
+                unsent.poll();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return The format to log in or resume in, which asks for compression if it is wanted
+     */
+    private MessageCodec.Format loginFormat() {
+        boolean askForCompression = compression && format == MessageCodec.Format.BINARY;
+        return askForCompression ? MessageCodec.Format.COMPRESSED : writeFormat();
+    }
+
+    private <E extends Serializable> void setSessionToken(Message<E> message) {
+        if( message.getContents() instanceof String ) {
+            this.sessionToken = (String) message.getContents();
+        }
+    }
+
+    private <E extends Serializable> void loginAgain(Message<E> message) {
+        System.err.printf("Could not resume the session: %s\n", message.getContents());
+        this.sessionToken = null;
+        this.lastSeen.clear();
+
+        // What was held back was meant for rooms the new session is not in
+        int dropped;
+        writeLock.lock();
+        try {
+            dropped = unsent.size();
+            unsent.clear();
+            reconnecting = false;
+        } finally {
+            writeLock.unlock();
+        }
+        if( dropped > 0 ) {
+            notifyLocally(Message.SERVER_ID, String.format("Your session could not be resumed, "
+                        + "%d messages were not sent", dropped));
+        }
+
+        login();
+    }
+
+    private <E extends Serializable> void forgetRoom(Message<E> message) {
+        if( message.getContents() instanceof Integer ) {
+            this.lastSeen.remove((Integer) message.getContents());
+        }
+    }
+
+    /**
+     * @return The format messages are currently written to the server in
+     */
+    private MessageCodec.Format writeFormat() {
+        return compressing ? MessageCodec.Format.COMPRESSED : format;
     }
 
     private <E extends Serializable> void setClientId(Message<E> message) {
@@ -76,13 +309,107 @@ public class Client {
         return this.clientId;
     }
 
+    /**
+     * Sends a message to the server. While the connection is down the message is held back, and
+     * sent once the session has been resumed. A message that cannot be sent at all is reported to
+     * the handlers for ERROR messages.
+     */
     public <E extends Serializable> void writeMessage( Message<E> message ) {
+        String failure = null;
+
+        writeLock.lock();
+        try {
+            if( lost ) {
+                failure = String.format("Not connected to %s:%d, the message was not sent",
+                        hostname, portNumber);
+            } else if( reconnecting || !write(message, writeFormat()) ) {
+                if( unsent.size() < MAX_UNSENT ) {
+                    unsent.add(message);
+                } else {
+                    failure = "Too many messages written while reconnecting, the message was "
+                        + "not sent";
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        if( failure != null ) {
+            notifyLocally(Message.SERVER_ID, failure);
+        }
+    }
+
+    /**
+     * Sends a message straight away, even while reconnecting, for logging in and resuming.
+     */
+    private <E extends Serializable> void writeNow(Message<E> message,
+            MessageCodec.Format messageFormat) {
+        writeLock.lock();
+        try {
+            write(message, messageFormat);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a message to the socket. Must be called with the write lock held. A connection that
+     * cannot be written to is closed, so that the reader notices and reconnects, and messages are
+     * held back from then on.
+     *
+     * @return false if the message could not be written
+     */
+    private <E extends Serializable> boolean write(Message<E> message,
+            MessageCodec.Format messageFormat) {
         try {
             message.setSenderId(this.clientId);
-            writeToServer.writeObject(message);
+            MessageCodec.writeMessage(writeToServer, message, messageFormat);
+            writeToServer.flush();
+            return true;
         } catch( IOException ioe ) {
             System.err.printf("Error writing message to %s:%d!\n", this.hostname, this.portNumber);
+            reconnecting = true;
+            try {
+                socket.close();
+            } catch( IOException closeFailed ) {
+                // The reader will notice either way
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Passes an ERROR message from this client itself to the handlers, for things that went
+     * wrong with the connection.
+     *
+     * @param roomId The room the error concerns, or SERVER_ID for none in particular
+     */
+    private void notifyLocally(int roomId, String text) {
+        Message<String> error = new Message<>(String.format("%s:%d", hostname, portNumber),
+                roomId, text, MessageType.ERROR);
+        error.setSenderId(Message.SERVER_ID);
+        notifyHandlers(error);
+    }
+
+    /**
+     * Gives up on the server once it cannot be reached again, reporting what was not sent.
+     */
+    private void connectionLost() {
+        int dropped;
+        writeLock.lock();
+        try {
+            lost = true;
+            dropped = unsent.size();
+            unsent.clear();
+        } finally {
+            writeLock.unlock();
         }
+
+        String text = String.format("Lost the connection to %s:%d", hostname, portNumber);
+        if( dropped > 0 ) {
+            text += String.format(", %d messages were not sent", dropped);
+        }
+        notifyLocally(Message.SERVER_ID, text);
     }
 
     /**
@@ -98,22 +425,36 @@ public class Client {
 
     /**
      * This will register an implementation of the MessageHandler interface as being able to handle
-     * messages of a particular type.
+     * messages of a particular type. The handler is run inline on the thread that read the
+     * message.
      *
      * @param type The type of messages that this handler can work with
      * @param listener Provides the handler function which will be called when a message of the
      * specified type is received by the client.
      */
     public void registerHandler(MessageType type, MessageHandler listener) {
-        List<MessageHandler> typeHandlers = this.handlers.get(type);
-
-        if( typeHandlers == null ) {
-            typeHandlers = new ArrayList<>();
-        }
+        registerHandler(type, listener, ExecutionPolicy.INLINE);
+    }
 
-        typeHandlers.add(listener);
+    /**
+     * This will register an implementation of the MessageHandler interface as being able to handle
+     * messages of a particular type.
+     *
+     * @param type The type of messages that this handler can work with
+     * @param listener Provides the handler function which will be called when a message of the
+     * specified type is received by the client.
+     * @param policy Which thread the handler is run on
+     */
+    public void registerHandler(MessageType type, MessageHandler listener,
+            ExecutionPolicy policy) {
+        this.handlers.register(type, listener, policy);
+    }
 
-        this.handlers.put(type, typeHandlers);
+    /**
+     * @return How every registered handler has performed so far
+     */
+    public List<MessageDispatcher.HandlerStats> getHandlerStats() {
+        return this.handlers.getStats();
     }
 
     /**
@@ -123,15 +464,14 @@ public class Client {
      * @param message The message that has been received by the client
      */
     public <E extends Serializable> void notifyHandlers(Message<E> message) {
-        MessageType type = message.getType();
+        if( this.handlers.dispatch(message) != MessageDispatcher.Result.UNHANDLED ) {
+            return;
+        }
 
-        if( this.handlers.containsKey(type) ) {
-            List<MessageHandler> typeHandlers = this.handlers.get(type);
-            typeHandlers.stream().forEach(h -> h.recieveMessage(message));
-        } else if( this.defaultHandler != null ) {
+        if( this.defaultHandler != null ) {
             this.defaultHandler.recieveMessage(message);
         } else {
-            System.err.printf("Received message with unhandled type: %s\n", type);
+            System.err.printf("Received message with unhandled type: %s\n", message.getType());
         }
     }
 
@@ -141,22 +481,47 @@ public class Client {
      */
     private class ClientReader implements Runnable {
 
-        private ObjectInputStream serverRead;
+        private DataInputStream serverRead;
 
-        public ClientReader(ObjectInputStream serverRead) {
+        public ClientReader(DataInputStream serverRead) {
             this.serverRead = serverRead;
         }
 
         public void run() {
             while( true ) {
                 try {
-                    Message<?> message = (Message<?>)serverRead.readObject();
+                    byte[] payload = MessageCodec.readFrame(serverRead);
+
+                    // The server agrees to compression by compressing what it sends
+                    if( !compressing && compression && MessageCodec.formatOf(payload, 0)
+                            == MessageCodec.Format.COMPRESSED ) {
+                        compressing = true;
+                    }
+
+                    Message<?> message = MessageCodec.decode(payload, 0, payload.length);
+
+                    if( message.getType() == MessageType.CHAT && message.getId() != 0 ) {
+                        lastSeen.put(message.getDestination(), message.getId());
+                    }
 
                     notifyHandlers(message);
                 } catch( IOException ioe ) {
+                    writeLock.lock();
+                    try {
+                        reconnecting = true;
+                    } finally {
+                        writeLock.unlock();
+                    }
+
+                    // The new connection has a reader of its own
+                    if( reconnect() ) {
+                        return;
+                    }
+
                     System.err.println("There was an error while reading from the server!");
                     ioe.printStackTrace();
-                    System.exit(1);
+                    connectionLost();
+                    return;
                 } catch( ClassNotFoundException cnfe ) {
                     System.err.printf("Invalid message read from %s:%d\n", hostname, portNumber);
                     cnfe.printStackTrace();
@@ -0,0 +1,438 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Streams files to and from rooms. Files are never held in memory: outgoing files are read a chunk
+ * at a time as the server hands back window, and incoming files are written to a temporary file as
+ * their chunks arrive, then moved to wherever the user chose to save them once the whole file has
+ * arrived and its checksum has been verified.
+ */
+public class FileTransferManager {
+
+    // How long to wait for the server to hand back window before giving up on a file
+    private static final long CREDIT_TIMEOUT_SECONDS = 60;
+
+    // How long a sent file is remembered so that receivers can resume it
+    private static final long RESUME_RETENTION_MILLIS = 10 * 60 * 1000;
+
+    private final Client client;
+    private final String clientName;
+    private final BiConsumer<Integer, String> status;
+    private final AtomicInteger nextTransferId;
+    private final Map<Integer, OutgoingTransfer> outgoing;
+    private final Map<Long, IncomingTransfer> incoming;
+
+    /**
+     * @param client The client files are sent and received through
+     * @param clientName The name files are sent under
+     * @param status Called with a room id and a line of text to show the user in that room
+     */
+    public FileTransferManager(Client client, String clientName,
+            BiConsumer<Integer, String> status) {
+        this.client = client;
+        this.clientName = clientName;
+        this.status = status;
+        this.nextTransferId = new AtomicInteger();
+        this.outgoing = new ConcurrentHashMap<>();
+        this.incoming = new ConcurrentHashMap<>();
+
+        // Chunks are written to disk off the reader, in order with the FILE header that
+        // announced them since every part of a transfer comes from the same sender
+        client.registerHandler(MessageType.FILE_CHUNK, this::receiveChunk,
+                ExecutionPolicy.BY_SENDER);
+        client.registerHandler(MessageType.FILE_END, this::receiveEnd, ExecutionPolicy.BY_SENDER);
+        client.registerHandler(MessageType.FILE_CREDIT, this::receiveCredit);
+        client.registerHandler(MessageType.FILE_RESUME, this::resume);
+    }
+
+    private static long key(int ownerId, int transferId) {
+        return ((long) ownerId << 32) | (transferId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Starts sending a file to a room on a background thread.
+     *
+     * @param file The file to send
+     * @param roomId The room to send it to
+     */
+    public void sendFile(File file, int roomId) {
+        purgeExpired();
+
+        OutgoingTransfer transfer = new OutgoingTransfer(nextTransferId.getAndIncrement(), file,
+                roomId);
+        outgoing.put(transfer.transferId, transfer);
+
+        Thread sendThread = new Thread(transfer::sendToRoom, "file-send-" + transfer.transferId);
+        sendThread.start();
+    }
+
+    /**
+     * Starts receiving a file that has been announced to a room. The file is spooled to disk as it
+     * arrives, and is kept only if saveTo is called on the returned transfer. A file the server
+     * holds on demand is not sent at all until saveTo is called.
+     *
+     * @param message The FILE message announcing the file
+     * @return The transfer, or null if the file was sent by this client or is already being
+     * received
+     */
+    public IncomingTransfer receive(Message<?> message) throws IOException {
+        if( message.getSenderId() == client.getClientId()
+                || !(message.getContents() instanceof FileTransfer.Header) ) {
+            return null;
+        }
+
+        FileTransfer.Header header = (FileTransfer.Header) message.getContents();
+        long transferKey = key(message.getSenderId(), header.transferId);
+        if( incoming.containsKey(transferKey) ) {
+            return null;
+        }
+
+        IncomingTransfer transfer = new IncomingTransfer(message.getSenderId(),
+                message.getDestination(), header);
+        incoming.put(transferKey, transfer);
+
+        return transfer;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for( Iterator<OutgoingTransfer> iter = outgoing.values().iterator(); iter.hasNext(); ) {
+            OutgoingTransfer transfer = iter.next();
+            if( transfer.finishedAt != 0 && now - transfer.finishedAt > RESUME_RETENTION_MILLIS ) {
+                iter.remove();
+            }
+        }
+    }
+
+    private <E extends Serializable> void receiveChunk(Message<E> message) {
+        if( message.getContents() instanceof FileTransfer.Chunk ) {
+            FileTransfer.Chunk chunk = (FileTransfer.Chunk) message.getContents();
+            IncomingTransfer transfer = incoming.get(key(message.getSenderId(), chunk.transferId));
+
+            if( transfer != null ) {
+                transfer.receiveChunk(chunk);
+            }
+        }
+    }
+
+    private <E extends Serializable> void receiveEnd(Message<E> message) {
+        if( message.getContents() instanceof FileTransfer.End ) {
+            FileTransfer.End end = (FileTransfer.End) message.getContents();
+            IncomingTransfer transfer = incoming.get(key(message.getSenderId(), end.transferId));
+
+            if( transfer != null ) {
+                transfer.receiveEnd(end);
+            }
+        }
+    }
+
+    private <E extends Serializable> void receiveCredit(Message<E> message) {
+        if( message.getContents() instanceof FileTransfer.Control ) {
+            FileTransfer.Control credit = (FileTransfer.Control) message.getContents();
+            OutgoingTransfer transfer = outgoing.get(credit.transferId);
+
+            if( transfer != null ) {
+                transfer.window.release();
+            }
+        }
+    }
+
+    private <E extends Serializable> void resume(Message<E> message) {
+        if( message.getContents() instanceof FileTransfer.Control ) {
+            FileTransfer.Control resume = (FileTransfer.Control) message.getContents();
+            OutgoingTransfer transfer = outgoing.get(resume.transferId);
+            int recipient = message.getSenderId();
+
+            if( transfer != null ) {
+                Thread resumeThread = new Thread(() -> transfer.resume(resume.offset, recipient),
+                        "file-resume-" + resume.transferId);
+                resumeThread.start();
+            }
+        }
+    }
+
+    /**
+     * A file being sent by this client
+     */
+    private class OutgoingTransfer {
+        private final int transferId;
+        private final File file;
+        private final int roomId;
+        private final Semaphore window;
+        private volatile long finishedAt;
+
+        public OutgoingTransfer(int transferId, File file, int roomId) {
+            this.transferId = transferId;
+            this.file = file;
+            this.roomId = roomId;
+            this.window = new Semaphore(FileTransfer.WINDOW);
+        }
+
+        public void sendToRoom() {
+            long size = file.length();
+            FileTransfer.Header header = new FileTransfer.Header(transferId, file.getName(), size);
+            client.writeMessage(new Message<>(clientName, roomId, header, MessageType.FILE));
+
+            CRC32 checksum = new CRC32();
+            if( stream(0, FileTransfer.ALL_RECIPIENTS, checksum) ) {
+                FileTransfer.End end = new FileTransfer.End(transferId, size, checksum.getValue());
+                client.writeMessage(new Message<>(clientName, roomId, end, MessageType.FILE_END));
+                status.accept(roomId, String.format("Sent %s\n", file.getName()));
+            }
+
+            finishedAt = System.currentTimeMillis();
+        }
+
+        public void resume(long offset, int recipient) {
+            stream(offset, recipient, null);
+        }
+
+        /**
+         * Sends the file from an offset onwards, waiting for window before every chunk.
+         *
+         * @return true if the whole file was sent
+         */
+        private boolean stream(long offset, int recipient, CRC32 checksum) {
+            byte[] buffer = new byte[FileTransfer.CHUNK_SIZE];
+
+            try( RandomAccessFile in = new RandomAccessFile(file, "r") ) {
+                long size = in.length();
+                in.seek(offset);
+
+                while( offset < size ) {
+                    if( !window.tryAcquire(CREDIT_TIMEOUT_SECONDS, TimeUnit.SECONDS) ) {
+                        status.accept(roomId, String.format("Gave up sending %s\n",
+                                    file.getName()));
+                        return false;
+                    }
+
+                    int length = (int) Math.min(buffer.length, size - offset);
+                    in.readFully(buffer, 0, length);
+                    if( checksum != null ) {
+                        checksum.update(buffer, 0, length);
+                    }
+
+                    // The message is encoded before writeMessage returns, so the buffer can be
+                    // reused for the next chunk
+                    byte[] data = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+                    FileTransfer.Chunk chunk = new FileTransfer.Chunk(transferId, offset,
+                            recipient, data);
+                    client.writeMessage(new Message<>(clientName, roomId, chunk,
+                                MessageType.FILE_CHUNK));
+
+                    offset += length;
+                }
+
+                return true;
+            } catch( IOException | InterruptedException e ) {
+                System.err.printf("Error reading from %s\n", file.getName());
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A file being received by this client
+     */
+    public class IncomingTransfer {
+        private final int ownerId;
+        private final int roomId;
+        private final FileTransfer.Header header;
+        private final ReentrantLock lock;
+
+        // Where the file is spooled as it arrives
+        private final File spool;
+        private final RandomAccessFile out;
+        private final CRC32 checksum;
+        private long received;
+        private long resumeRequestedAt;
+
+        // The checksum the sender reported, once FILE_END has arrived
+        private Long expectedChecksum;
+
+        // What the user has decided to do with the file
+        private File destination;
+        private boolean cancelled;
+        private boolean complete;
+
+        public IncomingTransfer(int ownerId, int roomId, FileTransfer.Header header)
+                throws IOException {
+            this.ownerId = ownerId;
+            this.roomId = roomId;
+            this.header = header;
+            this.lock = new ReentrantLock();
+            this.spool = File.createTempFile("chat-", ".part");
+            this.spool.deleteOnExit();
+            this.out = new RandomAccessFile(spool, "rw");
+            this.checksum = new CRC32();
+            this.resumeRequestedAt = -1;
+        }
+
+        public String getFileName() {
+            return header.fileName;
+        }
+
+        public long getSize() {
+            return header.size;
+        }
+
+        private void receiveChunk(FileTransfer.Chunk chunk) {
+            lock.lock();
+            try {
+                if( cancelled || complete ) {
+                    return;
+                }
+
+                if( chunk.offset == received ) {
+                    out.seek(received);
+                    out.write(chunk.data);
+                    checksum.update(chunk.data);
+                    received += chunk.data.length;
+
+                    if( received == header.size && expectedChecksum != null ) {
+                        finish();
+                    }
+                } else if( chunk.offset > received ) {
+                    // Part of the file went missing on the way
+                    requestResume();
+                }
+            } catch( IOException ioe ) {
+                fail(ioe);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void receiveEnd(FileTransfer.End end) {
+            lock.lock();
+            try {
+                if( cancelled || complete ) {
+                    return;
+                }
+
+                expectedChecksum = end.checksum;
+                if( received == header.size ) {
+                    finish();
+                } else {
+                    requestResume();
+                }
+            } catch( IOException ioe ) {
+                fail(ioe);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Asks the sender for everything from the end of what has been received so far. Only one
+         * request is made for each offset.
+         */
+        private void requestResume() {
+            if( resumeRequestedAt != received ) {
+                resumeRequestedAt = received;
+
+                FileTransfer.Control resume = new FileTransfer.Control(header.transferId, ownerId,
+                        received);
+                client.writeMessage(new Message<>(clientName, Message.SERVER_ID, resume,
+                            MessageType.FILE_RESUME));
+            }
+        }
+
+        private void finish() throws IOException {
+            if( checksum.getValue() != expectedChecksum ) {
+                // The file was corrupted, so start again from the beginning
+                out.setLength(0);
+                checksum.reset();
+                received = 0;
+                resumeRequestedAt = -1;
+                requestResume();
+                return;
+            }
+
+            complete = true;
+            out.close();
+            incoming.remove(key(ownerId, header.transferId));
+
+            if( destination != null ) {
+                save();
+            }
+        }
+
+        private void save() throws IOException {
+            Files.move(spool.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            status.accept(roomId, String.format("Saved %s to %s\n", header.fileName, destination));
+        }
+
+        private void fail(IOException ioe) {
+            System.err.printf("Error receiving %s\n", header.fileName);
+            ioe.printStackTrace();
+            discard();
+            status.accept(roomId, String.format("Could not receive %s\n", header.fileName));
+        }
+
+        private void discard() {
+            cancelled = true;
+            incoming.remove(key(ownerId, header.transferId));
+
+            try {
+                out.close();
+            } catch( IOException ioe ) {
+                // The file is being deleted anyway
+            }
+            spool.delete();
+        }
+
+        /**
+         * Keeps the file, saving it to the given location once it has fully arrived. A file the
+         * server holds on demand is asked for now.
+         */
+        public void saveTo(File file) {
+            lock.lock();
+            try {
+                if( cancelled ) {
+                    return;
+                }
+
+                destination = file;
+                if( complete ) {
+                    save();
+                } else if( header.onDemand ) {
+                    requestResume();
+                }
+            } catch( IOException ioe ) {
+                fail(ioe);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stops receiving the file and throws away anything received so far.
+         */
+        public void cancel() {
+            lock.lock();
+            try {
+                discard();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
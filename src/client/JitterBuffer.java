@@ -0,0 +1,146 @@
+import java.util.Arrays;
+
+/**
+ * Smooths out the arrival of frames from a single audio stream. Frames are held in slots indexed
+ * by their sequence number, so they are played in order however they arrive, and playback only
+ * starts once a few frames have built up. A frame that has not arrived by the time it is due is
+ * treated as lost rather than waited for, and a frame that arrives after its turn has passed is
+ * thrown away.
+ *
+ * If frames build up beyond what is needed to ride out jitter, the oldest are skipped so that the
+ * delay does not creep upwards over the course of a long stream.
+ */
+public class JitterBuffer {
+
+    // The number of slots, which must be a power of two
+    private static final int CAPACITY = 32;
+    private static final int MASK = CAPACITY - 1;
+
+    private final AudioStream.Frame[] slots;
+    private final int targetDelay;
+    private final int maxDelay;
+
+    // The sequence number of the next frame to be played
+    private int nextSequence;
+
+    // The highest sequence number received so far
+    private int highestSequence;
+
+    private boolean started;
+    private boolean ended;
+    private int endSequence;
+    private long lastArrival;
+
+    /**
+     * @param targetDelay How many frames to build up before playback starts
+     */
+    public JitterBuffer(int targetDelay) {
+        this.slots = new AudioStream.Frame[CAPACITY];
+        this.targetDelay = targetDelay;
+        this.maxDelay = targetDelay * 2 + 1;
+        reset();
+    }
+
+    /**
+     * Empties the buffer so that it can be used for a new stream.
+     */
+    public synchronized void reset() {
+        Arrays.fill(slots, null);
+        nextSequence = 0;
+        highestSequence = -1;
+        started = false;
+        ended = false;
+        endSequence = 0;
+        lastArrival = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds a frame that has arrived from the network.
+     *
+     * @return false if the frame arrived too late to be played
+     */
+    public synchronized boolean offer(AudioStream.Frame frame) {
+        lastArrival = System.currentTimeMillis();
+
+        if( frame.last ) {
+            ended = true;
+            endSequence = frame.sequence;
+        }
+
+        // Until playback starts the stream begins at the earliest frame seen
+        if( !started && (highestSequence < 0 || frame.sequence < nextSequence) ) {
+            nextSequence = frame.sequence;
+        }
+
+        if( frame.sequence < nextSequence ) {
+            return false;
+        }
+
+        // A frame too far ahead to fit means everything before it is lost
+        if( frame.sequence - nextSequence >= CAPACITY ) {
+            skipTo(frame.sequence - targetDelay);
+        }
+
+        slots[frame.sequence & MASK] = frame;
+        highestSequence = Math.max(highestSequence, frame.sequence);
+
+        // Catch up if playback has fallen too far behind what is arriving
+        if( started && highestSequence - nextSequence >= maxDelay ) {
+            skipTo(highestSequence - targetDelay);
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes the next frame to play.
+     *
+     * @return The frame, or null if it is missing or playback has not started yet
+     */
+    public synchronized AudioStream.Frame poll() {
+        if( !started ) {
+            // Wait for enough frames to ride out jitter, unless the stream has already ended
+            if( highestSequence - nextSequence + 1 < targetDelay && !ended ) {
+                return null;
+            }
+            started = true;
+        }
+
+        AudioStream.Frame frame = slots[nextSequence & MASK];
+        if( frame != null && frame.sequence != nextSequence ) {
+            frame = null;
+        }
+
+        slots[nextSequence & MASK] = null;
+        nextSequence++;
+        return frame;
+    }
+
+    /**
+     * @return Whether playback has started
+     */
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return Whether every frame up to the end of the stream has been played
+     */
+    public synchronized boolean isFinished() {
+        return ended && nextSequence > endSequence;
+    }
+
+    /**
+     * @return When the last frame arrived, in milliseconds since the epoch
+     */
+    public synchronized long getLastArrival() {
+        return lastArrival;
+    }
+
+    private void skipTo(int sequence) {
+        while( nextSequence < sequence ) {
+            slots[nextSequence & MASK] = null;
+            nextSequence++;
+        }
+    }
+}
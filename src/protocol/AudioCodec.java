@@ -0,0 +1,44 @@
+/**
+ * Compresses frames of audio before they are sent to a room. Every frame is encoded on its own,
+ * without reference to the frames around it, so a frame can be decoded even if the one before it
+ * was lost, and the server can decode the frames it mixes without tracking each stream.
+ *
+ * Samples are 16 bit signed PCM at AudioStream.SAMPLE_RATE.
+ */
+public interface AudioCodec {
+
+    /**
+     * @return The id that identifies this codec on the wire
+     */
+    byte getId();
+
+    /**
+     * @return The name of this codec, as shown to users
+     */
+    String getName();
+
+    /**
+     * @return The largest number of bytes that the given number of samples can encode to
+     */
+    int getMaxEncodedSize(int sampleCount);
+
+    /**
+     * Encodes a frame of samples.
+     *
+     * @param samples The samples to encode
+     * @param count The number of samples to encode
+     * @param out Where to write the encoded frame, which must have room for
+     * getMaxEncodedSize(count) bytes from outOffset
+     * @return The number of bytes written
+     */
+    int encode(short[] samples, int count, byte[] out, int outOffset);
+
+    /**
+     * Decodes a frame that was encoded by this codec.
+     *
+     * @param data The encoded frame
+     * @param samples Where to write the decoded samples
+     * @return The number of samples written
+     */
+    int decode(byte[] data, int offset, int length, short[] samples);
+}
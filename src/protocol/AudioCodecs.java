@@ -0,0 +1,302 @@
+/**
+ * The audio codecs every client and server knows about. Which codec a room uses is negotiated
+ * from the codecs its members support, which are exchanged as a bit mask of codec ids.
+ */
+public final class AudioCodecs {
+
+    /**
+     * Uncompressed big-endian PCM, 2 bytes per sample
+     */
+    public static final AudioCodec PCM = new PcmCodec();
+
+    /**
+     * G.711 mu-law, 1 byte per sample
+     */
+    public static final AudioCodec MU_LAW = new MuLawCodec();
+
+    /**
+     * IMA ADPCM, half a byte per sample plus a small header per frame
+     */
+    public static final AudioCodec IMA_ADPCM = new ImaAdpcmCodec();
+
+    // Every codec, from most to least preferred
+    private static final AudioCodec[] PREFERENCE = { IMA_ADPCM, MU_LAW, PCM };
+
+    // Every codec, indexed by id
+    private static final AudioCodec[] BY_ID = new AudioCodec[PREFERENCE.length];
+
+    static {
+        for( AudioCodec codec : PREFERENCE ) {
+            BY_ID[codec.getId()] = codec;
+        }
+    }
+
+    private AudioCodecs() { }
+
+    /**
+     * @return The codec with the given id, or null if there is no such codec
+     */
+    public static AudioCodec get(int id) {
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+
+    /**
+     * @return The mask of every codec known here
+     */
+    public static int supportedMask() {
+        int mask = 0;
+        for( AudioCodec codec : PREFERENCE ) {
+            mask |= mask(codec);
+        }
+        return mask;
+    }
+
+    /**
+     * @return The mask holding only the given codec
+     */
+    public static int mask(AudioCodec codec) {
+        return 1 << codec.getId();
+    }
+
+    /**
+     * Chooses the codec to use between peers that support the given codecs.
+     *
+     * @param mask The codecs supported by every peer
+     * @return The most preferred codec in the mask, or PCM if there is none
+     */
+    public static AudioCodec preferred(int mask) {
+        for( AudioCodec codec : PREFERENCE ) {
+            if( (mask & mask(codec)) != 0 ) {
+                return codec;
+            }
+        }
+        return PCM;
+    }
+
+    /**
+     * Uncompressed audio, which every peer supports
+     */
+    private static final class PcmCodec implements AudioCodec {
+        public byte getId() {
+            return 0;
+        }
+
+        public String getName() {
+            return "PCM";
+        }
+
+        public int getMaxEncodedSize(int sampleCount) {
+            return sampleCount * 2;
+        }
+
+        public int encode(short[] samples, int count, byte[] out, int outOffset) {
+            return AudioStream.toBytes(samples, count, out, outOffset);
+        }
+
+        public int decode(byte[] data, int offset, int length, short[] samples) {
+            return AudioStream.toSamples(data, offset, length, samples);
+        }
+    }
+
+    /**
+     * The mu-law companding from G.711, which keeps the precision of quiet samples at the cost of
+     * loud ones
+     */
+    private static final class MuLawCodec implements AudioCodec {
+        private static final int BIAS = 0x84;
+        private static final int CLIP = 32635;
+
+        private final short[] decodeTable;
+
+        MuLawCodec() {
+            this.decodeTable = new short[256];
+            for( int i = 0; i < 256; i++ ) {
+                int value = ~i & 0xFF;
+                int exponent = (value >> 4) & 0x07;
+                int mantissa = value & 0x0F;
+                int sample = (((mantissa << 3) + BIAS) << exponent) - BIAS;
+                decodeTable[i] = (short) ((value & 0x80) != 0 ? -sample : sample);
+            }
+        }
+
+        public byte getId() {
+            return 1;
+        }
+
+        public String getName() {
+            return "mu-law";
+        }
+
+        public int getMaxEncodedSize(int sampleCount) {
+            return sampleCount;
+        }
+
+        public int encode(short[] samples, int count, byte[] out, int outOffset) {
+            for( int i = 0; i < count; i++ ) {
+                int sample = samples[i];
+                int sign = 0;
+                if( sample < 0 ) {
+                    sign = 0x80;
+                    sample = -sample;
+                }
+
+                sample = Math.min(sample, CLIP) + BIAS;
+                int exponent = 31 - Integer.numberOfLeadingZeros(sample >> 7);
+                int mantissa = (sample >> (exponent + 3)) & 0x0F;
+                out[outOffset + i] = (byte) ~(sign | (exponent << 4) | mantissa);
+            }
+            return count;
+        }
+
+        public int decode(byte[] data, int offset, int length, short[] samples) {
+            for( int i = 0; i < length; i++ ) {
+                samples[i] = decodeTable[data[offset + i] & 0xFF];
+            }
+            return length;
+        }
+    }
+
+    /**
+     * IMA ADPCM, which codes the difference between each sample and a prediction in 4 bits. Each
+     * frame starts with a 4 byte header holding the first sample and the step index the frame
+     * starts from, so frames never depend on the state left behind by the one before.
+     */
+    private static final class ImaAdpcmCodec implements AudioCodec {
+        private static final int HEADER_SIZE = 4;
+
+        private static final int[] INDEX_TABLE = { -1, -1, -1, -1, 2, 4, 6, 8 };
+
+        private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55,
+            60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411,
+            1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500,
+            20350, 22385, 24623, 27086, 29794, 32767
+        };
+
+        public byte getId() {
+            return 2;
+        }
+
+        public String getName() {
+            return "IMA ADPCM";
+        }
+
+        public int getMaxEncodedSize(int sampleCount) {
+            return HEADER_SIZE + (sampleCount + 1) / 2;
+        }
+
+        public int encode(short[] samples, int count, byte[] out, int outOffset) {
+            if( count == 0 ) {
+                return 0;
+            }
+
+            int predictor = samples[0];
+            int index = initialIndex(samples, count);
+
+            out[outOffset] = (byte) (predictor >> 8);
+            out[outOffset + 1] = (byte) predictor;
+            out[outOffset + 2] = (byte) index;
+            out[outOffset + 3] = 0;
+
+            int pos = outOffset + HEADER_SIZE;
+            for( int i = 0; i < count; i++ ) {
+                int step = STEP_TABLE[index];
+                int diff = samples[i] - predictor;
+
+                int nibble = 0;
+                if( diff < 0 ) {
+                    nibble = 8;
+                    diff = -diff;
+                }
+
+                int delta = step >> 3;
+                if( diff >= step ) {
+                    nibble |= 4;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if( diff >= step ) {
+                    nibble |= 2;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if( diff >= step ) {
+                    nibble |= 1;
+                    delta += step;
+                }
+
+                // Track the prediction the decoder will make, not the real sample
+                predictor = clamp(predictor + ((nibble & 8) != 0 ? -delta : delta));
+                index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble & 7]));
+
+                if( (i & 1) == 0 ) {
+                    out[pos] = (byte) (nibble << 4);
+                } else {
+                    out[pos++] |= (byte) nibble;
+                }
+            }
+
+            return pos - outOffset + (count & 1);
+        }
+
+        public int decode(byte[] data, int offset, int length, short[] samples) {
+            if( length < HEADER_SIZE ) {
+                return 0;
+            }
+
+            int predictor = (short) (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+            int index = Math.max(0, Math.min(88, data[offset + 2]));
+
+            int count = Math.min((length - HEADER_SIZE) * 2, samples.length);
+            for( int i = 0; i < count; i++ ) {
+                int packed = data[offset + HEADER_SIZE + (i >> 1)];
+                int nibble = (i & 1) == 0 ? (packed >> 4) & 0x0F : packed & 0x0F;
+
+                int step = STEP_TABLE[index];
+                int delta = step >> 3;
+                if( (nibble & 4) != 0 ) {
+                    delta += step;
+                }
+                if( (nibble & 2) != 0 ) {
+                    delta += step >> 1;
+                }
+                if( (nibble & 1) != 0 ) {
+                    delta += step >> 2;
+                }
+
+                predictor = clamp(predictor + ((nibble & 8) != 0 ? -delta : delta));
+                index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble & 7]));
+                samples[i] = (short) predictor;
+            }
+
+            return count;
+        }
+
+        /**
+         * Picks the step index to start a frame from, based on how quickly its first few samples
+         * change, so that the start of a frame is not spent adapting.
+         */
+        private static int initialIndex(short[] samples, int count) {
+            int span = Math.min(count, 8);
+            int total = 0;
+            for( int i = 1; i < span; i++ ) {
+                total += Math.abs(samples[i] - samples[i - 1]);
+            }
+
+            int average = span > 1 ? total / (span - 1) : 0;
+            int index = 0;
+            while( index < 88 && STEP_TABLE[index] < average ) {
+                index++;
+            }
+            return index;
+        }
+
+        private static int clamp(int sample) {
+            return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.Serializable;
+
+/**
+ * The payload used to stream live audio to a room. While a user holds the push to talk key their
+ * microphone is read in short frames, and each frame is sent as its own AUDIO message as soon as
+ * it has been captured. A stream is identified by the id of the user talking together with a
+ * stream id chosen by that user, and ends with a frame marked as the last.
+ *
+ * Audio is 8kHz, 16 bit, signed, mono PCM, compressed by the AudioCodec negotiated for the room.
+ * Each frame names the codec it was encoded with.
+ */
+public final class AudioStream {
+
+    /**
+     * The number of samples per second
+     */
+    public static final int SAMPLE_RATE = 8000;
+
+    /**
+     * The length of audio carried by each frame
+     */
+    public static final int FRAME_MILLIS = 20;
+
+    /**
+     * The number of samples in each frame
+     */
+    public static final int SAMPLES_PER_FRAME = SAMPLE_RATE * FRAME_MILLIS / 1000;
+
+    /**
+     * The number of bytes of PCM in each frame
+     */
+    public static final int FRAME_SIZE = SAMPLES_PER_FRAME * 2;
+
+    private AudioStream() { }
+
+    /**
+     * Converts big-endian PCM bytes to samples.
+     *
+     * @return The number of samples written
+     */
+    public static int toSamples(byte[] pcm, int offset, int length, short[] samples) {
+        int count = Math.min(length / 2, samples.length);
+        for( int i = 0; i < count; i++ ) {
+            int pos = offset + i * 2;
+            samples[i] = (short) ((pcm[pos] << 8) | (pcm[pos + 1] & 0xFF));
+        }
+        return count;
+    }
+
+    /**
+     * Converts samples to big-endian PCM bytes.
+     *
+     * @return The number of bytes written
+     */
+    public static int toBytes(short[] samples, int count, byte[] pcm, int offset) {
+        for( int i = 0; i < count; i++ ) {
+            pcm[offset + i * 2] = (byte) (samples[i] >> 8);
+            pcm[offset + i * 2 + 1] = (byte) samples[i];
+        }
+        return count * 2;
+    }
+
+    /**
+     * A single frame of audio
+     */
+    public static final class Frame implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final int streamId;
+        public final int sequence;
+        public final long timestamp;
+        public final boolean last;
+        public final byte codec;
+        public final byte[] data;
+
+        /**
+         * @param streamId The stream the frame belongs to
+         * @param sequence The position of the frame in its stream, starting from 0
+         * @param timestamp When the frame was captured, in milliseconds since the epoch
+         * @param last Whether this is the final frame of the stream
+         * @param data The audio as uncompressed PCM, which may be empty in the final frame
+         */
+        public Frame(int streamId, int sequence, long timestamp, boolean last, byte[] data) {
+            this(streamId, sequence, timestamp, last, AudioCodecs.PCM.getId(), data);
+        }
+
+        /**
+         * @param codec The id of the AudioCodec the data was encoded with
+         * @param data The encoded audio, which may be empty in the final frame
+         */
+        public Frame(int streamId, int sequence, long timestamp, boolean last, byte codec,
+                byte[] data) {
+            this.streamId = streamId;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.last = last;
+            this.codec = codec;
+            this.data = data;
+        }
+    }
+}
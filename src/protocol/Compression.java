@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates binary payloads for peers that have agreed to compression. Each payload is compressed
+ * on its own against a preset dictionary of text that is common in chat traffic, rather than as
+ * part of a stream that runs for the life of the connection. That costs a little ratio on long
+ * conversations, but it means a compressed frame does not depend on what else has been sent to
+ * the same peer, so the server can compress a message once and send the same bytes to everyone
+ * in a room. The dictionary is what keeps short chat messages worth compressing.
+ *
+ * Deflaters and inflaters hold native memory, so they are pooled rather than created for every
+ * frame or kept for every thread.
+ */
+public final class Compression {
+
+    /**
+     * The level payloads are deflated at, which favours speed since most frames are small
+     */
+    public static final int LEVEL = 4;
+
+    // Bodies are only sniffed this far into, which is enough to judge them
+    private static final int SAMPLE_SIZE = 4096;
+
+    // Bodies whose bytes are spread more evenly than this, in bits per byte, are already compressed
+    private static final double MAX_ENTROPY = 7.5;
+
+    // The start of file formats that are compressed already
+    private static final byte[][] COMPRESSED_MAGIC = {
+        { 'P', 'K', 3, 4 },                             // zip, jar, docx, apk
+        { 0x1F, (byte) 0x8B },                          // gzip
+        { 'B', 'Z', 'h' },                              // bzip2
+        { (byte) 0xFD, '7', 'z', 'X', 'Z' },            // xz
+        { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD },       // zstd
+        { '7', 'z', (byte) 0xBC, (byte) 0xAF },         // 7-zip
+        { 'R', 'a', 'r', '!' },                         // rar
+        { (byte) 0x89, 'P', 'N', 'G' },                 // png
+        { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF },      // jpeg
+        { 'G', 'I', 'F', '8' },                         // gif
+        { 'O', 'g', 'g', 'S' },                         // ogg
+        { 'f', 'L', 'a', 'C' },                         // flac
+        { 'I', 'D', '3' },                              // mp3
+    };
+
+    // Text that is likely to turn up in chat traffic. Deflate matches against the end of the
+    // dictionary most cheaply, so the most common text goes last.
+    private static final byte[] DICTIONARY = (
+        "Server is not a valid room id! Could not find room with id is no longer available "
+        + "has joined the server! has joined the room has disconnected from "
+        + "Welcome to room You have connected to [Audio Message] Would you like to download it? "
+        + "https://www. http://www. .com .org .net .txt .png .jpg .pdf .zip "
+        + "because before after about again could would should there their they're "
+        + "what when where which while with without your you're you are I'm I am "
+        + "it's that this have has had been just know think want need like really "
+        + "yeah yes no not okay ok thanks thank you sorry please lol haha :) :( :D "
+        + "the and for but so to of in on at is it be do can will was we he she "
+        + "Hello hello Hi hi Hey hey "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    private Compression() { }
+
+    /**
+     * Deflates part of a buffer.
+     *
+     * @param data The buffer holding the bytes to deflate
+     * @param offset Where the bytes start
+     * @param length How many bytes there are
+     * @param out Where to write the deflated bytes
+     * @param outOffset Where in out to start writing
+     * @param outLength The most bytes that may be written
+     * @return The number of bytes written, or -1 if they did not fit in outLength
+     */
+    public static int deflate(byte[] data, int offset, int length, byte[] out, int outOffset,
+            int outLength) {
+        Deflater deflater = DEFLATERS.poll();
+        if( deflater == null ) {
+            deflater = new Deflater(LEVEL, true);
+        }
+
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            int written = 0;
+            while( !deflater.finished() && written < outLength ) {
+                written += deflater.deflate(out, outOffset + written, outLength - written);
+            }
+            return deflater.finished() ? written : -1;
+        } finally {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+        }
+    }
+
+    /**
+     * Inflates bytes that were written by deflate.
+     *
+     * @param length The number of deflated bytes
+     * @param inflatedLength The number of bytes they inflate to
+     * @return The inflated bytes
+     */
+    public static byte[] inflate(byte[] data, int offset, int length, int inflatedLength)
+            throws IOException {
+        Inflater inflater = INFLATERS.poll();
+        if( inflater == null ) {
+            inflater = new Inflater(true);
+        }
+
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(data, offset, length);
+
+            byte[] inflated = new byte[inflatedLength];
+            int read = 0;
+            while( read < inflatedLength && !inflater.finished() ) {
+                int count = inflater.inflate(inflated, read, inflatedLength - read);
+                if( count == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+                    break;
+                }
+                read += count;
+            }
+
+            if( read != inflatedLength ) {
+                throw new IOException("Compressed payload inflated to the wrong length");
+            }
+            return inflated;
+        } catch( DataFormatException dfe ) {
+            throw new IOException("Corrupt compressed payload", dfe);
+        } finally {
+            inflater.reset();
+            INFLATERS.offer(inflater);
+        }
+    }
+
+    /**
+     * Decides whether the contents of a message are worth compressing. Audio has already been
+     * compressed by its codec, and file data is sniffed so that files which are compressed
+     * already are not deflated a second time for nothing.
+     */
+    public static boolean worthCompressing(Object contents) {
+        if( contents instanceof AudioStream.Frame ) {
+            return false;
+        } else if( contents instanceof FileTransfer.Chunk ) {
+            FileTransfer.Chunk chunk = (FileTransfer.Chunk) contents;
+            return isCompressible(chunk.data, 0, chunk.data.length, chunk.offset == 0);
+        } else if( contents instanceof byte[] ) {
+            byte[] data = (byte[]) contents;
+            return isCompressible(data, 0, data.length, true);
+        }
+        return true;
+    }
+
+    /**
+     * Sniffs some bytes to see whether they would compress.
+     *
+     * @param startOfFile Whether the bytes are the start of a file, which lets them be
+     * recognised by their format
+     */
+    public static boolean isCompressible(byte[] data, int offset, int length,
+            boolean startOfFile) {
+        if( startOfFile ) {
+            for( byte[] magic : COMPRESSED_MAGIC ) {
+                if( startsWith(data, offset, length, magic) ) {
+                    return false;
+                }
+            }
+        }
+
+        return entropy(data, offset, Math.min(length, SAMPLE_SIZE)) <= MAX_ENTROPY;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if( length < prefix.length ) {
+            return false;
+        }
+        for( int i = 0; i < prefix.length; i++ ) {
+            if( data[offset + i] != prefix[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The Shannon entropy of some bytes, in bits per byte
+     */
+    private static double entropy(byte[] data, int offset, int length) {
+        if( length == 0 ) {
+            return 0;
+        }
+
+        int[] counts = new int[256];
+        for( int i = offset; i < offset + length; i++ ) {
+            counts[data[i] & 0xFF]++;
+        }
+
+        double entropy = 0;
+        for( int count : counts ) {
+            if( count > 0 ) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.function.ToIntFunction;
+
+/**
+ * Decides which thread a MessageHandler is run on when a message it handles arrives. Handlers are
+ * run inline on the thread that read the message unless they say otherwise, which is the cheapest
+ * option but means a slow handler holds up every message read after it.
+ */
+public final class ExecutionPolicy {
+
+    /**
+     * The ways a handler can be run
+     */
+    public enum Kind {
+        /**
+         * On the thread that read the message
+         */
+        INLINE,
+
+        /**
+         * On a thread of its own for the message type, one message at a time in the order they
+         * were read
+         */
+        PER_TYPE,
+
+        /**
+         * On one of a shared set of threads chosen by a key taken from the message. Messages with
+         * the same key are handled one at a time in the order they were read, even across
+         * message types, while messages with different keys can be handled in parallel.
+         */
+        ORDERED
+    }
+
+    /**
+     * Run on the thread that read the message
+     */
+    public static final ExecutionPolicy INLINE = new ExecutionPolicy(Kind.INLINE, null);
+
+    /**
+     * Run on a thread dedicated to the message type
+     */
+    public static final ExecutionPolicy PER_TYPE = new ExecutionPolicy(Kind.PER_TYPE, null);
+
+    /**
+     * Run in order with everything else from the same sender. The server sets the sender id of
+     * every message it reads to the id of the connection it came from, so a client cannot choose
+     * the thread its messages are run on.
+     */
+    public static final ExecutionPolicy BY_SENDER = orderedBy(Message::getSenderId);
+
+    public final Kind kind;
+    final ToIntFunction<Message<?>> key;
+
+    private ExecutionPolicy(Kind kind, ToIntFunction<Message<?>> key) {
+        this.kind = kind;
+        this.key = key;
+    }
+
+    /**
+     * @param key Picks the key from a message. Messages with the same key are run in order.
+     * @return A policy that runs handlers in order for each key
+     */
+    public static ExecutionPolicy orderedBy(ToIntFunction<Message<?>> key) {
+        return new ExecutionPolicy(Kind.ORDERED, key);
+    }
+
+    @Override
+    public String toString() {
+        return kind.toString();
+    }
+}
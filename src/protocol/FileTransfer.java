@@ -0,0 +1,118 @@
+import java.io.Serializable;
+
+/**
+ * The payloads used to stream a file to a room. A transfer is made up of a FILE message holding a
+ * Header, any number of FILE_CHUNK messages holding fixed size Chunks, and a FILE_END message
+ * holding the checksum of the whole file. Transfers are identified by the id of the user sending
+ * the file together with a transfer id chosen by that user.
+ *
+ * Chunks are flow controlled. A sender may only have WINDOW chunks that the server has not yet
+ * finished relaying, and the server returns a FILE_CREDIT for each chunk once every recipient has
+ * been sent it. A receiver that misses part of a file sends a FILE_RESUME to the sender with the
+ * offset it has received up to, and the sender streams the rest of the file to that receiver alone.
+ *
+ * A server may instead spool files to disk. It then grants credits as soon as each chunk has been
+ * written to the spool, and announces the file to the room with an on demand Header. Nothing more
+ * is sent to a receiver until it asks for the file with a FILE_RESUME, which the server answers
+ * from the spool rather than passing on to the sender.
+ */
+public final class FileTransfer {
+
+    /**
+     * The number of bytes of the file carried by each chunk
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The number of chunks a sender may have in flight for each transfer
+     */
+    public static final int WINDOW = 8;
+
+    /**
+     * The recipient of a chunk that is being sent to the whole room
+     */
+    public static final int ALL_RECIPIENTS = -1;
+
+    private FileTransfer() { }
+
+    /**
+     * Announces a new file to a room
+     */
+    public static final class Header implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final int transferId;
+        public final String fileName;
+        public final long size;
+        public final boolean onDemand;
+
+        public Header(int transferId, String fileName, long size) {
+            this(transferId, fileName, size, false);
+        }
+
+        /**
+         * @param onDemand Whether receivers have to ask for the file rather than having it pushed
+         */
+        public Header(int transferId, String fileName, long size, boolean onDemand) {
+            this.transferId = transferId;
+            this.fileName = fileName;
+            this.size = size;
+            this.onDemand = onDemand;
+        }
+    }
+
+    /**
+     * A piece of a file starting at the given offset
+     */
+    public static final class Chunk implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final int transferId;
+        public final long offset;
+        public final int recipient;
+        public final byte[] data;
+
+        public Chunk(int transferId, long offset, int recipient, byte[] data) {
+            this.transferId = transferId;
+            this.offset = offset;
+            this.recipient = recipient;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Marks the end of a file, giving the CRC32 of its contents
+     */
+    public static final class End implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final int transferId;
+        public final long size;
+        public final long checksum;
+
+        public End(int transferId, long size, long checksum) {
+            this.transferId = transferId;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Controls the flow of a transfer. As a FILE_CREDIT it returns one chunk of window to the
+     * sender. As a FILE_RESUME it asks the owner of the transfer (or the server, for a spooled
+     * file) to send everything from the offset onwards to the user that sent it.
+     */
+    public static final class Control implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final int transferId;
+        public final int ownerId;
+        public final long offset;
+
+        public Control(int transferId, int ownerId, long offset) {
+            this.transferId = transferId;
+            this.ownerId = ownerId;
+            this.offset = offset;
+        }
+    }
+}
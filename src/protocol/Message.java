@@ -11,8 +11,9 @@ public final class Message<E extends Serializable> implements Serializable {
     private final MessageType type;
     private final E messageContents;
 
-    // This gets set by the server
+    // These get set by the server. An id of 0 means the message has not been given one.
     private int senderId;
+    private long id;
 
     public Message(String from, int destination, E contents, MessageType type) {
         this.senderName = from;
@@ -29,6 +30,18 @@ public final class Message<E extends Serializable> implements Serializable {
         return this.senderId;
     }
 
+    /**
+     * The server gives every message sent to a room an id that is unique across the whole cluster
+     * and increases over time, so that the same message can be recognized wherever it turns up.
+     */
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
     public String getSender() {
         return this.senderName;
     }
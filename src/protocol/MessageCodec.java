@@ -0,0 +1,697 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Frames messages on the wire. Every message is written as a 4 byte big-endian length followed by
+ * that many bytes of payload. Framing each message separately (rather than sharing a single object
+ * stream for the lifetime of the socket) means that a reader never has to block part way through
+ * an object, which is what allows the non-blocking server to decode messages from partial reads.
+ *
+ * A payload is in one of three formats. The serialized format is plain Java serialization of the
+ * message. The binary format is a compact encoding that is written and read by hand:
+ *
+ * <pre>
+ *   version    1 byte  (BINARY_VERSION, or BINARY_ID_VERSION for a message with an id)
+ *   type       1 byte  (MessageType ordinal)
+ *   id         varlong, only for BINARY_ID_VERSION
+ *   senderId   zig-zag varint
+ *   room       zig-zag varint
+ *   sender     varint length + 1 (0 for null), followed by UTF-8 bytes
+ *   contents   1 byte tag, followed by the tagged value
+ * </pre>
+ *
+ * Strings, ints, byte arrays and the FileTransfer and AudioStream payloads have their own tags.
+ * Any other contents fall back to being serialized.
+ *
+ * The compressed format wraps a binary payload, deflated by Compression when that makes it
+ * smaller and stored as it is otherwise:
+ *
+ * <pre>
+ *   version    1 byte  (COMPRESSED_VERSION)
+ *   method     1 byte  (STORED or DEFLATED)
+ *   length     varint length of the binary payload, only when DEFLATED
+ *   payload    the binary payload, deflated or stored
+ * </pre>
+ *
+ * Readers tell the formats apart from the first byte of the payload, since a serialization stream
+ * always starts with 0xAC. A peer that sends binary frames is assumed to be able to read them,
+ * and the same goes for compressed frames.
+ */
+public final class MessageCodec {
+
+    /**
+     * The formats a payload can be written in
+     */
+    public enum Format {
+        SERIALIZED,
+        BINARY,
+        COMPRESSED
+    }
+
+    /**
+     * The size of the length prefix in front of every frame
+     */
+    public static final int HEADER_SIZE = 4;
+
+    /**
+     * Frames larger than this are treated as a protocol error
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The first byte of every binary payload
+     */
+    public static final byte BINARY_VERSION = 1;
+
+    /**
+     * The first byte of every compressed payload
+     */
+    public static final byte COMPRESSED_VERSION = 2;
+
+    /**
+     * The first byte of a binary payload that carries a message id. Messages without one are
+     * written as BINARY_VERSION, exactly as they were before ids were added.
+     */
+    public static final byte BINARY_ID_VERSION = 3;
+
+    // How a compressed payload holds the binary payload inside it
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+    private static final int COMPRESSED_HEADER_SIZE = 2;
+
+    // Binary payloads shorter than this are never worth deflating
+    private static final int MIN_DEFLATE_SIZE = 32;
+
+    // Tags for the contents of a binary message
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_BYTES = 3;
+    private static final byte TAG_SERIALIZED = 4;
+    private static final byte TAG_FILE_HEADER = 5;
+    private static final byte TAG_FILE_CHUNK = 6;
+    private static final byte TAG_FILE_END = 7;
+    private static final byte TAG_FILE_CONTROL = 8;
+    private static final byte TAG_AUDIO_FRAME = 9;
+
+    // Enough room for the fixed fields of any contents: three varlongs and a varint
+    private static final int MAX_FIELDS_SIZE = 40;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private MessageCodec() { }
+
+    /**
+     * Encodes a message into a complete serialized frame, including the length prefix.
+     *
+     * @param message The message to encode
+     * @return The bytes of the frame
+     */
+    public static <E extends Serializable> byte[] encodeFrame(Message<E> message) throws IOException {
+        return encodeFrame(message, Format.SERIALIZED);
+    }
+
+    /**
+     * Encodes a message into a complete frame, including the length prefix.
+     *
+     * @param message The message to encode
+     * @param format The format to write the payload in
+     * @return The bytes of the frame
+     */
+    public static <E extends Serializable> byte[] encodeFrame(Message<E> message, Format format)
+            throws IOException {
+        byte[] frame;
+        switch( format ) {
+            case BINARY:
+                frame = encodeBinary(message, 0);
+                break;
+            case COMPRESSED:
+                frame = encodeCompressed(message);
+                break;
+            default:
+                frame = encodeSerialized(message);
+                break;
+        }
+
+        int length = frame.length - HEADER_SIZE;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+
+        return frame;
+    }
+
+    private static byte[] encodeSerialized(Message<?> message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        // Reserve space for the length, which is filled in once the payload has been written
+        bytes.write(new byte[HEADER_SIZE]);
+        try( ObjectOutputStream oos = new ObjectOutputStream(bytes) ) {
+            oos.writeObject(message);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a message as a binary payload.
+     *
+     * @param reserve How many bytes to leave free between the length prefix and the payload
+     */
+    private static byte[] encodeBinary(Message<?> message, int reserve) throws IOException {
+        String sender = message.getSender();
+        byte[] senderBytes = sender == null ? null : sender.getBytes(StandardCharsets.UTF_8);
+        Object contents = message.getContents();
+
+        // Work out the encoded form of the contents, which is a few small fields followed by an
+        // optional body that is copied straight into the frame
+        byte tag;
+        byte[] fields = new byte[MAX_FIELDS_SIZE];
+        int fieldsLength = 0;
+        byte[] body = null;
+
+        if( contents == null ) {
+            tag = TAG_NULL;
+        } else if( contents instanceof String ) {
+            tag = TAG_STRING;
+            body = ((String) contents).getBytes(StandardCharsets.UTF_8);
+            fieldsLength = writeVarInt(fields, 0, body.length);
+        } else if( contents instanceof Integer ) {
+            tag = TAG_INT;
+            fieldsLength = writeVarInt(fields, 0, zigZag((Integer) contents));
+        } else if( contents instanceof byte[] ) {
+            tag = TAG_BYTES;
+            body = (byte[]) contents;
+            fieldsLength = writeVarInt(fields, 0, body.length);
+        } else if( contents instanceof FileTransfer.Chunk ) {
+            FileTransfer.Chunk chunk = (FileTransfer.Chunk) contents;
+            tag = TAG_FILE_CHUNK;
+            body = chunk.data;
+            fieldsLength = writeVarInt(fields, fieldsLength, chunk.transferId);
+            fieldsLength = writeVarLong(fields, fieldsLength, chunk.offset);
+            fieldsLength = writeVarInt(fields, fieldsLength, zigZag(chunk.recipient));
+            fieldsLength = writeVarInt(fields, fieldsLength, body.length);
+        } else if( contents instanceof FileTransfer.Control ) {
+            FileTransfer.Control control = (FileTransfer.Control) contents;
+            tag = TAG_FILE_CONTROL;
+            fieldsLength = writeVarInt(fields, fieldsLength, control.transferId);
+            fieldsLength = writeVarInt(fields, fieldsLength, zigZag(control.ownerId));
+            fieldsLength = writeVarLong(fields, fieldsLength, control.offset);
+        } else if( contents instanceof FileTransfer.Header ) {
+            FileTransfer.Header header = (FileTransfer.Header) contents;
+            tag = TAG_FILE_HEADER;
+            body = header.fileName.getBytes(StandardCharsets.UTF_8);
+            fieldsLength = writeVarInt(fields, fieldsLength, header.transferId);
+            fieldsLength = writeVarLong(fields, fieldsLength, header.size);
+            fields[fieldsLength++] = (byte) (header.onDemand ? 1 : 0);
+            fieldsLength = writeVarInt(fields, fieldsLength, body.length);
+        } else if( contents instanceof AudioStream.Frame ) {
+            AudioStream.Frame frame = (AudioStream.Frame) contents;
+            tag = TAG_AUDIO_FRAME;
+            body = frame.data;
+            fieldsLength = writeVarInt(fields, fieldsLength, frame.streamId);
+            fieldsLength = writeVarInt(fields, fieldsLength, frame.sequence);
+            fieldsLength = writeVarLong(fields, fieldsLength, frame.timestamp);
+            fields[fieldsLength++] = (byte) (frame.last ? 1 : 0);
+            fields[fieldsLength++] = frame.codec;
+            fieldsLength = writeVarInt(fields, fieldsLength, body.length);
+        } else if( contents instanceof FileTransfer.End ) {
+            FileTransfer.End end = (FileTransfer.End) contents;
+            tag = TAG_FILE_END;
+            fieldsLength = writeVarInt(fields, fieldsLength, end.transferId);
+            fieldsLength = writeVarLong(fields, fieldsLength, end.size);
+            fieldsLength = writeVarLong(fields, fieldsLength, end.checksum);
+        } else {
+            tag = TAG_SERIALIZED;
+            body = serialize(contents);
+            fieldsLength = writeVarInt(fields, 0, body.length);
+        }
+
+        return assembleBinary(message.getType(), message.getId(), message.getSenderId(),
+                message.getDestination(), senderBytes, tag, fields, fieldsLength, body, reserve);
+    }
+
+    private static byte[] encodeCompressed(Message<?> message) throws IOException {
+        // The binary payload is written after the compressed header, so that it can be sent as it
+        // is if deflating it does not pay off
+        byte[] frame = encodeBinary(message, COMPRESSED_HEADER_SIZE);
+        frame[HEADER_SIZE] = COMPRESSED_VERSION;
+        frame[HEADER_SIZE + 1] = STORED;
+
+        int payloadStart = HEADER_SIZE + COMPRESSED_HEADER_SIZE;
+        int payloadLength = frame.length - payloadStart;
+        if( payloadLength < MIN_DEFLATE_SIZE
+                || !Compression.worthCompressing(message.getContents()) ) {
+            return frame;
+        }
+
+        // The deflated frame has to come out smaller than the stored one to be used
+        int deflatedStart = payloadStart + varIntSize(payloadLength);
+        byte[] deflated = new byte[frame.length];
+        int written = Compression.deflate(frame, payloadStart, payloadLength, deflated,
+                deflatedStart, frame.length - deflatedStart - 1);
+        if( written < 0 ) {
+            return frame;
+        }
+
+        deflated[HEADER_SIZE] = COMPRESSED_VERSION;
+        deflated[HEADER_SIZE + 1] = DEFLATED;
+        writeVarInt(deflated, payloadStart, payloadLength);
+        return Arrays.copyOf(deflated, deflatedStart + written);
+    }
+
+    /**
+     * Encodes the start of a binary FILE_CHUNK frame whose data is not included. The length prefix
+     * counts the data, so the frame is complete once exactly dataLength bytes of file have been
+     * written after it. This lets the server send chunks straight from a file to a socket.
+     *
+     * @return The bytes of the frame up to, but not including, the chunk data
+     */
+    public static byte[] encodeChunkPrefix(String sender, int senderId, int destination,
+            int transferId, long offset, int recipient, int dataLength) {
+        byte[] senderBytes = sender == null ? null : sender.getBytes(StandardCharsets.UTF_8);
+        byte[] fields = new byte[MAX_FIELDS_SIZE];
+        int fieldsLength = writeVarInt(fields, 0, transferId);
+        fieldsLength = writeVarLong(fields, fieldsLength, offset);
+        fieldsLength = writeVarInt(fields, fieldsLength, zigZag(recipient));
+        fieldsLength = writeVarInt(fields, fieldsLength, dataLength);
+
+        byte[] frame = assembleBinary(MessageType.FILE_CHUNK, 0, senderId, destination,
+                senderBytes, TAG_FILE_CHUNK, fields, fieldsLength, null, 0);
+
+        int length = frame.length - HEADER_SIZE + dataLength;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+
+        return frame;
+    }
+
+    private static byte[] assembleBinary(MessageType type, long id, int senderId, int destination,
+            byte[] senderBytes, byte tag, byte[] fields, int fieldsLength, byte[] body,
+            int reserve) {
+        // Size the frame exactly so that it only has to be allocated once
+        int senderLength = senderBytes == null ? 0 : senderBytes.length + 1;
+        int size = HEADER_SIZE + reserve + 2
+            + (id == 0 ? 0 : varLongSize(id))
+            + varIntSize(zigZag(senderId))
+            + varIntSize(zigZag(destination))
+            + varIntSize(senderLength) + (senderBytes == null ? 0 : senderBytes.length)
+            + 1 + fieldsLength + (body == null ? 0 : body.length);
+
+        byte[] frame = new byte[size];
+        int pos = HEADER_SIZE + reserve;
+        frame[pos++] = id == 0 ? BINARY_VERSION : BINARY_ID_VERSION;
+        frame[pos++] = (byte) type.ordinal();
+        if( id != 0 ) {
+            pos = writeVarLong(frame, pos, id);
+        }
+        pos = writeVarInt(frame, pos, zigZag(senderId));
+        pos = writeVarInt(frame, pos, zigZag(destination));
+        pos = writeVarInt(frame, pos, senderLength);
+        if( senderBytes != null ) {
+            System.arraycopy(senderBytes, 0, frame, pos, senderBytes.length);
+            pos += senderBytes.length;
+        }
+
+        frame[pos++] = tag;
+        System.arraycopy(fields, 0, frame, pos, fieldsLength);
+        pos += fieldsLength;
+        if( body != null ) {
+            System.arraycopy(body, 0, frame, pos, body.length);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Determines which format a payload has been written in.
+     *
+     * @param payload The buffer holding the payload
+     * @param offset The start of the payload (after the length prefix)
+     */
+    public static Format formatOf(byte[] payload, int offset) {
+        switch( payload[offset] ) {
+            case BINARY_VERSION:
+            case BINARY_ID_VERSION:
+                return Format.BINARY;
+            case COMPRESSED_VERSION:
+                return Format.COMPRESSED;
+            default:
+                return Format.SERIALIZED;
+        }
+    }
+
+    /**
+     * Reads the id of a message from a binary payload without decoding the rest of it.
+     *
+     * @param payload The buffer holding the payload
+     * @param offset The start of the payload (after the length prefix)
+     * @return The id of the message, or 0 if it has none or is not in the binary format
+     */
+    public static long idOf(byte[] payload, int offset) throws IOException {
+        if( payload[offset] != BINARY_ID_VERSION ) {
+            return 0;
+        }
+        return new Reader(payload, offset + 2, payload.length).readVarLong();
+    }
+
+    /**
+     * Decodes the payload of a single frame (not including its length prefix).
+     */
+    public static Message<?> decode(byte[] payload, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        Format format = length > 0 ? formatOf(payload, offset) : Format.SERIALIZED;
+        if( format == Format.BINARY ) {
+            return decodeBinary(payload, offset, length, true);
+        } else if( format == Format.COMPRESSED ) {
+            return decodeCompressed(payload, offset, length);
+        }
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(payload, offset, length);
+
+        try( ObjectInputStream ois = new ObjectInputStream(bytes) ) {
+            return (Message<?>) ois.readObject();
+        }
+    }
+
+    /**
+     * Decodes the payload of a single frame from a source that is not trusted with Java
+     * serialization. Only the binary format is accepted, and a message whose contents would have
+     * to be deserialized is refused rather than read.
+     */
+    public static Message<?> decodeUntrusted(byte[] payload, int offset, int length)
+            throws IOException {
+        if( length <= 0 || formatOf(payload, offset) != Format.BINARY ) {
+            throw new IOException("Payload is not in the binary format");
+        }
+
+        try {
+            return decodeBinary(payload, offset, length, false);
+        } catch( ClassNotFoundException cnfe ) {
+            throw new IOException(cnfe);
+        }
+    }
+
+    private static Message<?> decodeCompressed(byte[] payload, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        Reader reader = new Reader(payload, offset, offset + length);
+        reader.readByte();
+        byte method = reader.readByte();
+
+        byte[] inner = payload;
+        int innerOffset = offset + COMPRESSED_HEADER_SIZE;
+        int innerLength = length - COMPRESSED_HEADER_SIZE;
+
+        if( method == DEFLATED ) {
+            int inflatedLength = reader.readVarInt();
+            checkLength(inflatedLength);
+
+            int deflatedOffset = reader.pos;
+            inner = Compression.inflate(payload, deflatedOffset, offset + length - deflatedOffset,
+                    inflatedLength);
+            innerOffset = 0;
+            innerLength = inflatedLength;
+        } else if( method != STORED ) {
+            throw new IOException(String.format("Unknown compression method %d", method));
+        }
+
+        if( innerLength <= 0 || formatOf(inner, innerOffset) != Format.BINARY ) {
+            throw new IOException("Compressed payload does not hold a binary payload");
+        }
+        return decodeBinary(inner, innerOffset, innerLength, true);
+    }
+
+    private static Message<?> decodeBinary(byte[] payload, int offset, int length,
+            boolean allowSerialized) throws IOException, ClassNotFoundException {
+        Reader reader = new Reader(payload, offset, offset + length);
+        byte version = reader.readByte();
+
+        int typeIndex = reader.readByte() & 0xFF;
+        if( typeIndex >= TYPES.length ) {
+            throw new IOException(String.format("Unknown message type %d", typeIndex));
+        }
+        MessageType type = TYPES[typeIndex];
+
+        long id = version == BINARY_ID_VERSION ? reader.readVarLong() : 0;
+
+        int senderId = unZigZag(reader.readVarInt());
+        int destination = unZigZag(reader.readVarInt());
+
+        String sender = null;
+        int senderLength = reader.readVarInt();
+        if( senderLength > 0 ) {
+            sender = reader.readString(senderLength - 1);
+        }
+
+        Serializable contents;
+        byte tag = reader.readByte();
+        switch( tag ) {
+            case TAG_NULL:
+                contents = null;
+                break;
+            case TAG_STRING:
+                contents = reader.readString(reader.readVarInt());
+                break;
+            case TAG_INT:
+                contents = unZigZag(reader.readVarInt());
+                break;
+            case TAG_BYTES:
+                contents = reader.readBytes(reader.readVarInt());
+                break;
+            case TAG_SERIALIZED:
+                if( !allowSerialized ) {
+                    throw new IOException("Serialized contents are not accepted");
+                }
+                contents = deserialize(reader.readBytes(reader.readVarInt()));
+                break;
+            case TAG_FILE_CHUNK: {
+                int transferId = reader.readVarInt();
+                long fileOffset = reader.readVarLong();
+                int recipient = unZigZag(reader.readVarInt());
+                byte[] data = reader.readBytes(reader.readVarInt());
+                contents = new FileTransfer.Chunk(transferId, fileOffset, recipient, data);
+                break;
+            }
+            case TAG_FILE_CONTROL: {
+                int transferId = reader.readVarInt();
+                int ownerId = unZigZag(reader.readVarInt());
+                long fileOffset = reader.readVarLong();
+                contents = new FileTransfer.Control(transferId, ownerId, fileOffset);
+                break;
+            }
+            case TAG_FILE_HEADER: {
+                int transferId = reader.readVarInt();
+                long fileSize = reader.readVarLong();
+                boolean onDemand = reader.readByte() != 0;
+                String fileName = reader.readString(reader.readVarInt());
+                contents = new FileTransfer.Header(transferId, fileName, fileSize, onDemand);
+                break;
+            }
+            case TAG_FILE_END: {
+                int transferId = reader.readVarInt();
+                long fileSize = reader.readVarLong();
+                long checksum = reader.readVarLong();
+                contents = new FileTransfer.End(transferId, fileSize, checksum);
+                break;
+            }
+            case TAG_AUDIO_FRAME: {
+                int streamId = reader.readVarInt();
+                int sequence = reader.readVarInt();
+                long timestamp = reader.readVarLong();
+                boolean last = reader.readByte() != 0;
+                byte codec = reader.readByte();
+                byte[] data = reader.readBytes(reader.readVarInt());
+                contents = new AudioStream.Frame(streamId, sequence, timestamp, last, codec,
+                        data);
+                break;
+            }
+            default:
+                throw new IOException(String.format("Unknown contents tag %d", tag));
+        }
+
+        Message<Serializable> message = new Message<>(sender, destination, contents, type);
+        message.setSenderId(senderId);
+        message.setId(id);
+        return message;
+    }
+
+    /**
+     * Writes a single serialized message to a stream. The stream is not flushed.
+     */
+    public static <E extends Serializable> void writeMessage(DataOutputStream out,
+            Message<E> message) throws IOException {
+        out.write(encodeFrame(message));
+    }
+
+    /**
+     * Writes a single message to a stream in the given format. The stream is not flushed.
+     */
+    public static <E extends Serializable> void writeMessage(DataOutputStream out,
+            Message<E> message, Format format) throws IOException {
+        out.write(encodeFrame(message, format));
+    }
+
+    /**
+     * Blocks until a complete frame has been read from the stream and returns its payload.
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        return payload;
+    }
+
+    /**
+     * Blocks until a complete frame has been read from the stream and returns the decoded message.
+     */
+    public static Message<?> readMessage(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte[] payload = readFrame(in);
+        return decode(payload, 0, payload.length);
+    }
+
+    /**
+     * Ensures that the length read from a frame header is sane.
+     */
+    public static void checkLength(int length) throws IOException {
+        if( length <= 0 || length > MAX_FRAME_SIZE ) {
+            throw new IOException(String.format("Invalid frame length %d", length));
+        }
+    }
+
+    private static byte[] serialize(Object contents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try( ObjectOutputStream oos = new ObjectOutputStream(bytes) ) {
+            oos.writeObject(contents);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Serializable deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try( ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes)) ) {
+            return (Serializable) ois.readObject();
+        }
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while( (value & ~0x7F) != 0 ) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while( (value & ~0x7FL) != 0 ) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarLong(byte[] buffer, int pos, long value) {
+        while( (value & ~0x7FL) != 0 ) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int writeVarInt(byte[] buffer, int pos, int value) {
+        while( (value & ~0x7F) != 0 ) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Reads the fields of a binary payload, checking that nothing reads past the end of the frame.
+     */
+    private static class Reader {
+        private final byte[] buffer;
+        private final int limit;
+        private int pos;
+
+        public Reader(byte[] buffer, int pos, int limit) {
+            this.buffer = buffer;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        private void require(int count) throws IOException {
+            if( count < 0 || limit - pos < count ) {
+                throw new IOException("Truncated binary message");
+            }
+        }
+
+        public byte readByte() throws IOException {
+            require(1);
+            return buffer[pos++];
+        }
+
+        public int readVarInt() throws IOException {
+            int value = 0;
+            for( int shift = 0; shift < 35; shift += 7 ) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if( (b & 0x80) == 0 ) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public long readVarLong() throws IOException {
+            long value = 0;
+            for( int shift = 0; shift < 70; shift += 7 ) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if( (b & 0x80) == 0 ) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varlong");
+        }
+
+        public String readString(int length) throws IOException {
+            require(length);
+            String value = new String(buffer, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        public byte[] readBytes(int length) throws IOException {
+            require(length);
+            byte[] value = Arrays.copyOfRange(buffer, pos, pos + length);
+            pos += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Passes messages to the handlers registered for their type, each run as its ExecutionPolicy
+ * says. Handlers are kept in an array indexed by the ordinal of their message type, so finding
+ * them costs an array read, and the array is replaced rather than changed when a handler is
+ * registered so that dispatching never takes a lock.
+ *
+ * Handlers that are not run inline are queued to single threads, which keeps their messages in
+ * order. The queues are bounded so that messages cannot pile up in memory behind a handler that
+ * cannot keep up. A message dispatched to a full queue is turned away, unless the dispatcher was
+ * made to wait for room instead. Waiting is only safe where the dispatching thread reads a single
+ * connection, since the threads are shared by everything dispatched to them and the wait would
+ * hold up every other connection read by the same thread.
+ *
+ * How long every handler takes is recorded, both waiting in its queue and running.
+ */
+public class MessageDispatcher {
+
+    /**
+     * What became of a dispatched message
+     */
+    public enum Result {
+        /**
+         * Every handler for the message's type has run or been queued to run
+         */
+        HANDLED,
+
+        /**
+         * There are no handlers for the message's type
+         */
+        UNHANDLED,
+
+        /**
+         * At least one handler's queue was full, so the message was not queued for it
+         */
+        REJECTED
+    }
+
+    // The most messages that may wait for any one handler thread
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final String name;
+    private final boolean waitWhenFull;
+
+    // The handlers for each message type, indexed by ordinal
+    private volatile Registration[][] handlers;
+
+    // Threads for PER_TYPE handlers, indexed by ordinal, and for ORDERED handlers, indexed by
+    // key. Both are created when first needed.
+    private final ExecutorService[] typeExecutors;
+    private final ExecutorService[] orderedExecutors;
+
+    /**
+     * Creates a dispatcher that turns messages away from full queues.
+     *
+     * @param name The start of the names of the threads handlers are run on
+     */
+    public MessageDispatcher(String name) {
+        this(name, false);
+    }
+
+    /**
+     * @param name The start of the names of the threads handlers are run on
+     * @param waitWhenFull Whether a thread dispatching to a full queue waits for room in it
+     */
+    public MessageDispatcher(String name, boolean waitWhenFull) {
+        this.name = name;
+        this.waitWhenFull = waitWhenFull;
+        this.handlers = new Registration[TYPES.length][0];
+        this.typeExecutors = new ExecutorService[TYPES.length];
+        this.orderedExecutors =
+            new ExecutorService[Math.max(2, Runtime.getRuntime().availableProcessors())];
+    }
+
+    /**
+     * Registers a handler for a type of message. Handlers for the same type are run in the order
+     * they were registered, except that any not run inline finish in their own time.
+     *
+     * @param type The type of messages that the handler can work with
+     * @param handler The handler to call with each message of the type
+     * @param policy How the handler should be run
+     */
+    public synchronized void register(MessageType type, MessageHandler handler,
+            ExecutionPolicy policy) {
+        Registration[] typeHandlers = handlers[type.ordinal()];
+        Registration registration = new Registration(type, typeHandlers.length, handler, policy);
+
+        if( policy.kind == ExecutionPolicy.Kind.PER_TYPE
+                && typeExecutors[type.ordinal()] == null ) {
+            typeExecutors[type.ordinal()] = newExecutor(name + "-" + type);
+        } else if( policy.kind == ExecutionPolicy.Kind.ORDERED
+                && orderedExecutors[0] == null ) {
+            for( int i = 0; i < orderedExecutors.length; i++ ) {
+                orderedExecutors[i] = newExecutor(name + "-ordered-" + i);
+            }
+        }
+
+        Registration[][] updated = handlers.clone();
+        updated[type.ordinal()] = Arrays.copyOf(typeHandlers, typeHandlers.length + 1);
+        updated[type.ordinal()][typeHandlers.length] = registration;
+        handlers = updated;
+    }
+
+    /**
+     * Passes a message to every handler registered for its type.
+     *
+     * @param message The message to handle
+     * @return What became of the message
+     */
+    public <E extends Serializable> Result dispatch(Message<E> message) {
+        Registration[] typeHandlers = handlers[message.getType().ordinal()];
+        if( typeHandlers.length == 0 ) {
+            return Result.UNHANDLED;
+        }
+
+        Result result = Result.HANDLED;
+        long dispatchedAt = System.nanoTime();
+        for( Registration registration : typeHandlers ) {
+            try {
+                switch( registration.policy.kind ) {
+                    case PER_TYPE:
+                        typeExecutors[message.getType().ordinal()].execute(
+                                () -> registration.run(message, dispatchedAt));
+                        break;
+                    case ORDERED:
+                        int key = registration.policy.key.applyAsInt(message);
+                        orderedExecutors[Math.floorMod(key, orderedExecutors.length)].execute(
+                                () -> registration.run(message, dispatchedAt));
+                        break;
+                    default:
+                        registration.run(message, dispatchedAt);
+                        break;
+                }
+            } catch( RejectedExecutionException ree ) {
+                // The other handlers still get the message
+                registration.rejected.increment();
+                result = Result.REJECTED;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return How every registered handler has performed so far
+     */
+    public List<HandlerStats> getStats() {
+        List<HandlerStats> stats = new ArrayList<>();
+        for( Registration[] typeHandlers : handlers ) {
+            for( Registration registration : typeHandlers ) {
+                stats.add(registration.snapshot());
+            }
+        }
+        return stats;
+    }
+
+    private ExecutorService newExecutor(String threadName) {
+        // Neither waiting for room nor turning the task away runs it on the caller, which would
+        // let it overtake the messages already queued for the same thread
+        RejectedExecutionHandler whenFull;
+        if( waitWhenFull ) {
+            whenFull = (task, executor) -> {
+                try {
+                    executor.getQueue().put(task);
+                } catch( InterruptedException ie ) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(ie);
+                }
+            };
+        } else {
+            whenFull = new ThreadPoolExecutor.AbortPolicy();
+        }
+
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(QUEUE_CAPACITY), task -> {
+                    Thread thread = new Thread(task, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }, whenFull);
+    }
+
+    /**
+     * A handler registered for one message type, along with how it has performed
+     */
+    private static final class Registration {
+        private final MessageType type;
+        private final int index;
+        private final MessageHandler handler;
+        private final ExecutionPolicy policy;
+
+        private final LongAdder handled = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder queuedNanos = new LongAdder();
+        private final LongAdder runNanos = new LongAdder();
+        private final AtomicLong maxRunNanos = new AtomicLong();
+
+        Registration(MessageType type, int index, MessageHandler handler,
+                ExecutionPolicy policy) {
+            this.type = type;
+            this.index = index;
+            this.handler = handler;
+            this.policy = policy;
+        }
+
+        <E extends Serializable> void run(Message<E> message, long dispatchedAt) {
+            long start = System.nanoTime();
+            try {
+                handler.recieveMessage(message);
+            } catch( RuntimeException re ) {
+                // One handler failing must not stop the others, or the thread that called it
+                failed.increment();
+                System.err.printf("Handler %s#%d failed on a message from %d\n", type, index,
+                        message.getSenderId());
+                re.printStackTrace();
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                handled.increment();
+                queuedNanos.add(start - dispatchedAt);
+                runNanos.add(elapsed);
+                maxRunNanos.accumulateAndGet(elapsed, Math::max);
+            }
+        }
+
+        HandlerStats snapshot() {
+            return new HandlerStats(type, index, policy, handled.sum(), failed.sum(),
+                    rejected.sum(), queuedNanos.sum(), runNanos.sum(), maxRunNanos.get());
+        }
+    }
+
+    /**
+     * How a single handler has performed
+     */
+    public static final class HandlerStats {
+        public final MessageType type;
+
+        // The position of the handler among those registered for its type
+        public final int index;
+        public final ExecutionPolicy policy;
+        public final long handled;
+        public final long failed;
+
+        // Messages turned away because the handler's queue was full
+        public final long rejected;
+        public final long queuedNanos;
+        public final long runNanos;
+        public final long maxRunNanos;
+
+        HandlerStats(MessageType type, int index, ExecutionPolicy policy, long handled,
+                long failed, long rejected, long queuedNanos, long runNanos, long maxRunNanos) {
+            this.type = type;
+            this.index = index;
+            this.policy = policy;
+            this.handled = handled;
+            this.failed = failed;
+            this.rejected = rejected;
+            this.queuedNanos = queuedNanos;
+            this.runNanos = runNanos;
+            this.maxRunNanos = maxRunNanos;
+        }
+
+        /**
+         * @return The average time from a message being dispatched to the handler starting on it
+         */
+        public long getMeanQueuedNanos() {
+            return handled == 0 ? 0 : queuedNanos / handled;
+        }
+
+        /**
+         * @return The average time the handler took to run
+         */
+        public long getMeanRunNanos() {
+            return handled == 0 ? 0 : runNanos / handled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s#%d (%s): %d handled, %d failed, %d rejected, %dus queued, "
+                    + "%dus run, %dus max", type, index, policy, handled, failed, rejected,
+                    getMeanQueuedNanos() / 1000, getMeanRunNanos() / 1000, maxRunNanos / 1000);
+        }
+    }
+}
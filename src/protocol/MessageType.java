@@ -9,7 +9,8 @@ public enum MessageType {
     CREATE_ROOM("createroom"),
 
     /**
-     * Joins a room which has already been created
+     * Joins a room which has already been created. The room id may be followed by how much of the
+     * room's history to be sent, either a number of messages or a time such as 30m, 2h or 1d
      */
     JOIN_ROOM("joinroom"),
 
@@ -80,6 +81,18 @@ public enum MessageType {
      */
     AUTHENTICATION,
 
+    /**
+     * Returns one chunk of window to the sender of a file once the server has finished relaying
+     * one of its chunks. The payload is a FileTransfer.Control.
+     */
+    FILE_CREDIT,
+
+    /**
+     * Tells the members of a room which codec to encode audio sent to that room with. The payload
+     * is the Integer id of an AudioCodec.
+     */
+    AUDIO_CODEC,
+
     /*********************************************************
      * CLIENT MESSAGES
      ********************************************************/
@@ -92,21 +105,76 @@ public enum MessageType {
 
     /**
      * A file message is when one client shares a file with a room. The payload of this kind of
-     * message would be the byte-data for the file.
+     * message is a FileTransfer.Header, and the file itself follows in FILE_CHUNK messages.
      */
     FILE,
 
     /**
-     * This is not going to be immediately implemented but refers to audio data being sent across
-     * a room. The payload for this message would be the byte data for the audio.
+     * A piece of a file being shared with a room. The payload is a FileTransfer.Chunk.
+     */
+    FILE_CHUNK,
+
+    /**
+     * Marks the end of a file being shared with a room. The payload is a FileTransfer.End.
+     */
+    FILE_END,
+
+    /**
+     * Sent by a receiver that is missing part of a file, asking the sender to send the rest of it
+     * again. For a file the server has spooled, this is also how a receiver asks for the file in
+     * the first place, and the server answers it. The payload is a FileTransfer.Control.
+     */
+    FILE_RESUME,
+
+    /**
+     * Live audio being streamed to a room while a user holds their push to talk key. The payload
+     * is an AudioStream.Frame holding 20ms of audio.
      */
     AUDIO,
 
+    /**
+     * Sent by a client once it has logged in to tell the server which audio codecs it can decode.
+     * The payload is an Integer mask with a bit set for the id of each codec.
+     */
+    AUDIO_CODECS,
+
     /**
      * This is the type of message sent when a user is authenticating with the server. The payload
      * of this message is a String, representing the user's client name.
      */
-    LOGIN_INFORMATION;
+    LOGIN_INFORMATION,
+
+    /*********************************************************
+     * SESSIONS
+     *
+     * These come last so that the types before them keep the
+     * ordinals they are written to the wire and history with.
+     ********************************************************/
+
+    /**
+     * Sent by the server after a successful login. The payload is a String token that the client
+     * can use to resume its session if its connection drops.
+     */
+    SESSION,
+
+    /**
+     * Sent by a client in place of logging in, to carry on a session after its connection dropped.
+     * The payload is a SessionResume.
+     */
+    RESUME,
+
+    /**
+     * Notifies a client that its session has been resumed, once it has been put back in each of
+     * its rooms and the messages it missed in them are on their way. The payload is a
+     * SessionResume.Resumed, with the name the client is logged in under and the rooms it may
+     * have missed more messages in than could be sent.
+     */
+    RESUME_SUCCESS,
+
+    /**
+     * Notifies a client that its session could not be resumed, after which it has to log in again.
+     */
+    RESUME_FAILURE;
 
     String commandString;
 
@@ -0,0 +1,68 @@
+import java.lang.reflect.Method;
+
+/**
+ * Starts the threads that block reading from sockets. Readers can be started either as regular
+ * platform threads or, on runtimes that support them, as virtual threads, which are cheap enough
+ * that one can be used per connection without tying up an operating system thread for each.
+ *
+ * Virtual threads are looked up reflectively so that the project still builds and runs on
+ * runtimes without them, in which case platform threads are used instead.
+ */
+public final class ReaderThreads {
+
+    // Thread.ofVirtual() and the methods of the builder it returns, if they exist
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_START;
+
+    static {
+        Method ofVirtual = null, builderName = null, builderStart = null;
+
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class);
+            builderStart = builder.getMethod("start", Runnable.class);
+        } catch( ReflectiveOperationException roe ) {
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_START = builderStart;
+    }
+
+    private ReaderThreads() { }
+
+    /**
+     * @return Whether or not this runtime is able to start virtual threads
+     */
+    public static boolean virtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Starts a thread to run a reader.
+     *
+     * @param name The name of the thread
+     * @param reader The read loop to run
+     * @param virtual Whether a virtual thread should be used. If virtual threads are not available
+     * a platform thread is used instead.
+     * @return The thread that was started
+     */
+    public static Thread start(String name, Runnable reader, boolean virtual) {
+        if( virtual && virtualThreadsAvailable() ) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_START.invoke(builder, reader);
+            } catch( ReflectiveOperationException roe ) {
+                System.err.println("Unable to start a virtual thread, using a platform thread");
+                roe.printStackTrace();
+            }
+        }
+
+        Thread thread = new Thread(reader, name);
+        thread.start();
+        return thread;
+    }
+}
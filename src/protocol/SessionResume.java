@@ -0,0 +1,66 @@
+import java.io.Serializable;
+
+/**
+ * Sent by a client that has lost its connection to ask the server to carry on its session rather
+ * than logging in again. The server gave the client a token for its session when it logged in, and
+ * holds on to the session for a while after the connection drops. If the client comes back in time
+ * it is put back in every room it was in without anyone being told it left, and is sent only the
+ * messages it missed.
+ *
+ * The client says what it missed by giving the id of the last chat message it saw in each room.
+ * Rooms keep their recent messages in the order they were sent, so everything after that message
+ * is what the client missed. A room the client saw nothing in, or whose last message has already
+ * been pushed out, is sent everything kept for it. The server says which rooms the last message
+ * had been pushed out of, since the client may have missed more than was kept.
+ */
+public final class SessionResume implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final String token;
+    public final int[] roomIds;
+    public final long[] lastMessageIds;
+
+    /**
+     * @param token The token the server gave the client when it logged in
+     * @param roomIds The rooms the client saw messages in
+     * @param lastMessageIds The id of the last chat message the client saw in each of those rooms
+     */
+    public SessionResume(String token, int[] roomIds, long[] lastMessageIds) {
+        this.token = token;
+        this.roomIds = roomIds;
+        this.lastMessageIds = lastMessageIds;
+    }
+
+    /**
+     * Sent back by the server once the session has been carried on.
+     */
+    public static final class Resumed implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String clientName;
+        public final int[] incompleteRoomIds;
+
+        /**
+         * @param clientName The name the client is logged in under
+         * @param incompleteRoomIds The rooms where the last message the client saw was no longer
+         * kept, so that the client was sent everything kept but may have missed messages before
+         * it
+         */
+        public Resumed(String clientName, int[] incompleteRoomIds) {
+            this.clientName = clientName;
+            this.incompleteRoomIds = incompleteRoomIds;
+        }
+    }
+
+    /**
+     * @return The id of the last chat message the client saw in a room, or 0 if it saw none
+     */
+    public long lastMessageId(int roomId) {
+        for( int i = 0; i < roomIds.length; i++ ) {
+            if( roomIds[i] == roomId ) {
+                return lastMessageIds[i];
+            }
+        }
+        return 0;
+    }
+}
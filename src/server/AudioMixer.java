@@ -0,0 +1,363 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Mixes the audio streamed to each room into a single stream. Without mixing every frame is sent
+ * to every member, so the traffic for a room grows with the number of speakers times the number
+ * of listeners. With mixing, the frames from every speaker are decoded as they arrive, and once
+ * per frame period the mixer adds together one frame from each speaker and sends the result out
+ * as one frame. Members who are not speaking all get the same frame, which is encoded once; each
+ * speaker gets the mix without their own voice in it.
+ *
+ * Each speaker's frames wait in a short queue ordered by sequence number, which lines up speakers
+ * whose frames arrive with different amounts of jitter. A speaker whose frame has not arrived by
+ * the time it is due is left out of that period's mix.
+ */
+public class AudioMixer {
+
+    // How many frames a speaker must have queued before they are mixed in, to absorb jitter
+    private static final int TARGET_DELAY_FRAMES = 2;
+
+    // The most frames a speaker may have queued before the oldest are skipped
+    private static final int MAX_DELAY_FRAMES = 6;
+
+    // The number of frames each speaker's queue can hold, which must be a power of two
+    private static final int QUEUE_CAPACITY = 8;
+
+    // How many empty periods a speaker is kept for after their last frame
+    private static final int IDLE_PERIODS = 25;
+
+    private static final long PERIOD_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(AudioStream.FRAME_MILLIS);
+
+    private final Server server;
+    private final Map<Integer, RoomMix> mixes;
+    private final AtomicInteger nextStreamId;
+
+    // Only used by the mixing thread
+    private final int[] total;
+    private final short[] samples;
+    private final byte[] encoded;
+
+    public AudioMixer(Server server) {
+        this.server = server;
+        this.mixes = new ConcurrentHashMap<>();
+        this.nextStreamId = new AtomicInteger();
+        this.total = new int[AudioStream.SAMPLES_PER_FRAME];
+        this.samples = new short[AudioStream.SAMPLES_PER_FRAME];
+        this.encoded = new byte[AudioStream.FRAME_SIZE * 2];
+    }
+
+    /**
+     * Starts mixing on a background thread.
+     */
+    public void start() {
+        Thread mixer = new Thread(this::mixPeriods, "audio-mixer");
+        mixer.setDaemon(true);
+        mixer.start();
+    }
+
+    /**
+     * Adds a frame from a speaker to the mix for a room.
+     *
+     * @param room The room the frame was sent to
+     * @param speaker The id of the user that sent it
+     * @param frame The frame of audio
+     */
+    public void offer(Room room, int speaker, AudioStream.Frame frame) {
+        AudioCodec codec = AudioCodecs.get(frame.codec);
+        if( codec == null ) {
+            return;
+        }
+
+        RoomMix mix = mixes.computeIfAbsent(room.getId(), id -> new RoomMix(room));
+        mix.offer(speaker, frame, codec);
+    }
+
+    /**
+     * Runs the mix for every room once per frame period, keeping to a fixed schedule so that a
+     * slow period does not push every later one back.
+     */
+    private void mixPeriods() {
+        long deadline = System.nanoTime();
+
+        while( true ) {
+            deadline += PERIOD_NANOS;
+            long now = System.nanoTime();
+            if( deadline > now ) {
+                LockSupport.parkNanos(deadline - now);
+            } else if( now - deadline > PERIOD_NANOS * MAX_DELAY_FRAMES ) {
+                // Too far behind to catch up, so skip the missed periods
+                deadline = now;
+            }
+
+            mixRooms();
+        }
+    }
+
+    /**
+     * Mixes a single period of audio for every room. Only the mixing thread calls this, apart
+     * from benchmarks that run the mixer without one.
+     */
+    void mixRooms() {
+        for( Iterator<RoomMix> iter = mixes.values().iterator(); iter.hasNext(); ) {
+            RoomMix mix = iter.next();
+            try {
+                if( !mix.mixPeriod() ) {
+                    iter.remove();
+                }
+            } catch( RuntimeException re ) {
+                ServerLog.error("Server -> Could not mix audio for %s: %s\n",
+                        mix.room.getName(), re);
+            }
+        }
+    }
+
+    /**
+     * The frames queued for a single speaker in a room, ordered by sequence number
+     */
+    private static final class SpeakerQueue {
+        private final short[][] slots;
+        private final int[] lengths;
+        private final boolean[] present;
+        private final short[] current;
+
+        private int streamId;
+        private int nextSequence;
+        private int highestSequence;
+        private boolean started;
+        private boolean ended;
+        private int idlePeriods;
+        private long timestamp;
+
+        // The length of the frame taken for this period, or 0 if the speaker is not in the mix
+        private int currentLength;
+
+        /**
+         * @param first The first frame to arrive from the speaker, which is not yet queued
+         */
+        SpeakerQueue(AudioStream.Frame first) {
+            this.slots = new short[QUEUE_CAPACITY][AudioStream.SAMPLES_PER_FRAME];
+            this.lengths = new int[QUEUE_CAPACITY];
+            this.present = new boolean[QUEUE_CAPACITY];
+            this.current = new short[AudioStream.SAMPLES_PER_FRAME];
+            restart(first.streamId, first.sequence);
+        }
+
+        private void restart(int newStreamId, int sequence) {
+            Arrays.fill(present, false);
+            this.streamId = newStreamId;
+            this.nextSequence = sequence;
+            this.highestSequence = sequence - 1;
+            this.started = false;
+            this.ended = false;
+        }
+
+        void offer(AudioStream.Frame frame, AudioCodec codec) {
+            if( frame.streamId != streamId ) {
+                restart(frame.streamId, frame.sequence);
+            } else if( !started && frame.sequence < nextSequence ) {
+                nextSequence = frame.sequence;
+            }
+
+            idlePeriods = 0;
+            if( frame.last ) {
+                ended = true;
+            }
+
+            if( frame.sequence < nextSequence || frame.data.length == 0 ) {
+                return;
+            }
+
+            // Skip ahead rather than let this speaker fall behind everyone else
+            if( frame.sequence - nextSequence >= MAX_DELAY_FRAMES ) {
+                skipTo(frame.sequence - TARGET_DELAY_FRAMES);
+            }
+
+            int slot = frame.sequence & (QUEUE_CAPACITY - 1);
+            lengths[slot] = codec.decode(frame.data, 0, frame.data.length, slots[slot]);
+            present[slot] = true;
+            highestSequence = Math.max(highestSequence, frame.sequence);
+            timestamp = frame.timestamp;
+        }
+
+        /**
+         * Takes this speaker's frame for the current period, if there is one.
+         */
+        void take() {
+            currentLength = 0;
+
+            if( !started ) {
+                if( highestSequence - nextSequence + 1 < TARGET_DELAY_FRAMES && !ended ) {
+                    idlePeriods++;
+                    return;
+                }
+                started = true;
+            }
+
+            int slot = nextSequence & (QUEUE_CAPACITY - 1);
+            if( present[slot] ) {
+                System.arraycopy(slots[slot], 0, current, 0, lengths[slot]);
+                currentLength = lengths[slot];
+                present[slot] = false;
+            }
+
+            if( nextSequence <= highestSequence ) {
+                nextSequence++;
+            } else {
+                idlePeriods++;
+            }
+        }
+
+        boolean isIdle() {
+            return (ended && nextSequence > highestSequence) || idlePeriods > IDLE_PERIODS;
+        }
+
+        private void skipTo(int sequence) {
+            while( nextSequence < sequence ) {
+                present[nextSequence & (QUEUE_CAPACITY - 1)] = false;
+                nextSequence++;
+            }
+        }
+    }
+
+    /**
+     * The speakers being mixed in a single room
+     */
+    private final class RoomMix {
+        private final Room room;
+        private final Map<Integer, SpeakerQueue> speakers;
+
+        // The stream the mix is sent as, which is a new one each time someone starts talking
+        private int streamId;
+        private int sequence;
+        private boolean streaming;
+
+        RoomMix(Room room) {
+            this.room = room;
+            this.speakers = new HashMap<>();
+        }
+
+        synchronized void offer(int speaker, AudioStream.Frame frame, AudioCodec codec) {
+            SpeakerQueue queue = speakers.get(speaker);
+            if( queue == null ) {
+                queue = new SpeakerQueue(frame);
+                speakers.put(speaker, queue);
+            }
+            queue.offer(frame, codec);
+        }
+
+        /**
+         * Mixes one period of audio and sends it to the room.
+         *
+         * @return false once nobody in the room is talking any more
+         */
+        synchronized boolean mixPeriod() {
+            Arrays.fill(total, 0);
+            List<Integer> active = new ArrayList<>(speakers.size());
+            long timestamp = Long.MAX_VALUE;
+
+            for( Iterator<Map.Entry<Integer, SpeakerQueue>> iter = speakers.entrySet().iterator();
+                    iter.hasNext(); ) {
+                Map.Entry<Integer, SpeakerQueue> entry = iter.next();
+                SpeakerQueue queue = entry.getValue();
+                queue.take();
+
+                if( queue.currentLength > 0 ) {
+                    for( int i = 0; i < queue.currentLength; i++ ) {
+                        total[i] += queue.current[i];
+                    }
+                    active.add(entry.getKey());
+                    timestamp = Math.min(timestamp, queue.timestamp);
+                }
+
+                if( queue.isIdle() && queue.currentLength == 0 ) {
+                    iter.remove();
+                }
+            }
+
+            if( active.isEmpty() ) {
+                if( streaming && speakers.isEmpty() ) {
+                    endStream();
+                }
+                return !speakers.isEmpty();
+            }
+
+            if( server.getRoom(room.getId()) != room ) {
+                // The room has been removed
+                speakers.clear();
+                return false;
+            }
+
+            if( !streaming ) {
+                streaming = true;
+                streamId = nextStreamId.getAndIncrement();
+                sequence = 0;
+            }
+
+            AudioCodec codec = room.getAudioCodec();
+            int[] members = room.getUsers();
+
+            // Everyone who is not talking hears the whole mix
+            int[] listeners = new int[members.length];
+            int listenerCount = 0;
+            for( int member : members ) {
+                if( !active.contains(member) ) {
+                    listeners[listenerCount++] = member;
+                }
+            }
+            send(Arrays.copyOf(listeners, listenerCount), mix(null), codec, timestamp);
+
+            // Each speaker hears everyone but themselves, which is nothing if they are alone
+            if( active.size() > 1 ) {
+                for( int speaker : active ) {
+                    send(new int[] { speaker }, mix(speakers.get(speaker)), codec, timestamp);
+                }
+            }
+
+            sequence++;
+            return true;
+        }
+
+        /**
+         * Clips the total, less one speaker's own frame, into the sample buffer.
+         */
+        private int mix(SpeakerQueue without) {
+            for( int i = 0; i < samples.length; i++ ) {
+                int sample = total[i];
+                if( without != null && i < without.currentLength ) {
+                    sample -= without.current[i];
+                }
+                samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+            }
+            return samples.length;
+        }
+
+        private void send(int[] userIds, int count, AudioCodec codec, long timestamp) {
+            if( userIds.length == 0 ) {
+                return;
+            }
+
+            byte[] data = Arrays.copyOf(encoded, codec.encode(samples, count, encoded, 0));
+            AudioStream.Frame frame = new AudioStream.Frame(streamId, sequence, timestamp, false,
+                    codec.getId(), data);
+            server.sendAudio(room, userIds, frame);
+        }
+
+        private void endStream() {
+            AudioStream.Frame last = new AudioStream.Frame(streamId, sequence,
+                    System.currentTimeMillis(), true, room.getAudioCodec().getId(), new byte[0]);
+            server.sendAudio(room, room.getUsers(), last);
+
+            streaming = false;
+        }
+    }
+}
@@ -1,12 +1,234 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
 public class ChatServer {
+    private static final String USAGE = "Usage: java ChatServer <portNumber> [threaded|virtual|nio] "
+        + "[drop-oldest|drop-bulk|disconnect] [--log-level=debug|info|warn|error|off] "
+        + "[--log-payloads=true|false] [--spool-files=<retention minutes>] "
+        + "[--mix-audio=true|false] [--compress=true|false] [--flush-latency=<millis>] "
+        + "[--max-batch=<messages>] [--stats=<seconds>] [--history=<directory>] "
+        + "[--scrollback=<messages>] [--scrollback-bytes=<bytes>] "
+        + "[--cluster=<host:port>,<host:port>,...] [--node=<index in cluster>] "
+        + "[--cluster-secret-file=<file>] "
+        + "[--resume-grace=<seconds>] [--chat-rate=<messages/s>] [--command-rate=<messages/s>] "
+        + "[--bulk-rate=<bytes/s>] [--room-chat-rate=<messages/s>] [--room-bulk-rate=<bytes/s>]";
+
+    // Options that have to be applied to the server once it has been created
+    private static long spoolRetentionMinutes = 0;
+    private static boolean mixAudio = false;
+    private static boolean compress = false;
+    private static long flushLatencyMillis = 0;
+    private static int maxWriteBatch = 64;
+    private static long statsSeconds = 0;
+    private static String historyDirectory = null;
+    private static int scrollbackMessages = 50;
+    private static int scrollbackBytes = 64 * 1024;
+    private static List<InetSocketAddress> clusterNodes = null;
+    private static int nodeIndex = 0;
+    private static String clusterSecretFile = null;
+
+    // How long a dropped client's session is held, where 0 lets nobody resume. A held session
+    // keeps its username and rooms, so this is off unless asked for.
+    private static long resumeGraceSeconds = 0;
+
+    // Rate limits, where 0 is no limit. Nothing is limited unless asked for. Messages may come in
+    // bursts of twice the rate, and bytes in bursts of a second's worth.
+    private static double chatRate = 0;
+    private static double commandRate = 0;
+    private static double bulkRate = 0;
+    private static double roomChatRate = 0;
+    private static double roomBulkRate = 0;
+
     public static void main( String[] args ) {
-        if( args.length < 1 ) {
-            System.err.println("Usage: java ChatServer <portNumber>");
+        // Options can appear anywhere, everything else is positional
+        List<String> positional = new ArrayList<>();
+        for( String arg : args ) {
+            if( arg.startsWith("--") ) {
+                applyOption(arg);
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if( positional.size() < 1 ) {
+            System.err.println(USAGE);
             System.exit(1);
         }
 
-        int portNumber = Integer.parseInt(args[0]);
+        int portNumber = Integer.parseInt(positional.get(0));
+        String mode = positional.size() > 1 ? positional.get(1) : "threaded";
         Server server = new Server(portNumber);
-        server.startAccepting();
+
+        if( spoolRetentionMinutes > 0 ) {
+            server.setFileSpooling(spoolRetentionMinutes * 60 * 1000);
+        }
+        server.setAudioMixing(mixAudio);
+        server.setCompression(compress);
+        server.setWriteCoalescing(flushLatencyMillis, maxWriteBatch);
+        if( statsSeconds > 0 ) {
+            server.logStats(statsSeconds * 1000);
+        }
+        if( clusterNodes != null ) {
+            if( nodeIndex < 0 || nodeIndex >= clusterNodes.size() ) {
+                System.err.printf("Node %d is not in the cluster\n", nodeIndex);
+                System.exit(1);
+            }
+            try {
+                // Read from a file rather than taken as an option, so it is not shown to anyone
+                // listing processes
+                byte[] secret = clusterSecretFile == null ? null
+                    : Files.readString(Paths.get(clusterSecretFile)).trim()
+                        .getBytes(StandardCharsets.UTF_8);
+                server.setCluster(nodeIndex, clusterNodes, secret);
+            } catch( IOException ioe ) {
+                System.err.printf("Could not join the cluster as node %d: %s\n", nodeIndex, ioe);
+                System.exit(1);
+            }
+        }
+        server.setScrollback(scrollbackMessages, scrollbackBytes);
+        server.setSessionResume(resumeGraceSeconds * 1000);
+        server.setClientRateLimits(limit(chatRate, 2 * chatRate),
+                limit(commandRate, 2 * commandRate), limit(bulkRate, bulkRate));
+        server.setRoomRateLimits(limit(roomChatRate, 2 * roomChatRate),
+                limit(roomBulkRate, roomBulkRate));
+        if( historyDirectory != null ) {
+            try {
+                server.setMessageHistory(Paths.get(historyDirectory));
+            } catch( IOException ioe ) {
+                System.err.printf("Could not open history in %s: %s\n", historyDirectory, ioe);
+                System.exit(1);
+            }
+        }
+
+        if( positional.size() > 2 ) {
+            switch( positional.get(2) ) {
+                case "drop-oldest":
+                    server.setSlowConsumerPolicy(server.getOutboundQueueCapacity(),
+                            OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+                    break;
+                case "drop-bulk":
+                    server.setSlowConsumerPolicy(server.getOutboundQueueCapacity(),
+                            OutboundQueue.SlowConsumerPolicy.DROP_BULK_FIRST);
+                    break;
+                case "disconnect":
+                    server.setSlowConsumerPolicy(server.getOutboundQueueCapacity(),
+                            OutboundQueue.SlowConsumerPolicy.DISCONNECT);
+                    break;
+                default:
+                    System.err.printf("Unknown slow consumer policy %s\n", positional.get(2));
+                    System.exit(1);
+            }
+        }
+
+        switch( mode ) {
+            case "threaded":
+                server.startAccepting();
+                break;
+            case "virtual":
+                server.startAccepting(true);
+                break;
+            case "nio":
+                int eventLoops = Runtime.getRuntime().availableProcessors();
+                new NioServer(server, portNumber, eventLoops).startAccepting();
+                break;
+            default:
+                System.err.printf("Unknown server mode %s\n", mode);
+                System.exit(1);
+        }
+    }
+
+    private static TokenBucket.Limit limit(double perSecond, double burst) {
+        return perSecond > 0 ? new TokenBucket.Limit(perSecond, burst) : null;
+    }
+
+    /**
+     * Applies a single --name=value option.
+     */
+    private static void applyOption(String option) {
+        int equals = option.indexOf('=');
+        String name = equals == -1 ? option.substring(2) : option.substring(2, equals);
+        String value = equals == -1 ? "" : option.substring(equals + 1);
+
+        try {
+            switch( name ) {
+                case "log-level":
+                    ServerLog.setLevel(ServerLog.Level.valueOf(value.toUpperCase()));
+                    return;
+                case "log-payloads":
+                    ServerLog.setLogPayloads(Boolean.parseBoolean(value));
+                    return;
+                case "spool-files":
+                    spoolRetentionMinutes = Long.parseLong(value);
+                    return;
+                case "mix-audio":
+                    mixAudio = Boolean.parseBoolean(value);
+                    return;
+                case "compress":
+                    compress = Boolean.parseBoolean(value);
+                    return;
+                case "flush-latency":
+                    flushLatencyMillis = Long.parseLong(value);
+                    return;
+                case "max-batch":
+                    maxWriteBatch = Integer.parseInt(value);
+                    return;
+                case "stats":
+                    statsSeconds = Long.parseLong(value);
+                    return;
+                case "history":
+                    historyDirectory = value;
+                    return;
+                case "scrollback":
+                    scrollbackMessages = Integer.parseInt(value);
+                    return;
+                case "scrollback-bytes":
+                    scrollbackBytes = Integer.parseInt(value);
+                    return;
+                case "cluster":
+                    clusterNodes = new ArrayList<>();
+                    for( String node : value.split(",") ) {
+                        int colon = node.lastIndexOf(':');
+                        clusterNodes.add(new InetSocketAddress(node.substring(0, colon),
+                                    Integer.parseInt(node.substring(colon + 1))));
+                    }
+                    return;
+                case "node":
+                    nodeIndex = Integer.parseInt(value);
+                    return;
+                case "cluster-secret-file":
+                    clusterSecretFile = value;
+                    return;
+                case "resume-grace":
+                    resumeGraceSeconds = Long.parseLong(value);
+                    return;
+                case "chat-rate":
+                    chatRate = Double.parseDouble(value);
+                    return;
+                case "command-rate":
+                    commandRate = Double.parseDouble(value);
+                    return;
+                case "bulk-rate":
+                    bulkRate = Double.parseDouble(value);
+                    return;
+                case "room-chat-rate":
+                    roomChatRate = Double.parseDouble(value);
+                    return;
+                case "room-bulk-rate":
+                    roomBulkRate = Double.parseDouble(value);
+                    return;
+                default:
+                    break;
+            }
+        } catch( IllegalArgumentException | IndexOutOfBoundsException e ) {
+            // Fall through to the error below
+        }
+
+        System.err.printf("Invalid option %s\n%s\n", option, USAGE);
+        System.exit(1);
     }
 }
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A single client connected to the server. The server only cares that it can send messages to a
+ * client and close its connection, which allows the blocking and non-blocking engines to share all
+ * of the room and dispatch logic in Server.
+ *
+ * Sending a message never writes to the socket directly. Messages are encoded and added to a
+ * bounded outbound queue which each engine drains on its own writer, so a slow client can only
+ * ever fall behind itself.
+ */
+public abstract class ClientConnection {
+    // Client information
+    public final int userId;
+    public String clientName;
+
+    // The format messages are written to this client in. Clients start out being sent serialized
+    // messages, and are switched to binary once they have sent a binary message themselves. A
+    // client that sends a compressed message is sent compressed messages if the server allows it.
+    private volatile MessageCodec.Format format = MessageCodec.Format.SERIALIZED;
+    private volatile boolean compressionAllowed;
+
+    // Frames waiting to be written to the client
+    protected final OutboundQueue outbound;
+
+    // Set once the connection has been closed, after which nothing more will be written
+    protected volatile boolean closed;
+
+    // The ids of the rooms this client is a member of, kept in step with the members of each room
+    private final IntSet joinedRooms = new IntSet();
+
+    // The token the client can resume its session with, or null if it has none
+    volatile String sessionToken;
+
+    // How fast the client is sending chat, server commands, and bytes of files and audio, and
+    // whether it has been told it is sending too fast since it last sent something that was let
+    // through
+    final TokenBucket chatBucket = new TokenBucket();
+    final TokenBucket commandBucket = new TokenBucket();
+    final TokenBucket bulkBucket = new TokenBucket();
+    volatile boolean throttled;
+
+    // The audio codecs the client can decode. Every client can decode PCM, and clients that can
+    // decode more say so once they have logged in.
+    private volatile int audioCodecs = AudioCodecs.mask(AudioCodecs.PCM);
+
+    // What has been written to the client, only ever updated by the thread writing to it
+    private volatile long messagesWritten;
+    private volatile long writeCalls;
+
+    public ClientConnection(int userId, int queueCapacity,
+            OutboundQueue.SlowConsumerPolicy policy) {
+        this.userId = userId;
+        this.outbound = new OutboundQueue(queueCapacity, policy);
+    }
+
+    public MessageCodec.Format getFormat() {
+        return this.format;
+    }
+
+    /**
+     * @param allowed Whether this client may be sent compressed messages once it asks for them
+     */
+    public void setCompressionAllowed(boolean allowed) {
+        this.compressionAllowed = allowed;
+    }
+
+    /**
+     * Returns the rooms this client is in at this moment, which lets the server visit only those
+     * rooms when the client leaves.
+     *
+     * @return The ids of the rooms the client is in, which must not be modified
+     */
+    public int[] getJoinedRooms() {
+        return joinedRooms.snapshot();
+    }
+
+    public int getAudioCodecs() {
+        return this.audioCodecs;
+    }
+
+    /**
+     * @param mask A bit mask of the ids of the codecs the client can decode
+     */
+    public void setAudioCodecs(int mask) {
+        this.audioCodecs = mask | AudioCodecs.mask(AudioCodecs.PCM);
+    }
+
+    void roomJoined(int roomId) {
+        joinedRooms.add(roomId);
+    }
+
+    void roomLeft(int roomId) {
+        joinedRooms.remove(roomId);
+    }
+
+    /**
+     * @return Whether the connection has been closed, after which nothing more will be written
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return The number of messages waiting to be written to this client
+     */
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    /**
+     * @return The number of messages to this client dropped by the slow consumer policy
+     */
+    public long getDroppedCount() {
+        return outbound.getDroppedCount();
+    }
+
+    /**
+     * @return The number of messages written to this client
+     */
+    public long getMessagesWritten() {
+        return messagesWritten;
+    }
+
+    /**
+     * @return The number of writes to the socket it took to write them
+     */
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    void recordWrites(int messages, int writes) {
+        messagesWritten += messages;
+        writeCalls += writes;
+    }
+
+    /**
+     * Called with every frame read from the client, so that the format used when writing to the
+     * client can follow what it has shown it understands.
+     *
+     * @param payload The buffer holding the frame that was read
+     * @param offset The start of the payload in the buffer
+     */
+    protected void frameReceived(byte[] payload, int offset) {
+        MessageCodec.Format received = MessageCodec.formatOf(payload, offset);
+        if( received == MessageCodec.Format.COMPRESSED && compressionAllowed ) {
+            this.format = MessageCodec.Format.COMPRESSED;
+        } else if( received != MessageCodec.Format.SERIALIZED
+                && this.format == MessageCodec.Format.SERIALIZED ) {
+            this.format = MessageCodec.Format.BINARY;
+        }
+    }
+
+    /**
+     * Queues a message to be sent to this client. This is safe to call from any thread and never
+     * blocks on the client's socket.
+     *
+     * @param messageToSend The message that will be sent to the client
+     */
+    public <E extends Serializable> void sendMessage(Message<E> messageToSend) {
+        try {
+            sendFrame(OutboundQueue.Frame.encode(messageToSend, getFormat()));
+        } catch( IOException ioe ) {
+            System.err.printf("Error while encoding message for client %d!\n", userId);
+            ioe.printStackTrace();
+        }
+    }
+
+    /**
+     * Queues an already encoded frame to be sent to this client. The frame must have been encoded
+     * in this client's format.
+     *
+     * @param frame The frame that will be sent to the client
+     */
+    public void sendFrame(OutboundQueue.Frame frame) {
+        if( outbound.offer(frame) ) {
+            if( closed ) {
+                // Nothing will drain the queue any more, so release anything waiting on it
+                outbound.clear();
+            } else {
+                framesQueued();
+            }
+        } else {
+            ServerLog.warn("Server -> Disconnecting %s(%d), %d messages behind\n",
+                    clientName, userId, outbound.size());
+            slowConsumer();
+        }
+    }
+
+    /**
+     * Holds a place in this client's queue for a frame that is not ready yet. Anything sent to
+     * the client after this waits behind the place until it has been filled.
+     *
+     * @return The place, to be passed to fillPlace
+     */
+    public OutboundQueue.Frame holdPlace() {
+        OutboundQueue.Frame place = OutboundQueue.Frame.placeholder();
+        sendFrame(place);
+        return place;
+    }
+
+    /**
+     * Fills a place held in this client's queue. This is safe to call from any thread.
+     *
+     * @param place The place returned by holdPlace
+     * @param frame The frame to write in its place, encoded in this client's format, or null
+     */
+    public void fillPlace(OutboundQueue.Frame place, OutboundQueue.Frame frame) {
+        if( outbound.fill(place, frame) ) {
+            if( closed ) {
+                outbound.clear();
+            } else {
+                framesQueued();
+            }
+        }
+    }
+
+    /**
+     * Called after a frame has been added to the outbound queue, so that the engine can make sure
+     * the queue is being drained.
+     */
+    protected abstract void framesQueued();
+
+    /**
+     * Called when the outbound queue is full and the slow consumer policy is to disconnect. This
+     * may be called while a room is being sent to, so the disconnect must not happen inline.
+     */
+    protected abstract void slowConsumer();
+
+    /**
+     * Closes the underlying connection to the client without notifying the server.
+     */
+    public abstract void close();
+}
@@ -0,0 +1,620 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Joins a server to the other nodes of a cluster. Every node knows about every room, but each
+ * room is owned by a single node, chosen by hashing its id onto a HashRing. Chat sent to a room
+ * on any node is forwarded to the owner, which puts the room's messages in order, keeps its
+ * history, and sends each message on to the nodes that have asked for it. A node asks for a
+ * room's messages by subscribing to the owner while it has members of the room connected, and
+ * stops once the last of them has left.
+ *
+ * Each node listens for the other nodes on its own link address, and opens a link to every other
+ * node to send to it, so messages only ever travel one way on a link, apart from the challenge
+ * that the accepting node starts each link with. Links are reconnected when
+ * they drop, and a node that connects tells the other node about its rooms and subscriptions, so
+ * a node that restarts is brought back up to date. Messages to a node wait in a queue while its
+ * link is down, up to a limit after which they are dropped.
+ *
+ * Every message on a link is a 4 byte length followed by a 1 byte operation, a 4 byte room id,
+ * and a body that depends on the operation. Chat is carried as the binary frame of the message,
+ * so it is encoded once by the node it was sent to and never again. Only chat is carried, and
+ * frames from other nodes are decoded without Java serialization.
+ *
+ * When the nodes share a secret, the hello that answers the challenge carries an HMAC under it of
+ * the challenge's random nonce and the indexes of the sending and accepting nodes, and links from
+ * anything that cannot produce one are closed. A fresh nonce for every link means a hello seen
+ * on one link is no use on another. Without a
+ * secret any connection that names a node is taken to be that node, so the link addresses must
+ * only be reachable by the other nodes.
+ */
+public class Cluster {
+
+    // The first message on a link, with the sending node's index in place of the room id
+    private static final byte HELLO = 0;
+
+    // A room exists, with its name as the body
+    private static final byte ROOM_OPEN = 1;
+
+    // A room has been removed by its owner
+    private static final byte ROOM_CLOSE = 2;
+
+    // The sending node has members in a room and wants its messages, with the room's name as the
+    // body, or no longer does
+    private static final byte SUBSCRIBE = 3;
+    private static final byte UNSUBSCRIBE = 4;
+
+    // A message for the owner of a room to put in order, as a binary frame
+    private static final byte PUBLISH = 5;
+
+    // A message from the owner of a room to its subscribers, as a binary frame
+    private static final byte DELIVER = 6;
+
+    // Asks for the names of the sending node's members of a room, with a request id as the body
+    private static final byte LIST_USERS = 7;
+
+    // The answer to LIST_USERS, with the request id followed by the names as the body
+    private static final byte USERS = 8;
+
+    // The first message on a link, sent by the accepting node with its own index in place of the
+    // room id and a nonce as the body, which the hello has to answer
+    private static final byte CHALLENGE = 9;
+
+    // Separates the names in the body of USERS
+    private static final String NAME_SEPARATOR = "\n";
+
+    private static final String HELLO_MAC = "HmacSHA256";
+    private static final int NONCE_SIZE = 16;
+
+    private static final int OP_HEADER_SIZE = 5;
+    private static final byte[] EMPTY = new byte[0];
+
+    // The most messages that may wait for a node before more are dropped
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    // How long to wait for the other nodes to answer a listing
+    private static final long QUERY_TIMEOUT_MILLIS = 500;
+
+    private final Server server;
+    private final int nodeIndex;
+    private final List<InetSocketAddress> nodes;
+    private final byte[] secret;
+    private final SecureRandom nonces;
+    private final HashRing ring;
+    private final Peer[] peers;
+
+    // The nodes subscribed to each room this node owns
+    private final Map<Integer, IntSet> subscribers;
+
+    // The rooms owned by other nodes that this node is subscribed to
+    private final IntSet subscriptions;
+
+    // Listings waiting for answers from the other nodes
+    private final Map<Integer, Query> queries;
+    private final AtomicInteger nextQueryId;
+
+    private final LongAdder dropped;
+
+    /**
+     * @param server The server this node runs
+     * @param nodeIndex The position of this node in the list of nodes
+     * @param nodes The link address of every node in the cluster, in the same order on every node
+     * @param secret The secret every node shares, or null if links are not checked
+     */
+    public Cluster(Server server, int nodeIndex, List<InetSocketAddress> nodes, byte[] secret) {
+        this.server = server;
+        this.nodeIndex = nodeIndex;
+        this.nodes = nodes;
+        this.secret = secret;
+        this.nonces = new SecureRandom();
+
+        List<String> names = new ArrayList<>();
+        for( InetSocketAddress node : nodes ) {
+            names.add(node.getHostString() + ":" + node.getPort());
+        }
+        this.ring = new HashRing(names);
+
+        this.peers = new Peer[nodes.size()];
+        for( int i = 0; i < nodes.size(); i++ ) {
+            if( i != nodeIndex ) {
+                this.peers[i] = new Peer(i);
+            }
+        }
+
+        this.subscribers = new ConcurrentHashMap<>();
+        this.subscriptions = new IntSet();
+        this.queries = new ConcurrentHashMap<>();
+        this.nextQueryId = new AtomicInteger();
+        this.dropped = new LongAdder();
+    }
+
+    /**
+     * Starts listening for the other nodes and connecting to them, each on background threads.
+     */
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket(nodes.get(nodeIndex).getPort());
+        Thread acceptor = new Thread(() -> acceptLinks(listener), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for( Peer peer : peers ) {
+            if( peer != null ) {
+                Thread link = new Thread(peer, "cluster-link-" + peer.index);
+                link.setDaemon(true);
+                link.start();
+            }
+        }
+
+        ServerLog.info("Cluster -> Node %d of %d listening for nodes on port %d\n", nodeIndex,
+                nodes.size(), nodes.get(nodeIndex).getPort());
+        if( secret == null ) {
+            ServerLog.warn("Cluster -> No cluster secret is set, so links from other nodes are "
+                    + "not checked\n");
+        }
+    }
+
+    public int getNodeIndex() {
+        return nodeIndex;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * @return Whether this node owns a room
+     */
+    public boolean owns(int roomId) {
+        return ring.nodeFor(roomId) == nodeIndex;
+    }
+
+    /**
+     * @return Whether any other node is subscribed to a room this node owns
+     */
+    public boolean hasSubscribers(int roomId) {
+        IntSet nodes = subscribers.get(roomId);
+        return nodes != null && !nodes.isEmpty();
+    }
+
+    /**
+     * @return The number of messages for other nodes that were dropped while their links were down
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Tells every other node about a room that has been created on this node.
+     */
+    public void roomOpened(Room room) {
+        broadcast(encode(ROOM_OPEN, room.getId(),
+                    room.getName().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Tells every other node that a room this node owns has been removed.
+     */
+    public void roomClosed(int roomId) {
+        subscribers.computeIfPresent(roomId, (id, nodes) -> nodes.isEmpty() ? null : nodes);
+        broadcast(encode(ROOM_CLOSE, roomId, EMPTY));
+    }
+
+    /**
+     * Subscribes to or unsubscribes from a room owned by another node, depending on whether this
+     * node has members of the room. Must be called with the room locked, so that changes to the
+     * room's members are seen in the order they were made.
+     *
+     * @param room The room whose members have changed
+     * @param hasMembers Whether the room has members on this node
+     */
+    public void membersChanged(Room room, boolean hasMembers) {
+        int roomId = room.getId();
+        int owner = ring.nodeFor(roomId);
+        if( owner == nodeIndex ) {
+            return;
+        }
+
+        if( hasMembers && subscriptions.add(roomId) ) {
+            peers[owner].send(encode(SUBSCRIBE, roomId,
+                        room.getName().getBytes(StandardCharsets.UTF_8)));
+        } else if( !hasMembers && subscriptions.remove(roomId) ) {
+            peers[owner].send(encode(UNSUBSCRIBE, roomId, EMPTY));
+        }
+    }
+
+    /**
+     * Forwards a message sent to a room owned by another node to its owner.
+     *
+     * @param roomId The room the message was sent to
+     * @param frame The message encoded as a binary frame
+     */
+    public void publish(int roomId, byte[] frame) {
+        peers[ring.nodeFor(roomId)].send(encode(PUBLISH, roomId, frame));
+    }
+
+    /**
+     * Sends a message to a room this node owns on to every node subscribed to it. Must be called
+     * from the room's deliveries, so that every node is sent the room's messages in the same
+     * order.
+     *
+     * @param roomId The room the message was sent to
+     * @param frame The message encoded as a binary frame
+     */
+    public void deliver(int roomId, byte[] frame) {
+        IntSet nodes = subscribers.get(roomId);
+        if( nodes == null ) {
+            return;
+        }
+
+        byte[] encoded = null;
+        for( int node : nodes.snapshot() ) {
+            if( encoded == null ) {
+                encoded = encode(DELIVER, roomId, frame);
+            }
+            peers[node].send(encoded);
+        }
+    }
+
+    /**
+     * Asks every other node for the names of its members of a room, waiting a short while for
+     * them to answer. Nodes that do not answer in time are left out.
+     *
+     * @return The names of the members of the room on the other nodes
+     */
+    public List<String> remoteUserNames(int roomId) {
+        int queryId = nextQueryId.getAndIncrement();
+        Query query = new Query(nodes.size() - 1);
+        queries.put(queryId, query);
+
+        try {
+            broadcast(encode(LIST_USERS, roomId, ByteBuffer.allocate(4).putInt(queryId).array()));
+            query.answered.await(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queries.remove(queryId);
+        }
+
+        synchronized( query.names ) {
+            return new ArrayList<>(query.names);
+        }
+    }
+
+    private void broadcast(byte[] encoded) {
+        for( Peer peer : peers ) {
+            if( peer != null ) {
+                peer.send(encoded);
+            }
+        }
+    }
+
+    private static byte[] encode(byte op, int roomId, byte[] body) {
+        return encode(op, roomId, body, 0);
+    }
+
+    private static byte[] encode(byte op, int roomId, byte[] body, int bodyOffset) {
+        int length = OP_HEADER_SIZE + body.length - bodyOffset;
+        return ByteBuffer.allocate(MessageCodec.HEADER_SIZE + length)
+            .putInt(length)
+            .put(op)
+            .putInt(roomId)
+            .put(body, bodyOffset, body.length - bodyOffset)
+            .array();
+    }
+
+    /**
+     * @param nonce The nonce the accepting node challenged the link with
+     * @param from The node that opened the link
+     * @param to The node that accepted it
+     * @return What a node sends in its hello to show that it knows the cluster secret, which is
+     * nothing if there is no secret
+     */
+    private byte[] helloProof(byte[] nonce, int from, int to) {
+        if( secret == null ) {
+            return EMPTY;
+        }
+
+        try {
+            Mac mac = Mac.getInstance(HELLO_MAC);
+            mac.init(new SecretKeySpec(secret, HELLO_MAC));
+            return mac.doFinal(ByteBuffer.allocate(nonce.length + 2 * Integer.BYTES)
+                    .put(nonce).putInt(from).putInt(to).array());
+        } catch( GeneralSecurityException gse ) {
+            // Every Java platform supports HmacSHA256
+            throw new IllegalStateException(gse);
+        }
+    }
+
+    private void acceptLinks(ServerSocket listener) {
+        while( true ) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> readLink(socket), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch( IOException ioe ) {
+                ServerLog.error("Cluster -> Could not accept a node: %s\n", ioe);
+            }
+        }
+    }
+
+    /**
+     * Reads everything another node sends on its link to this node. Once the link drops the node
+     * is treated as having left every room it was subscribed to, until it connects again.
+     */
+    private void readLink(Socket socket) {
+        int node = -1;
+
+        try( DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream())) ) {
+            // The link is only waited on for as long as it takes to connect until it has answered
+            byte[] nonce = new byte[NONCE_SIZE];
+            nonces.nextBytes(nonce);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            socket.getOutputStream().write(encode(CHALLENGE, nodeIndex, nonce));
+
+            byte[] hello = MessageCodec.readFrame(in);
+            ByteBuffer helloBuffer = ByteBuffer.wrap(hello);
+            if( helloBuffer.get() != HELLO ) {
+                throw new IOException("Link did not start with a hello");
+            }
+            int claimed = helloBuffer.getInt();
+            if( claimed < 0 || claimed >= nodes.size() || claimed == nodeIndex ) {
+                throw new IOException("Unknown node " + claimed);
+            }
+
+            byte[] proof = new byte[helloBuffer.remaining()];
+            helloBuffer.get(proof);
+            if( !MessageDigest.isEqual(proof, helloProof(nonce, claimed, nodeIndex)) ) {
+                ServerLog.warn("Cluster -> Closed a link from %s claiming to be node %d without "
+                        + "the cluster secret\n", socket.getRemoteSocketAddress(), claimed);
+                socket.close();
+                return;
+            }
+            node = claimed;
+            socket.setSoTimeout(0);
+            ServerLog.info("Cluster -> Node %d connected\n", node);
+
+            while( true ) {
+                byte[] payload = MessageCodec.readFrame(in);
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                byte op = buffer.get();
+                int roomId = buffer.getInt();
+                received(node, op, roomId, buffer);
+            }
+        } catch( IOException ioe ) {
+            if( node >= 0 ) {
+                ServerLog.warn("Cluster -> Lost the link from node %d: %s\n", node, ioe);
+                nodeLeft(node);
+            }
+        }
+    }
+
+    private void received(int node, byte op, int roomId, ByteBuffer body) {
+        switch( op ) {
+            case ROOM_OPEN:
+                server.clusterRoomOpened(roomId, utf8(body));
+                break;
+            case ROOM_CLOSE:
+                server.clusterRoomClosed(roomId);
+                break;
+            case SUBSCRIBE:
+                if( owns(roomId) ) {
+                    // Added before the room is looked up, so that the room is either kept or
+                    // opened again if it is being removed at the same time
+                    subscribers.compute(roomId, (id, nodes) -> {
+                        nodes = nodes == null ? new IntSet() : nodes;
+                        nodes.add(node);
+                        return nodes;
+                    });
+                    if( server.clusterRoomOpened(roomId, utf8(body)) ) {
+                        broadcast(encode(ROOM_OPEN, roomId, body.array(), OP_HEADER_SIZE));
+                    }
+                }
+                break;
+            case UNSUBSCRIBE:
+                IntSet nodes = subscribers.get(roomId);
+                if( nodes != null && nodes.remove(node) ) {
+                    server.clusterRoomDeserted(roomId);
+                }
+                break;
+            case PUBLISH:
+                server.clusterPublished(roomId, remaining(body));
+                break;
+            case DELIVER:
+                server.clusterDelivered(roomId, remaining(body));
+                break;
+            case LIST_USERS:
+                int requestId = body.getInt();
+                byte[] names = String.join(NAME_SEPARATOR, server.localUserNames(roomId))
+                    .getBytes(StandardCharsets.UTF_8);
+                peers[node].send(encode(USERS, roomId, ByteBuffer.allocate(4 + names.length)
+                            .putInt(requestId).put(names).array()));
+                break;
+            case USERS:
+                Query query = queries.get(body.getInt());
+                if( query != null ) {
+                    String answer = utf8(body);
+                    if( !answer.isEmpty() ) {
+                        synchronized( query.names ) {
+                            Collections.addAll(query.names, answer.split(NAME_SEPARATOR));
+                        }
+                    }
+                    query.answered.countDown();
+                }
+                break;
+            default:
+                ServerLog.warn("Cluster -> Unknown operation %d from node %d\n", op, node);
+                break;
+        }
+    }
+
+    /**
+     * Drops a node that has gone away from every room it was subscribed to. Its rooms are not
+     * removed even if nobody else is left in them, since a link that drops is usually back within
+     * a second and the node subscribes again then, and removing a room deletes its history. A room
+     * left empty this way stays open, with its history, until it is next emptied by someone
+     * leaving it.
+     */
+    private void nodeLeft(int node) {
+        for( IntSet nodes : subscribers.values() ) {
+            nodes.remove(node);
+        }
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String utf8(ByteBuffer buffer) {
+        return new String(remaining(buffer), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A listing waiting for the other nodes to answer
+     */
+    private static final class Query {
+        private final CountDownLatch answered;
+        private final List<String> names;
+
+        Query(int nodes) {
+            this.answered = new CountDownLatch(nodes);
+            this.names = new ArrayList<>();
+        }
+    }
+
+    /**
+     * The link from this node to another node, which connects and reconnects on its own thread
+     * and writes whatever is queued for the node
+     */
+    private final class Peer implements Runnable {
+        private final int index;
+        private final LinkedBlockingQueue<byte[]> queue;
+
+        // Taken from the queue but not yet flushed to the node, and written again first when the
+        // link comes back. A batch whose flush failed part way may reach the node twice, which is
+        // better than never. Only used by the link's thread.
+        private final List<byte[]> unflushed;
+
+        Peer(int index) {
+            this.index = index;
+            this.queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+            this.unflushed = new ArrayList<>();
+        }
+
+        void send(byte[] encoded) {
+            if( !queue.offer(encoded) ) {
+                dropped.increment();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean wasConnected = true;
+
+            while( true ) {
+                try( Socket socket = new Socket() ) {
+                    socket.connect(nodes.get(index), CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream()));
+
+                    socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+                    ByteBuffer challenge = ByteBuffer.wrap(MessageCodec.readFrame(
+                                new DataInputStream(socket.getInputStream())));
+                    if( challenge.get() != CHALLENGE || challenge.getInt() != index ) {
+                        throw new IOException("Node did not start the link with a challenge");
+                    }
+                    socket.setSoTimeout(0);
+
+                    out.write(encode(HELLO, nodeIndex, helloProof(remaining(challenge),
+                                    nodeIndex, index)));
+                    introduce(out);
+                    for( byte[] encoded : unflushed ) {
+                        out.write(encoded);
+                    }
+                    out.flush();
+                    unflushed.clear();
+                    ServerLog.info("Cluster -> Connected to node %d\n", index);
+                    wasConnected = true;
+
+                    // Everything queued is written before flushing, so a burst costs one write
+                    while( true ) {
+                        unflushed.add(queue.take());
+                        queue.drainTo(unflushed);
+                        for( byte[] encoded : unflushed ) {
+                            out.write(encoded);
+                        }
+                        out.flush();
+                        unflushed.clear();
+                    }
+                } catch( IOException ioe ) {
+                    if( wasConnected ) {
+                        ServerLog.warn("Cluster -> Cannot reach node %d: %s\n", index, ioe);
+                        wasConnected = false;
+                    }
+                } catch( InterruptedException ie ) {
+                    return;
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch( InterruptedException ie ) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Tells the node about every room this node knows of and which of the node's rooms this
+         * node is subscribed to, in case it has restarted since they were last sent.
+         */
+        private void introduce(DataOutputStream out) throws IOException {
+            for( Room room : server.getRooms() ) {
+                if( room.getId() != server.GLOBAL_ROOM_ID ) {
+                    out.write(encode(ROOM_OPEN, room.getId(),
+                                room.getName().getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+
+            for( int roomId : subscriptions.snapshot() ) {
+                Room room = server.getRoom(roomId);
+                if( room != null && ring.nodeFor(roomId) == index ) {
+                    out.write(encode(SUBSCRIBE, roomId,
+                                room.getName().getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+        }
+    }
+}
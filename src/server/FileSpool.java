@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Files that have been shared with a room, spooled to disk on the server. A file is uploaded by its
+ * sender once and then sent to each receiver that asks for it straight from the spool. Receivers
+ * written binary frames are sent each chunk with FileChannel.transferTo, so the contents of the
+ * file never pass through the heap; receivers still using the serialized format are sent ordinary
+ * chunks read from the spool.
+ *
+ * Spooled files are kept for a while after they have been uploaded so that receivers that accept
+ * a file late, or join the room after it was shared, can still fetch it.
+ */
+public class FileSpool {
+
+    private final long retentionMillis;
+
+    // Spooled files keyed by the owner's id in the high half and the transfer id in the low half
+    private final ConcurrentHashMap<Long, SpooledFile> files;
+
+    /**
+     * @param retentionMillis How long a file is kept after it was shared
+     */
+    public FileSpool(long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+        this.files = new ConcurrentHashMap<>();
+    }
+
+    private static long key(int ownerId, int transferId) {
+        return ((long) ownerId << 32) | (transferId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Starts spooling a file that has just been announced to a room.
+     *
+     * @param ownerName The name of the user sharing the file
+     * @param ownerId The id of the user sharing the file
+     * @param roomId The room the file is being shared with
+     * @param header The header sent by the owner
+     * @return The spooled file, which chunks should be written to
+     */
+    public SpooledFile open(String ownerName, int ownerId, int roomId, FileTransfer.Header header)
+            throws IOException {
+        purgeExpired();
+
+        SpooledFile file = new SpooledFile(ownerName, ownerId, roomId, header);
+        SpooledFile previous = files.put(key(ownerId, header.transferId), file);
+        if( previous != null ) {
+            previous.expire();
+        }
+
+        return file;
+    }
+
+    /**
+     * @return The spooled file for a transfer, or null if it is not on the spool
+     */
+    public SpooledFile get(int ownerId, int transferId) {
+        return files.get(key(ownerId, transferId));
+    }
+
+    /**
+     * @return The files still on the spool that were shared with a room
+     */
+    public List<SpooledFile> filesForRoom(int roomId) {
+        List<SpooledFile> shared = new ArrayList<>();
+        for( SpooledFile file : files.values() ) {
+            if( file.roomId == roomId && !file.isExpired() ) {
+                shared.add(file);
+            }
+        }
+        return shared;
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Removes files that have been kept for longer than the retention period. A file that is
+     * still being sent to someone is deleted once the last of those sends has finished.
+     */
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for( SpooledFile file : files.values() ) {
+            if( now - file.createdAt >= retentionMillis
+                    && files.remove(key(file.ownerId, file.header.transferId), file) ) {
+                file.expire();
+            }
+        }
+    }
+
+    /**
+     * A single file on the spool
+     */
+    public final class SpooledFile {
+        public final String ownerName;
+        public final int ownerId;
+        public final int roomId;
+        public final FileTransfer.Header header;
+
+        private final long createdAt;
+        private final Path path;
+        private final FileChannel channel;
+
+        // The owner's end of file message, which is set once the whole file is on the spool
+        private volatile FileTransfer.End end;
+        private final List<Delivery> waitingForEnd;
+
+        // The number of deliveries reading from the file, plus one until the file expires
+        private final AtomicInteger references;
+        private volatile boolean expired;
+
+        // Whether the file looks like it will compress, judged from its first chunk
+        private volatile boolean compressible;
+
+        private SpooledFile(String ownerName, int ownerId, int roomId, FileTransfer.Header header)
+                throws IOException {
+            this.ownerName = ownerName;
+            this.ownerId = ownerId;
+            this.roomId = roomId;
+            this.header = header;
+            this.createdAt = System.currentTimeMillis();
+            this.path = Files.createTempFile("chat-spool-", ".part");
+            this.channel = FileChannel.open(path, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            this.waitingForEnd = new ArrayList<>();
+            this.references = new AtomicInteger(1);
+        }
+
+        /**
+         * Writes a chunk from the owner to the spool.
+         */
+        public void write(FileTransfer.Chunk chunk) throws IOException {
+            if( chunk.offset + chunk.data.length > header.size ) {
+                throw new IOException("Chunk lies beyond the end of the file");
+            }
+
+            if( chunk.offset == 0 ) {
+                compressible = Compression.isCompressible(chunk.data, 0, chunk.data.length, true);
+            }
+
+            ByteBuffer data = ByteBuffer.wrap(chunk.data);
+            long position = chunk.offset;
+            while( data.hasRemaining() ) {
+                position += channel.write(data, position);
+            }
+        }
+
+        /**
+         * Records that the owner has sent the whole file, starting any deliveries that were
+         * waiting for it.
+         */
+        public void complete(FileTransfer.End fileEnd) {
+            List<Delivery> waiting;
+            synchronized( waitingForEnd ) {
+                this.end = fileEnd;
+                waiting = new ArrayList<>(waitingForEnd);
+                waitingForEnd.clear();
+            }
+
+            waiting.forEach(Delivery::pump);
+        }
+
+        public boolean isComplete() {
+            return end != null;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * @return The header that announces this file to receivers, who have to ask for it
+         */
+        public Message<FileTransfer.Header> announcement() {
+            FileTransfer.Header onDemand = new FileTransfer.Header(header.transferId,
+                    header.fileName, header.size, true);
+            Message<FileTransfer.Header> message = new Message<>(ownerName, roomId, onDemand,
+                    MessageType.FILE);
+            message.setSenderId(ownerId);
+            return message;
+        }
+
+        /**
+         * Sends the file from an offset to a client. If the owner is still uploading the file, it
+         * is sent once the upload has finished.
+         *
+         * @param client The client that asked for the file
+         * @param offset How much of the file the client already has
+         * @return false if the file has expired and can no longer be sent
+         */
+        public boolean deliver(ClientConnection client, long offset) {
+            if( !retain() ) {
+                return false;
+            }
+
+            Delivery delivery = new Delivery(client, Math.max(0, Math.min(offset, header.size)));
+            synchronized( waitingForEnd ) {
+                if( end == null && !expired ) {
+                    waitingForEnd.add(delivery);
+                    return true;
+                }
+            }
+
+            if( end == null ) {
+                delivery.abandon();
+            } else {
+                delivery.pump();
+            }
+            return true;
+        }
+
+        private boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if( count == 0 ) {
+                    return false;
+                }
+            } while( !references.compareAndSet(count, count + 1) );
+
+            return true;
+        }
+
+        private void release() {
+            if( references.decrementAndGet() == 0 ) {
+                try {
+                    channel.close();
+                } catch( IOException ioe ) {
+                    ServerLog.warn("Server -> Could not remove spooled file %s\n", path);
+                }
+            }
+        }
+
+        private void expire() {
+            List<Delivery> waiting;
+            synchronized( waitingForEnd ) {
+                if( expired ) {
+                    return;
+                }
+                expired = true;
+                waiting = new ArrayList<>(waitingForEnd);
+                waitingForEnd.clear();
+            }
+
+            // The owner never finished uploading, so these can never be sent
+            waiting.forEach(Delivery::abandon);
+            release();
+        }
+
+        /**
+         * Sends a file to a single client, keeping no more than a window of chunks queued for it
+         * at once. Each chunk that the client is done with allows the next to be queued, and the
+         * end of file message follows the last of them.
+         */
+        private final class Delivery {
+            private final ClientConnection client;
+            private final AtomicInteger credits;
+            private final AtomicBoolean pumping;
+            private final AtomicBoolean finished;
+            private volatile long nextOffset;
+
+            Delivery(ClientConnection client, long offset) {
+                this.client = client;
+                this.credits = new AtomicInteger(FileTransfer.WINDOW);
+                this.pumping = new AtomicBoolean();
+                this.finished = new AtomicBoolean();
+                this.nextOffset = offset;
+            }
+
+            /**
+             * Queues as many chunks as the window allows. Chunks can be dropped while they are
+             * being queued, which returns their credit straight away, so this loops rather than
+             * recursing and only one thread queues chunks at a time.
+             */
+            void pump() {
+                do {
+                    if( !pumping.compareAndSet(false, true) ) {
+                        return;
+                    }
+
+                    try {
+                        queueChunks();
+                    } catch( IOException ioe ) {
+                        ServerLog.error("Server -> Could not send %s to %s(%d): %s\n",
+                                header.fileName, client.clientName, client.userId, ioe);
+                        finish(false);
+                    } finally {
+                        pumping.set(false);
+                    }
+                } while( hasWork() );
+            }
+
+            /**
+             * @return Whether there is a chunk or the end of file that could be queued now
+             */
+            private boolean hasWork() {
+                if( finished.get() || client.isClosed() ) {
+                    return false;
+                }
+
+                int available = credits.get();
+                return nextOffset < header.size ? available > 0
+                    : available == FileTransfer.WINDOW;
+            }
+
+            /**
+             * Gives up on a delivery that has not started because the file will never be
+             * complete.
+             */
+            void abandon() {
+                Message<String> error = new Message<>(Server.SERVER_NAME, roomId,
+                        String.format("%s is no longer available", header.fileName),
+                        MessageType.ERROR);
+                client.sendMessage(error);
+                finish(false);
+            }
+
+            private void queueChunks() throws IOException {
+                if( finished.get() ) {
+                    return;
+                }
+
+                if( client.isClosed() ) {
+                    // Wait for the queued chunks to be released before letting go of the file
+                    if( credits.get() == FileTransfer.WINDOW ) {
+                        finish(false);
+                    }
+                    return;
+                }
+
+                while( nextOffset < header.size && credits.get() > 0 ) {
+                    credits.decrementAndGet();
+
+                    int length = (int) Math.min(FileTransfer.CHUNK_SIZE, header.size - nextOffset);
+                    OutboundQueue.Completion chunkDone = new OutboundQueue.Completion(() -> {
+                        credits.incrementAndGet();
+                        pump();
+                    });
+
+                    client.sendFrame(chunkFrame(nextOffset, length, chunkDone));
+                    nextOffset += length;
+                }
+
+                // The end of file goes out once every chunk has been dealt with
+                if( nextOffset >= header.size && credits.get() == FileTransfer.WINDOW ) {
+                    Message<FileTransfer.End> endMessage = new Message<>(ownerName, roomId, end,
+                            MessageType.FILE_END);
+                    endMessage.setSenderId(ownerId);
+                    client.sendMessage(endMessage);
+                    finish(true);
+                }
+            }
+
+            private OutboundQueue.Frame chunkFrame(long offset, int length,
+                    OutboundQueue.Completion chunkDone) throws IOException {
+                // Chunks are sent straight from the file unless they have to be re-encoded
+                MessageCodec.Format format = client.getFormat();
+                if( format == MessageCodec.Format.BINARY
+                        || (format == MessageCodec.Format.COMPRESSED && !compressible) ) {
+                    byte[] prefix = MessageCodec.encodeChunkPrefix(ownerName, ownerId, roomId,
+                            header.transferId, offset, client.userId, length);
+                    return new OutboundQueue.Frame(prefix, channel, offset, length, chunkDone);
+                }
+
+                // Neither serialized nor deflated chunks can be split, so the chunk is read in
+                ByteBuffer data = ByteBuffer.allocate(length);
+                while( data.hasRemaining() ) {
+                    if( channel.read(data, offset + data.position()) < 0 ) {
+                        throw new IOException("Spooled file is shorter than its header");
+                    }
+                }
+
+                FileTransfer.Chunk chunk = new FileTransfer.Chunk(header.transferId, offset,
+                        client.userId, data.array());
+                Message<FileTransfer.Chunk> message = new Message<>(ownerName, roomId, chunk,
+                        MessageType.FILE_CHUNK);
+                message.setSenderId(ownerId);
+                return OutboundQueue.Frame.encode(message, format, chunkDone);
+            }
+
+            private void finish(boolean sent) {
+                if( finished.compareAndSet(false, true) ) {
+                    if( sent && ServerLog.isEnabled(ServerLog.Level.DEBUG) ) {
+                        ServerLog.debug("Server -> Sent %s to %s(%d) from the spool\n",
+                                header.fileName, client.clientName, client.userId);
+                    }
+                    release();
+                }
+            }
+        }
+    }
+}
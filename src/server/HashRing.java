@@ -0,0 +1,68 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assigns keys to the nodes of a cluster by consistent hashing. Every node is placed at a number
+ * of points around a ring of 64 bit hashes, and a key belongs to the node at the first point at or
+ * after the key's own hash. Placing each node at many points spreads keys evenly, and adding or
+ * removing a node only moves the keys next to its points rather than reshuffling all of them.
+ *
+ * Points are worked out from the node names alone, so every node given the same names in the same
+ * order agrees on where every key belongs without having to ask the others.
+ */
+public final class HashRing {
+
+    // The number of points each node is placed at
+    private static final int POINTS_PER_NODE = 128;
+
+    // The points in order around the ring, and the node at each one
+    private final long[] points;
+    private final int[] nodes;
+
+    /**
+     * @param nodeNames The names of the nodes, whose positions in the list are the node indexes
+     */
+    public HashRing(List<String> nodeNames) {
+        long[][] placed = new long[nodeNames.size() * POINTS_PER_NODE][];
+        for( int node = 0; node < nodeNames.size(); node++ ) {
+            // Mixed before the points are added, so that similar names do not share points
+            long nameHash = mix(nodeNames.get(node).hashCode());
+            for( int point = 0; point < POINTS_PER_NODE; point++ ) {
+                placed[node * POINTS_PER_NODE + point] =
+                    new long[] { mix(nameHash + point * 0x9e3779b97f4a7c15L), node };
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+
+        this.points = new long[placed.length];
+        this.nodes = new int[placed.length];
+        for( int i = 0; i < placed.length; i++ ) {
+            this.points[i] = placed[i][0];
+            this.nodes[i] = (int) placed[i][1];
+        }
+    }
+
+    /**
+     * @return The index of the node a key belongs to
+     */
+    public int nodeFor(int key) {
+        int index = Arrays.binarySearch(points, mix(key));
+        if( index < 0 ) {
+            index = -index - 1;
+        }
+        return nodes[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Spreads the bits of a value over the whole hash, so that nearby keys land far apart on the
+     * ring. This is the finalizer from MurmurHash3.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts out the ids of users and rooms. Once it keeps its count in a file, it carries on from
+ * where it stopped when the server restarts, so that an id kept in the message history is never
+ * given to a different user or room.
+ *
+ * Writing the file for every id would put a sync on every login, so the counter reserves ids in
+ * blocks instead: the file holds the end of the block being handed out, and is only written and
+ * forced when a block runs out. After a restart the counter starts at the end of the last block,
+ * skipping whatever was left of it.
+ */
+public final class IdCounter {
+
+    // How many ids are reserved each time the file is written
+    private static final int BLOCK_SIZE = 1024;
+
+    private final AtomicInteger next;
+
+    // The count is kept in the file once this is set, and ids from limit onwards have not yet
+    // been written to it
+    private FileChannel file;
+    private volatile long limit;
+
+    /**
+     * @param first The first id handed out
+     */
+    public IdCounter(int first) {
+        this.next = new AtomicInteger(first);
+        this.limit = Long.MAX_VALUE;
+    }
+
+    /**
+     * @return A count never handed out before, even by the server before it restarted
+     */
+    public int next() {
+        int count = next.getAndIncrement();
+        if( count >= limit ) {
+            reserve(count);
+        }
+        return count;
+    }
+
+    /**
+     * Keeps the count in a file from now on, carrying on from the count in it if there is one.
+     *
+     * @param path The file the count is kept in, created if it does not exist
+     */
+    public synchronized void persistIn(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer stored = ByteBuffer.allocate(Long.BYTES);
+        if( channel.read(stored, 0) == Long.BYTES ) {
+            long end = stored.getLong(0);
+            next.accumulateAndGet((int) Math.min(end, Integer.MAX_VALUE), Math::max);
+        }
+
+        this.file = channel;
+        this.limit = next.get();
+        reserve(next.get());
+    }
+
+    /**
+     * Writes the end of a new block to the file, so that a count is never handed out before it
+     * has been reserved on disk.
+     */
+    private synchronized void reserve(int count) {
+        while( count >= limit ) {
+            long end = limit + BLOCK_SIZE;
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, end);
+                while( buffer.hasRemaining() ) {
+                    file.write(buffer, buffer.position());
+                }
+                file.force(true);
+            } catch( IOException ioe ) {
+                // Ids still do not repeat while the server runs, only across a restart
+                ServerLog.error("Server -> Could not reserve ids: %s\n", ioe);
+            }
+            limit = end;
+        }
+    }
+}
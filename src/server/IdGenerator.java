@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out 64 bit ids that are unique across every node of a cluster and across restarts,
+ * without locking or allocating. Each id is made up of, from the highest bits down:
+ *
+ * <pre>
+ *   timestamp  41 bits  milliseconds since EPOCH_MILLIS, enough for 69 years
+ *   node       10 bits  the index of the node that handed out the id
+ *   sequence   12 bits  counts the ids handed out within the same millisecond
+ * </pre>
+ *
+ * The top bit is always clear, so ids are positive and sort by the time they were handed out.
+ *
+ * The timestamp and sequence are kept together in a single AtomicLong and advanced with a compare
+ * and set, so any number of threads can take ids at once. Once the 4096 ids of a millisecond have
+ * been used, ids are taken from the next millisecond before the clock gets there, and if the clock
+ * goes backwards ids carry on from where they were. Either way ids only ever increase.
+ *
+ * That only holds while the generator runs. Across a restart ids are only unique if the clock has
+ * not gone back past the last id handed out, unless the generator keeps a high-water mark in a
+ * file. It then reserves timestamps a minute ahead of the clock, writing and forcing the file only
+ * when the reservation runs out, and after a restart starts from the end of the last reservation
+ * however far back the clock has gone.
+ */
+public final class IdGenerator {
+
+    // 2026-01-01T00:00:00Z, so that the timestamp bits last as long as possible
+    private static final long EPOCH_MILLIS = 1767225600000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+
+    /**
+     * The most nodes that can hand out ids
+     */
+    public static final int MAX_NODES = 1 << NODE_BITS;
+
+    // How far ahead of the ids handed out timestamps are reserved in the file
+    private static final long RESERVE_MILLIS = 60 * 1000;
+
+    // The timestamp of the last id handed out, shifted above its sequence
+    private final AtomicLong last;
+    private final long nodeBits;
+
+    // Once the high-water mark is kept in a file, the timestamp, shifted above its sequence, up to
+    // which ids have been reserved in it
+    private FileChannel file;
+    private volatile long reserved = Long.MAX_VALUE;
+
+    /**
+     * @param nodeIndex The index of the node ids are handed out by, below MAX_NODES
+     */
+    public IdGenerator(int nodeIndex) {
+        if( nodeIndex < 0 || nodeIndex >= MAX_NODES ) {
+            throw new IllegalArgumentException(String.format(
+                        "Node index %d is not between 0 and %d", nodeIndex, MAX_NODES - 1));
+        }
+
+        this.last = new AtomicLong();
+        this.nodeBits = (long) nodeIndex << SEQUENCE_BITS;
+    }
+
+    /**
+     * @return An id that has never been handed out before by any node
+     */
+    public long next() {
+        long now = (System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS;
+
+        while( true ) {
+            long previous = last.get();
+            long current = Math.max(previous + 1, now);
+            if( last.compareAndSet(previous, current) ) {
+                if( current >= reserved ) {
+                    reserve(current);
+                }
+                long timestamp = current >>> SEQUENCE_BITS;
+                long sequence = current & ((1L << SEQUENCE_BITS) - 1);
+                return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | nodeBits | sequence;
+            }
+        }
+    }
+
+    /**
+     * Keeps a high-water mark in a file from now on, so that ids handed out after a restart are
+     * above any handed out before it, even if the clock has gone backwards in between.
+     *
+     * @param path The file the mark is kept in, created if it does not exist
+     */
+    public synchronized void persistIn(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer stored = ByteBuffer.allocate(Long.BYTES);
+        if( channel.read(stored, 0) == Long.BYTES ) {
+            last.accumulateAndGet(stored.getLong(0), Math::max);
+        }
+
+        this.file = channel;
+        this.reserved = last.get();
+        reserve(last.get());
+    }
+
+    /**
+     * Writes a new reservation to the file before any id at or past the old one is handed out.
+     */
+    private synchronized void reserve(long current) {
+        if( current < reserved ) {
+            return;
+        }
+
+        long end = current + (RESERVE_MILLIS << SEQUENCE_BITS);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(0, end);
+            while( buffer.hasRemaining() ) {
+                file.write(buffer, buffer.position());
+            }
+            file.force(true);
+        } catch( IOException ioe ) {
+            // Ids still do not repeat while the server runs, only across a restart
+            ServerLog.error("Server -> Could not reserve message ids: %s\n", ioe);
+        }
+        reserved = end;
+    }
+
+    /**
+     * @return The time an id was handed out, in milliseconds since the Unix epoch
+     */
+    public static long timestampOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS;
+    }
+
+    /**
+     * @return The index of the node that handed out an id
+     */
+    public static int nodeOf(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & (MAX_NODES - 1);
+    }
+}
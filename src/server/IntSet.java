@@ -0,0 +1,89 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A set of ints that is copied on write. Readers take a snapshot of the members, which is a plain
+ * sorted int array, and can iterate over it without locking or boxing while other threads add and
+ * remove members. Writers replace the array with a compare and set, so they never block readers or
+ * each other. This suits sets that are read far more often than they change, like the members of a
+ * room, which are read on every message but only change on joins and leaves.
+ */
+public class IntSet {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final AtomicReference<int[]> members;
+
+    public IntSet() {
+        this.members = new AtomicReference<>(EMPTY);
+    }
+
+    /**
+     * @param value The value to add
+     * @return true if the value was not already in the set
+     */
+    public boolean add(int value) {
+        while( true ) {
+            int[] current = members.get();
+            int index = Arrays.binarySearch(current, value);
+            if( index >= 0 ) {
+                return false;
+            }
+
+            // Insert the value at its sorted position
+            int insertAt = -(index + 1);
+            int[] updated = new int[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, insertAt);
+            updated[insertAt] = value;
+            System.arraycopy(current, insertAt, updated, insertAt + 1, current.length - insertAt);
+
+            if( members.compareAndSet(current, updated) ) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param value The value to remove
+     * @return true if the value was in the set
+     */
+    public boolean remove(int value) {
+        while( true ) {
+            int[] current = members.get();
+            int index = Arrays.binarySearch(current, value);
+            if( index < 0 ) {
+                return false;
+            }
+
+            int[] updated = current.length == 1 ? EMPTY : new int[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+
+            if( members.compareAndSet(current, updated) ) {
+                return true;
+            }
+        }
+    }
+
+    public boolean contains(int value) {
+        return Arrays.binarySearch(members.get(), value) >= 0;
+    }
+
+    public int size() {
+        return members.get().length;
+    }
+
+    public boolean isEmpty() {
+        return members.get().length == 0;
+    }
+
+    /**
+     * Returns the members of the set at this moment. The array is shared and must not be
+     * modified.
+     *
+     * @return The members of the set in ascending order
+     */
+    public int[] snapshot() {
+        return members.get();
+    }
+}
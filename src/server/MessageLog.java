@@ -0,0 +1,676 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the chat history of every room on disk, so that it outlasts the server and can be read
+ * back from any point. Each room has its own directory of segments, which are only ever appended to. A segment
+ * is a pair of memory-mapped files: the log, which holds the messages one after another as binary
+ * frames, and the index, which holds the time each message was logged and where it starts in the
+ * log. Messages are numbered from zero in each room, so the index entry for a message is found
+ * from its number alone, and the first message after a given time by a binary search.
+ *
+ * Appending a message only queues it, so logging adds next to nothing to sending a message to a
+ * room. A single thread encodes the queued messages and copies them into the mapped segments, and
+ * once it has emptied the queue forces everything it wrote to disk in one go, so that a burst of
+ * messages costs a single sync however long it is.
+ *
+ * Room ids are never reused, even after the server restarts, so a room's history is kept until
+ * the room is removed. The name of each room is kept with its history, so that the server can
+ * open the rooms again when it restarts, and a user joining a room can be sent more of its
+ * history than the scrollback holds.
+ */
+public class MessageLog {
+
+    // The most bytes of messages in one segment
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    // The most messages in one segment
+    private static final int SEGMENT_MESSAGES = 32 * 1024;
+
+    // Each index entry is the time the message was logged followed by where it starts in the log
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    // The most segments kept for a room before the oldest are deleted
+    private static final int MAX_SEGMENTS = 8;
+
+    // The most appends that may be waiting to be written before new ones are dropped
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+
+    // How long a room's history is left open without being written or read before it is closed
+    private static final long IDLE_MILLIS = 5 * 60 * 1000;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String NAME_FILE = "name";
+
+    private final Path directory;
+    private final LinkedBlockingQueue<Runnable> tasks;
+    private final LongAdder dropped;
+
+    // Only used by the logging thread
+    private final Map<Integer, RoomLog> roomLogs;
+    private final Set<Segment> unsynced;
+
+    /**
+     * Opens the history kept in a directory, creating the directory if it does not exist.
+     *
+     * @param directory Where the history is kept
+     */
+    public MessageLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.tasks = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        this.dropped = new LongAdder();
+        this.roomLogs = new HashMap<>();
+        this.unsynced = new LinkedHashSet<>();
+
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @return The name of every room with history kept in the directory, by id
+     */
+    public Map<Integer, String> loggedRooms() throws IOException {
+        Map<Integer, String> rooms = new HashMap<>();
+        try( DirectoryStream<Path> roomDirectories = Files.newDirectoryStream(directory,
+                    "room-*") ) {
+            for( Path room : roomDirectories ) {
+                Path name = room.resolve(NAME_FILE);
+                if( Files.exists(name) ) {
+                    int roomId = Integer.parseInt(room.getFileName().toString().substring(5));
+                    rooms.put(roomId, new String(Files.readAllBytes(name),
+                                StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return rooms;
+    }
+
+    /**
+     * Starts writing appended messages on a background thread.
+     */
+    public void start() {
+        Thread writer = new Thread(this::writeEntries, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Adds a message to the history of a room. The message is written in the background, and is
+     * dropped if too many messages are already waiting to be written.
+     *
+     * @param room The room the message was sent to
+     * @param message The message, which must not change once it has been appended
+     */
+    public void append(Room room, Message<? extends Serializable> message) {
+        long timestamp = System.currentTimeMillis();
+        int roomId = room.getId();
+        String name = room.getName();
+        if( !tasks.offer(() -> roomLog(roomId, name).append(timestamp, message)) ) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Reads back the most recent messages in the history of a room, oldest first. Every message
+     * appended before this was called is included, and all of them have been passed on by the
+     * time this returns.
+     *
+     * @param roomId The room whose history to read
+     * @param count The most messages to read
+     * @param frames Given each message as a binary frame
+     */
+    public void replay(int roomId, int count, Consumer<byte[]> frames) {
+        runAndWait(() -> {
+            RoomLog log = existingRoomLog(roomId);
+            if( log != null ) {
+                log.replay(Math.max(log.firstOffset(), log.nextOffset - count), frames);
+            }
+        });
+    }
+
+    /**
+     * Reads back the messages in the history of a room that were logged at or after a given
+     * time, as replay(int, int, Consumer) does.
+     *
+     * @param roomId The room whose history to read
+     * @param since The time to read messages from, in milliseconds since the epoch
+     * @param limit The most messages to read, after which only the most recent are read
+     * @param frames Given each message as a binary frame
+     */
+    public void replaySince(int roomId, long since, int limit, Consumer<byte[]> frames) {
+        runAndWait(() -> {
+            RoomLog log = existingRoomLog(roomId);
+            if( log != null ) {
+                log.replay(Math.max(log.offsetAt(since), log.nextOffset - limit), frames);
+            }
+        });
+    }
+
+    /**
+     * Reads back the most recent messages in the history of a room, as replay(int, int, Consumer)
+     * does, but on the logging thread without waiting for them.
+     *
+     * @param roomId The room whose history to read
+     * @param count The most messages to read
+     * @param done Given the messages as binary frames, oldest first, once they have been read
+     */
+    public void replayLater(int roomId, int count, Consumer<List<byte[]>> done) {
+        readLater(done, frames -> {
+            RoomLog log = existingRoomLog(roomId);
+            if( log != null ) {
+                log.replay(Math.max(log.firstOffset(), log.nextOffset - count), frames::add);
+            }
+        });
+    }
+
+    /**
+     * Reads back the messages in the history of a room that were logged at or after a given
+     * time, as replaySince(int, long, int, Consumer) does, but on the logging thread without
+     * waiting for them.
+     *
+     * @param roomId The room whose history to read
+     * @param since The time to read messages from, in milliseconds since the epoch
+     * @param limit The most messages to read, after which only the most recent are read
+     * @param done Given the messages as binary frames, oldest first, once they have been read
+     */
+    public void replaySinceLater(int roomId, long since, int limit,
+            Consumer<List<byte[]>> done) {
+        readLater(done, frames -> {
+            RoomLog log = existingRoomLog(roomId);
+            if( log != null ) {
+                log.replay(Math.max(log.offsetAt(since), log.nextOffset - limit), frames::add);
+            }
+        });
+    }
+
+    /**
+     * Closes the history of a room that nobody is in for now, releasing its mapped segments. The
+     * history is opened again the next time it is written or read.
+     */
+    public void close(int roomId) {
+        // Closing is only to save memory, and idle histories are closed anyway, so it is not
+        // waited for if the queue is full
+        tasks.offer(() -> closeRoomLog(roomId));
+    }
+
+    /**
+     * Deletes the history of a room that has been removed.
+     */
+    public void drop(int roomId) {
+        submit(() -> {
+            RoomLog log = roomLogs.remove(roomId);
+            if( log != null ) {
+                unsynced.removeAll(log.segments);
+                log.segments.clear();
+            }
+
+            try {
+                deleteDirectory(roomDirectory(roomId));
+            } catch( IOException ioe ) {
+                ServerLog.error("Server -> Could not delete the history of room %d: %s\n",
+                        roomId, ioe);
+            }
+        });
+    }
+
+    /**
+     * @return The number of messages that were not logged because too many were waiting
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void submit(Runnable task) {
+        try {
+            tasks.put(task);
+        } catch( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a read of the history without ever waiting for room in the queue. If the queue is
+     * full the read is given up, and done is given nothing straight away.
+     */
+    private void readLater(Consumer<List<byte[]>> done, Consumer<List<byte[]>> read) {
+        List<byte[]> frames = new ArrayList<>();
+        boolean queued = tasks.offer(() -> {
+            try {
+                read.accept(frames);
+            } finally {
+                done.accept(frames);
+            }
+        });
+
+        if( !queued ) {
+            ServerLog.warn("Server -> Too many messages waiting to be logged to read a history\n");
+            done.accept(frames);
+        }
+    }
+
+    private void runAndWait(Runnable task) {
+        CountDownLatch done = new CountDownLatch(1);
+        submit(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        });
+
+        try {
+            done.await();
+        } catch( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs queued tasks as they arrive, syncing whatever they wrote once the queue is empty, and
+     * closes the histories that have been left idle.
+     */
+    private void writeEntries() {
+        List<Runnable> batch = new ArrayList<>();
+        long lastSweep = System.currentTimeMillis();
+
+        while( true ) {
+            try {
+                Runnable task = tasks.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                if( task != null ) {
+                    batch.add(task);
+                }
+            } catch( InterruptedException ie ) {
+                return;
+            }
+            tasks.drainTo(batch);
+
+            for( Runnable task : batch ) {
+                try {
+                    task.run();
+                } catch( RuntimeException re ) {
+                    ServerLog.error("Server -> Message log failed: %s\n", re);
+                }
+            }
+            batch.clear();
+
+            for( Segment segment : unsynced ) {
+                segment.sync();
+            }
+            unsynced.clear();
+
+            long now = System.currentTimeMillis();
+            if( now - lastSweep >= IDLE_MILLIS ) {
+                lastSweep = now;
+                List<Integer> idle = new ArrayList<>();
+                for( RoomLog log : roomLogs.values() ) {
+                    if( now - log.lastUsed >= IDLE_MILLIS ) {
+                        idle.add(log.roomId);
+                    }
+                }
+                for( int roomId : idle ) {
+                    closeRoomLog(roomId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets an open history once everything written to it has been synced. Nothing can be
+     * unmapped by hand, so its segments are unmapped once nothing refers to them, which is only
+     * ever the logging thread.
+     */
+    private void closeRoomLog(int roomId) {
+        RoomLog log = roomLogs.remove(roomId);
+        if( log != null ) {
+            for( Segment segment : log.segments ) {
+                if( unsynced.remove(segment) ) {
+                    segment.sync();
+                }
+            }
+            log.segments.clear();
+        }
+    }
+
+    /**
+     * @param name The name of the room, kept with its history the first time it is given
+     */
+    private RoomLog roomLog(int roomId, String name) {
+        RoomLog log = roomLogs.computeIfAbsent(roomId, RoomLog::new);
+        if( name != null && !log.named ) {
+            log.name(name);
+        }
+        log.lastUsed = System.currentTimeMillis();
+        return log;
+    }
+
+    /**
+     * @return The history of a room, opened if it is on disk, or null if nothing has ever been
+     * logged to the room
+     */
+    private RoomLog existingRoomLog(int roomId) {
+        if( !roomLogs.containsKey(roomId) && !Files.isDirectory(roomDirectory(roomId)) ) {
+            return null;
+        }
+        return roomLog(roomId, null);
+    }
+
+    private Path roomDirectory(int roomId) {
+        return directory.resolve("room-" + roomId);
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        if( !Files.exists(path) ) {
+            return;
+        }
+
+        try( DirectoryStream<Path> files = Files.newDirectoryStream(path) ) {
+            for( Path file : files ) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        // The mapping stays valid once the channel has been closed
+        try( FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE) ) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * The history of a single room, made up of segments in the order they were written
+     */
+    private final class RoomLog {
+        private final int roomId;
+        private final Path directory;
+        private final ArrayDeque<Segment> segments;
+
+        // The number the next message will be given
+        private long nextOffset;
+
+        // Kept increasing, so that a binary search over the index works even if the clock is not
+        private long lastTimestamp;
+
+        // Whether the room's name has been kept with its history
+        private boolean named;
+
+        // When the history was last written or read, so that it can be closed once idle
+        private long lastUsed;
+
+        RoomLog(int roomId) {
+            this.roomId = roomId;
+            this.directory = roomDirectory(roomId);
+            this.segments = new ArrayDeque<>();
+
+            try {
+                Files.createDirectories(directory);
+                recover();
+                named = Files.exists(directory.resolve(NAME_FILE));
+            } catch( IOException ioe ) {
+                ServerLog.error("Server -> Could not open the history of room %d: %s\n",
+                        roomId, ioe);
+            }
+        }
+
+        void name(String name) {
+            try {
+                Files.write(directory.resolve(NAME_FILE), name.getBytes(StandardCharsets.UTF_8));
+                named = true;
+            } catch( IOException ioe ) {
+                ServerLog.error("Server -> Could not keep the name of room %d: %s\n", roomId,
+                        ioe);
+            }
+        }
+
+        /**
+         * Opens the segments already in the room's directory, as left by an earlier server.
+         */
+        private void recover() throws IOException {
+            List<Long> baseOffsets = new ArrayList<>();
+            try( DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                        "*" + LOG_SUFFIX) ) {
+                for( Path file : files ) {
+                    String name = file.getFileName().toString();
+                    baseOffsets.add(Long.parseLong(
+                                name.substring(0, name.length() - LOG_SUFFIX.length())));
+                }
+            }
+            baseOffsets.sort(null);
+
+            for( long baseOffset : baseOffsets ) {
+                Segment segment = new Segment(directory, baseOffset);
+                segments.add(segment);
+                nextOffset = baseOffset + segment.count;
+                if( segment.count > 0 ) {
+                    lastTimestamp = segment.timestamp(segment.count - 1);
+                }
+            }
+        }
+
+        long firstOffset() {
+            Segment first = segments.peekFirst();
+            return first == null ? nextOffset : first.baseOffset;
+        }
+
+        void append(long timestamp, Message<? extends Serializable> message) {
+            try {
+                byte[] frame = MessageCodec.encodeFrame(message, MessageCodec.Format.BINARY);
+                if( frame.length > SEGMENT_SIZE ) {
+                    return;
+                }
+
+                Segment segment = segments.peekLast();
+                if( segment == null || !segment.hasRoomFor(frame.length) ) {
+                    segment = roll();
+                }
+
+                lastTimestamp = Math.max(lastTimestamp, timestamp);
+                segment.append(lastTimestamp, frame);
+                unsynced.add(segment);
+                nextOffset++;
+            } catch( IOException ioe ) {
+                ServerLog.error("Server -> Could not log a message to room %d: %s\n", roomId,
+                        ioe);
+            }
+        }
+
+        /**
+         * Starts a new segment, deleting the oldest if the room has too many.
+         */
+        private Segment roll() throws IOException {
+            Segment segment = new Segment(directory, nextOffset);
+            segments.add(segment);
+
+            while( segments.size() > MAX_SEGMENTS ) {
+                Segment oldest = segments.poll();
+                unsynced.remove(oldest);
+                oldest.delete();
+            }
+            return segment;
+        }
+
+        /**
+         * @return The number of the first message logged at or after a time
+         */
+        long offsetAt(long timestamp) {
+            for( Segment segment : segments ) {
+                if( segment.count > 0 && segment.timestamp(segment.count - 1) >= timestamp ) {
+                    return segment.baseOffset + segment.indexAt(timestamp);
+                }
+            }
+            return nextOffset;
+        }
+
+        /**
+         * Reads back every message from one number onwards.
+         */
+        void replay(long fromOffset, Consumer<byte[]> frames) {
+            for( Segment segment : segments ) {
+                long end = segment.baseOffset + segment.count;
+                for( long offset = Math.max(fromOffset, segment.baseOffset); offset < end;
+                        offset++ ) {
+                    frames.accept(segment.read((int) (offset - segment.baseOffset)));
+                }
+            }
+        }
+    }
+
+    /**
+     * A log file and its index, both mapped in full while the segment is open
+     */
+    private static final class Segment {
+        private final long baseOffset;
+        private final Path logPath;
+        private final Path indexPath;
+        private final MappedByteBuffer log;
+        private final MappedByteBuffer index;
+
+        // The number of messages in the segment, and the end of the last one in the log
+        private int count;
+        private int position;
+
+        // How much of the log and index have been synced to disk
+        private int syncedCount;
+        private int syncedPosition;
+
+        Segment(Path directory, long baseOffset) throws IOException {
+            String name = String.format("%020d", baseOffset);
+            this.baseOffset = baseOffset;
+            this.logPath = directory.resolve(name + LOG_SUFFIX);
+            this.indexPath = directory.resolve(name + INDEX_SUFFIX);
+            this.log = map(logPath, SEGMENT_SIZE);
+            this.index = map(indexPath, SEGMENT_MESSAGES * INDEX_ENTRY_SIZE);
+
+            // The files are zeroed when they are created, and nothing is ever logged at time
+            // zero, so the first empty index entry marks the end of the segment
+            int low = 0;
+            int high = SEGMENT_MESSAGES;
+            while( low < high ) {
+                int mid = (low + high) >>> 1;
+                if( timestamp(mid) != 0 ) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            // A message whose frame was only partly written before a crash is dropped
+            while( low > 0 && !isComplete(low - 1) ) {
+                low--;
+                index.putLong(low * INDEX_ENTRY_SIZE, 0);
+            }
+            this.count = low;
+            this.position = low == 0 ? 0 : start(low - 1) + frameLength(start(low - 1));
+            this.syncedCount = count;
+            this.syncedPosition = position;
+        }
+
+        boolean hasRoomFor(int frameLength) {
+            return count < SEGMENT_MESSAGES && position + frameLength <= SEGMENT_SIZE;
+        }
+
+        void append(long timestamp, byte[] frame) {
+            log.put(position, frame);
+
+            // The index entry is written last, so a message is only found once it is complete
+            index.putInt(count * INDEX_ENTRY_SIZE + 8, position);
+            index.putLong(count * INDEX_ENTRY_SIZE, timestamp);
+
+            position += frame.length;
+            count++;
+        }
+
+        long timestamp(int entry) {
+            return index.getLong(entry * INDEX_ENTRY_SIZE);
+        }
+
+        private int start(int entry) {
+            return index.getInt(entry * INDEX_ENTRY_SIZE + 8);
+        }
+
+        private int frameLength(int start) {
+            return MessageCodec.HEADER_SIZE + log.getInt(start);
+        }
+
+        private boolean isComplete(int entry) {
+            int start = start(entry);
+            if( start < 0 || start + MessageCodec.HEADER_SIZE > SEGMENT_SIZE ) {
+                return false;
+            }
+
+            int length = log.getInt(start);
+            return length > 0 && start + MessageCodec.HEADER_SIZE + length <= SEGMENT_SIZE;
+        }
+
+        /**
+         * @return The position in the index of the first message logged at or after a time
+         */
+        int indexAt(long timestamp) {
+            int low = 0;
+            int high = count;
+            while( low < high ) {
+                int mid = (low + high) >>> 1;
+                if( timestamp(mid) < timestamp ) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return A copy of the frame of a message in the segment
+         */
+        byte[] read(int entry) {
+            int start = start(entry);
+            byte[] frame = new byte[frameLength(start)];
+            log.get(start, frame);
+            return frame;
+        }
+
+        /**
+         * Forces everything appended since the last sync to disk.
+         */
+        void sync() {
+            if( position > syncedPosition ) {
+                log.force(syncedPosition, position - syncedPosition);
+                index.force(syncedCount * INDEX_ENTRY_SIZE,
+                        (count - syncedCount) * INDEX_ENTRY_SIZE);
+                syncedPosition = position;
+                syncedCount = count;
+            }
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(logPath);
+                Files.deleteIfExists(indexPath);
+            } catch( IOException ioe ) {
+                ServerLog.error("Server -> Could not delete %s: %s\n", logPath, ioe);
+            }
+        }
+    }
+}
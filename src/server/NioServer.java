@@ -0,0 +1,496 @@
+import java.net.InetSocketAddress;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking engine for the chat server. Rather than dedicating a thread to every client, a
+ * small number of event loops each own a selector and multiplex many clients over it. The first
+ * event loop also accepts new clients and hands them out to the loops in turn. All room and
+ * dispatch logic is still handled by the Server, so handlers registered with the server are called
+ * on the event loop that read the message.
+ */
+public class NioServer {
+
+    // The size of the buffer used to read from each client
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    // Server information
+    private final Server server;
+    private final int portNumber;
+    private final EventLoop[] eventLoops;
+    private int nextEventLoop = 0;
+
+    /**
+     * Creates a non-blocking engine for a server.
+     *
+     * @param server The server that room and dispatch logic will be delegated to
+     * @param portNumber The port that clients will connect on
+     * @param eventLoopCount The number of selector threads to run, usually one per core
+     */
+    public NioServer(Server server, int portNumber, int eventLoopCount) {
+        this.server = server;
+        this.portNumber = portNumber;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+    }
+
+    /**
+     * Will block running the first event loop, which accepts clients in addition to serving them.
+     * The remaining event loops are started on their own threads.
+     */
+    public void startAccepting() {
+        ServerSocketChannel serverChannel = null;
+
+        try {
+            for( int i = 0; i < eventLoops.length; i++ ) {
+                eventLoops[i] = new EventLoop(i);
+            }
+
+            // Bind the server socket and have the first event loop accept on it
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(portNumber));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch( IOException ioe ) {
+            System.err.printf("Error while attempting to open server on port %d\n", portNumber);
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+
+        System.out.printf("Server -> The server is now listening on %s:%d with %d event loops\n",
+                serverChannel.socket().getInetAddress().getHostName(), portNumber,
+                eventLoops.length);
+
+        for( int i = 1; i < eventLoops.length; i++ ) {
+            Thread loopThread = new Thread(eventLoops[i], "event-loop-" + i);
+            loopThread.start();
+        }
+
+        eventLoops[0].run();
+    }
+
+    /**
+     * Accepts every client that is waiting on the server socket and hands them to an event loop.
+     */
+    private void accept(ServerSocketChannel serverChannel) {
+        while( true ) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if( channel == null ) {
+                    return;
+                }
+
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                EventLoop loop = eventLoops[nextEventLoop];
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                loop.execute(() -> loop.register(channel));
+            } catch( IOException ioe ) {
+                System.err.printf("Error attempting to accept client on port %d\n", portNumber);
+                ioe.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A single selector thread. Other threads interact with an event loop only by submitting tasks
+     * to it, which are run between selects.
+     */
+    private class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private volatile Thread thread;
+
+        // Clients with messages waiting to be written, in the order they were queued. This is
+        // only touched by the event loop's own thread.
+        private final ArrayDeque<NioConnection> pendingFlushes;
+
+        public EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.pendingFlushes = new ArrayDeque<>();
+        }
+
+        public boolean inEventLoop() {
+            return Thread.currentThread() == this.thread;
+        }
+
+        /**
+         * Runs a task on this event loop, waking the selector up if needed.
+         */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if( !inEventLoop() ) {
+                selector.wakeup();
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                NioConnection client = new NioConnection(this, channel);
+                client.key = channel.register(selector, SelectionKey.OP_READ, client);
+                server.addConnection(client);
+            } catch( IOException ioe ) {
+                System.err.printf("Error while registering client!\n");
+                ioe.printStackTrace();
+            }
+        }
+
+        /**
+         * Arranges for a client's queue to be written once the work already in hand is done, or
+         * once the flush latency has passed. Must be called on the event loop.
+         */
+        private void scheduleFlush(NioConnection client) {
+            client.flushAt = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(server.getFlushLatencyMillis());
+            pendingFlushes.add(client);
+        }
+
+        /**
+         * Writes out every client whose flush is due, or that has a full batch waiting.
+         *
+         * @return How many milliseconds until the next flush is due, or 0 if none are waiting
+         */
+        private long flushPending() {
+            long now = System.nanoTime();
+            long nextFlush = Long.MAX_VALUE;
+
+            for( int i = pendingFlushes.size(); i > 0; i-- ) {
+                NioConnection client = pendingFlushes.poll();
+                if( client.flushAt - now <= 0
+                        || client.getQueueDepth() >= server.getMaxWriteBatch() ) {
+                    client.handleWrite();
+                } else {
+                    nextFlush = Math.min(nextFlush, client.flushAt);
+                    pendingFlushes.add(client);
+                }
+            }
+
+            if( nextFlush == Long.MAX_VALUE ) {
+                return 0;
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextFlush - now));
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while( (task = tasks.poll()) != null ) {
+                task.run();
+            }
+        }
+
+        public void run() {
+            this.thread = Thread.currentThread();
+
+            while( true ) {
+                try {
+                    // Everything queued since the last select is written together
+                    runTasks();
+                    long timeout = flushPending();
+                    if( !tasks.isEmpty() ) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(timeout);
+                    }
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while( keys.hasNext() ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if( !key.isValid() ) {
+                            continue;
+                        }
+
+                        if( key.isAcceptable() ) {
+                            accept((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+
+                        NioConnection client = (NioConnection) key.attachment();
+                        if( key.isReadable() ) {
+                            client.handleRead();
+                        }
+                        if( key.isValid() && key.isWritable() ) {
+                            client.handleWrite();
+                        }
+                    }
+                } catch( IOException ioe ) {
+                    System.err.printf("Error in event loop %d\n", index);
+                    ioe.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A client served by an event loop. Messages sent to the client are encoded on the calling
+     * thread and queued, and the event loop writes them out as the socket becomes writable.
+     * Everything queued for the client while the event loop is busy is written in one gathering
+     * write at the end, rather than a write for each message.
+     */
+    private class NioConnection extends ClientConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // Incoming bytes that have not yet formed a complete frame
+        private ByteBuffer readBuffer;
+
+        // The frames being written, which may have been partially written. The frames from
+        // batchStart to batchEnd are still to be finished, and each has a buffer over its bytes.
+        private final OutboundQueue.Frame[] batch;
+        private final ByteBuffer[] batchBuffers;
+        private int batchStart;
+        private int batchEnd;
+        private long fileRegionWritten;
+        private final AtomicBoolean writeScheduled;
+
+        // When the queue is due to be written, on the event loop's clock
+        private long flushAt;
+
+        public NioConnection(EventLoop loop, SocketChannel channel) {
+            super(server.nextUserId(), server.getOutboundQueueCapacity(),
+                    server.getSlowConsumerPolicy());
+            this.loop = loop;
+            this.channel = channel;
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            this.batch = new OutboundQueue.Frame[server.getMaxWriteBatch()];
+            this.batchBuffers = new ByteBuffer[batch.length];
+            this.writeScheduled = new AtomicBoolean(false);
+        }
+
+        protected void framesQueued() {
+            if( closed ) {
+                return;
+            }
+
+            // Only one pending flush is needed no matter how many messages are queued
+            if( writeScheduled.compareAndSet(false, true) ) {
+                if( loop.inEventLoop() ) {
+                    loop.scheduleFlush(this);
+                } else {
+                    loop.execute(() -> loop.scheduleFlush(this));
+                }
+            } else if( server.getFlushLatencyMillis() > 0 && !loop.inEventLoop()
+                    && getQueueDepth() == batch.length ) {
+                // A full batch does not wait out the flush latency
+                loop.selector.wakeup();
+            }
+        }
+
+        protected void slowConsumer() {
+            loop.execute(() -> {
+                server.disconnect(this, true);
+                close();
+            });
+        }
+
+        public void close() {
+            closed = true;
+            if( key != null ) {
+                key.cancel();
+            }
+
+            try {
+                channel.close();
+            } catch( IOException ioe ) {
+                // The channel is being discarded anyway
+            }
+
+            if( loop.inEventLoop() ) {
+                releaseWrites();
+            } else {
+                loop.execute(this::releaseWrites);
+            }
+        }
+
+        private void handleRead() {
+            try {
+                int read = channel.read(readBuffer);
+                if( read < 0 ) {
+                    throw new IOException("End of stream");
+                }
+
+                readBuffer.flip();
+                decodeFrames();
+                if( readBuffer.capacity() > READ_BUFFER_SIZE && fitsDefaultBuffer() ) {
+                    // Give back the memory taken by a large frame once it has been dispatched
+                    ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                    smaller.put(readBuffer);
+                    readBuffer = smaller;
+                } else {
+                    readBuffer.compact();
+                }
+            } catch( IOException ioe ) {
+                server.disconnect(this, true);
+                close();
+            }
+        }
+
+        /**
+         * Dispatches every complete frame in the read buffer. The buffer is left positioned at
+         * the start of the first incomplete frame, growing it if that frame will not fit.
+         */
+        private void decodeFrames() throws IOException {
+            while( readBuffer.remaining() >= MessageCodec.HEADER_SIZE ) {
+                int start = readBuffer.position();
+                int length = readBuffer.getInt(start);
+                MessageCodec.checkLength(length);
+
+                int frameSize = MessageCodec.HEADER_SIZE + length;
+                if( readBuffer.remaining() < frameSize ) {
+                    if( frameSize > readBuffer.capacity() ) {
+                        ByteBuffer larger = ByteBuffer.allocate(frameSize);
+                        larger.put(readBuffer);
+                        larger.flip();
+                        readBuffer = larger;
+                    }
+                    return;
+                }
+
+                try {
+                    int payloadStart = start + MessageCodec.HEADER_SIZE;
+                    frameReceived(readBuffer.array(), payloadStart);
+
+                    Message<?> messageRecieved = MessageCodec.decode(readBuffer.array(),
+                            payloadStart, length);
+                    server.routeMessage(this, messageRecieved, length);
+                } catch( ClassNotFoundException cnfe ) {
+                    System.err.printf("Invalid message class recieved over socket!\n");
+                    cnfe.printStackTrace();
+                }
+
+                readBuffer.position(start + frameSize);
+            }
+        }
+
+        /**
+         * Whether what is left in the read buffer, including the whole of the frame it starts,
+         * fits in a buffer of the default size.
+         */
+        private boolean fitsDefaultBuffer() {
+            if( readBuffer.remaining() < MessageCodec.HEADER_SIZE ) {
+                return true;
+            }
+
+            int length = readBuffer.getInt(readBuffer.position());
+            return MessageCodec.HEADER_SIZE + length <= READ_BUFFER_SIZE;
+        }
+
+        /**
+         * Takes the next batch of frames from the queue.
+         *
+         * @return false if the queue was empty
+         */
+        private boolean nextBatch() {
+            batchStart = 0;
+            batchEnd = outbound.drainTo(batch, batch.length);
+            for( int i = 0; i < batchEnd; i++ ) {
+                batchBuffers[i] = ByteBuffer.wrap(batch[i].bytes);
+            }
+            fileRegionWritten = 0;
+            return batchEnd > 0;
+        }
+
+        /**
+         * Writes as much of the current batch as the socket will take.
+         *
+         * @return true once the whole batch has been written
+         */
+        private boolean writeBatch() throws IOException {
+            int messages = 0;
+            int writes = 0;
+
+            try {
+                // The buffers are written in order, so the last is only empty once all of them are
+                if( batchBuffers[batchEnd - 1].hasRemaining() ) {
+                    channel.write(batchBuffers, batchStart, batchEnd - batchStart);
+                    writes++;
+                }
+
+                while( batchStart < batchEnd && !batchBuffers[batchStart].hasRemaining() ) {
+                    OutboundQueue.Frame frame = batch[batchStart];
+
+                    // A frame ending in a file region is copied from the file by the kernel
+                    if( fileRegionWritten < frame.fileLength ) {
+                        fileRegionWritten += frame.file.transferTo(
+                                frame.filePosition + fileRegionWritten,
+                                frame.fileLength - fileRegionWritten, channel);
+                        writes++;
+                        if( fileRegionWritten < frame.fileLength ) {
+                            break;
+                        }
+                    }
+
+                    frame.done();
+                    batch[batchStart] = null;
+                    batchBuffers[batchStart] = null;
+                    batchStart++;
+                    messages++;
+                }
+            } finally {
+                server.recordWrites(this, messages, writes);
+            }
+
+            return batchStart == batchEnd;
+        }
+
+        /**
+         * Releases every frame that will now never be written.
+         */
+        private void releaseWrites() {
+            while( batchStart < batchEnd ) {
+                batch[batchStart].done();
+                batch[batchStart] = null;
+                batchBuffers[batchStart] = null;
+                batchStart++;
+            }
+            outbound.clear();
+        }
+
+        private void handleWrite() {
+            if( closed ) {
+                return;
+            }
+
+            try {
+                while( batchStart < batchEnd || nextBatch() ) {
+                    if( !writeBatch() ) {
+                        // The socket is full, so wait until it becomes writable again
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                key.interestOps(SelectionKey.OP_READ);
+                writeScheduled.set(false);
+
+                // Catch anything that was queued after the queue was seen to be empty
+                if( outbound.isReady() && writeScheduled.compareAndSet(false, true) ) {
+                    loop.scheduleFlush(this);
+                }
+            } catch( IOException ioe ) {
+                server.disconnect(this, false);
+                close();
+            }
+        }
+    }
+}
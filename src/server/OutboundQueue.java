@@ -0,0 +1,425 @@
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of encoded frames waiting to be written to a single client. Sending a message to
+ * a client only adds it to the client's queue, so a client that reads slowly can never hold up the
+ * thread that is sending to it. When the queue is full the slow consumer policy decides what to
+ * give up.
+ *
+ * Chunks of files are never given up. Whoever sends a chunk waits for it to be written before
+ * sending more than a window of the file, so chunks cannot fill the queue on their own, and a
+ * dropped chunk would leave a hole in the file with nothing to tell the receiver. A chunk sent to
+ * a full queue is queued over its capacity instead, unless the policy is to disconnect.
+ *
+ * A place can be held in the queue for a frame that is not ready yet, such as history still being
+ * read from disk. Nothing queued after the place is written until it has been filled, so the
+ * client gets its frames in the order they were queued without anything having to wait for the
+ * frame to be ready. A held place is never dropped.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do when a message is sent to a client whose queue is full
+     */
+    public enum SlowConsumerPolicy {
+        /**
+         * Discard the oldest queued message other than a file chunk to make room
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the oldest queued AUDIO message to make room, falling back to the oldest
+         * message other than a file chunk when no audio is queued
+         */
+        DROP_BULK_FIRST,
+
+        /**
+         * Disconnect the client
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Counts down the recipients of a broadcast, running an action once every one of them has
+     * either been written the frame or had it dropped. The count starts at one for the broadcast
+     * itself, which is released once every recipient has been queued.
+     */
+    public static final class Completion {
+        private final AtomicInteger pending;
+        private final Runnable action;
+
+        public Completion(Runnable action) {
+            this.pending = new AtomicInteger(1);
+            this.action = action;
+        }
+
+        public void retain() {
+            pending.incrementAndGet();
+        }
+
+        public void release() {
+            if( pending.decrementAndGet() == 0 ) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * An encoded message waiting in the queue. The same frame may be queued for every member of a
+     * room, so its bytes must never be modified once it has been created.
+     *
+     * A frame may end with a region of a file, in which case the bytes are only the start of the
+     * frame and the writer copies the region to the socket directly with FileChannel.transferTo.
+     *
+     * Bulk frames are the first to be dropped from a full queue, while chunk frames are never
+     * dropped.
+     */
+    public static final class Frame {
+        public final byte[] bytes;
+        public final boolean bulk;
+        public final boolean chunk;
+        public final FileChannel file;
+        public final long filePosition;
+        public final int fileLength;
+        private final Completion completion;
+
+        // Set on a frame that only holds a place in a queue, guarded by the lock of that queue
+        private boolean placeholder;
+        private boolean filled;
+        private Frame filling;
+
+        public Frame(byte[] bytes, boolean bulk) {
+            this(bytes, bulk, false, null, 0, 0, null);
+        }
+
+        /**
+         * Creates a chunk of a file made up of some bytes followed by a region of the file.
+         *
+         * @param bytes The start of the frame
+         * @param file The file holding the rest of the frame
+         * @param filePosition Where the rest of the frame starts in the file
+         * @param fileLength How many bytes of the file make up the rest of the frame
+         * @param completion Told when the chunk has been written, which lets more be sent
+         */
+        public Frame(byte[] bytes, FileChannel file, long filePosition, int fileLength,
+                Completion completion) {
+            this(bytes, false, true, file, filePosition, fileLength, completion);
+        }
+
+        private Frame(byte[] bytes, boolean bulk, boolean chunk, FileChannel file,
+                long filePosition, int fileLength, Completion completion) {
+            this.bytes = bytes;
+            this.bulk = bulk;
+            this.chunk = chunk;
+            this.file = file;
+            this.filePosition = filePosition;
+            this.fileLength = fileLength;
+            this.completion = completion;
+        }
+
+        /**
+         * Creates a frame that holds a place in a queue for one that is not ready yet. It must
+         * only be queued for a single client.
+         */
+        public static Frame placeholder() {
+            Frame frame = new Frame(new byte[0], false);
+            frame.placeholder = true;
+            return frame;
+        }
+
+        /**
+         * Writes the file region of this frame, if it has one, to a blocking channel.
+         */
+        public void writeFileRegion(WritableByteChannel channel) throws IOException {
+            long written = 0;
+            while( written < fileLength ) {
+                written += file.transferTo(filePosition + written, fileLength - written, channel);
+            }
+        }
+
+        /**
+         * Must be called once for each client the frame was queued for, after it has been
+         * written to that client or discarded.
+         */
+        public void done() {
+            if( completion != null ) {
+                completion.release();
+            }
+        }
+
+        /**
+         * Encodes a message into a frame that can be queued for any number of clients.
+         *
+         * @param message The message to encode
+         * @param format The format the frame will be written in
+         */
+        public static <E extends Serializable> Frame encode(Message<E> message,
+                MessageCodec.Format format) throws IOException {
+            return encode(message, format, null);
+        }
+
+        /**
+         * Encodes a message into a frame whose completion is told when each recipient is done
+         * with it.
+         *
+         * @param message The message to encode
+         * @param format The format the frame will be written in
+         * @param completion The completion for the broadcast, or null
+         */
+        public static <E extends Serializable> Frame encode(Message<E> message,
+                MessageCodec.Format format, Completion completion) throws IOException {
+            MessageType type = message.getType();
+
+            return new Frame(MessageCodec.encodeFrame(message, format),
+                    type == MessageType.AUDIO, type == MessageType.FILE_CHUNK, null, 0, 0,
+                    completion);
+        }
+    }
+
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final ArrayDeque<Frame> frames;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final AtomicLong dropped;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.frames = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * Adds a frame to the queue, applying the slow consumer policy if the queue is full.
+     *
+     * @param frame The frame to queue
+     * @return false if the client should be disconnected, true otherwise
+     */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if( frames.size() >= capacity ) {
+                if( policy == SlowConsumerPolicy.DISCONNECT ) {
+                    frame.done();
+                    return false;
+                }
+
+                if( !frame.chunk && !frame.placeholder ) {
+                    boolean madeRoom;
+                    if( policy == SlowConsumerPolicy.DROP_BULK_FIRST ) {
+                        // New bulk data is dropped rather than anything but older bulk data
+                        madeRoom = dropOldest(true) || (!frame.bulk && dropOldest(false));
+                    } else {
+                        madeRoom = dropOldest(false);
+                    }
+
+                    dropped.incrementAndGet();
+                    if( !madeRoom ) {
+                        frame.done();
+                        return true;
+                    }
+                }
+            }
+
+            frames.add(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the oldest frame that is not a chunk of a file.
+     *
+     * @param bulkOnly Whether only a bulk frame may be dropped
+     * @return false if there was nothing to drop
+     */
+    private boolean dropOldest(boolean bulkOnly) {
+        for( Iterator<Frame> iter = frames.iterator(); iter.hasNext(); ) {
+            Frame frame = iter.next();
+            if( !frame.chunk && !frame.placeholder && (frame.bulk || !bulkOnly) ) {
+                iter.remove();
+                frame.done();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills a place held in the queue, letting the frames queued after it be written.
+     *
+     * @param placeholder The frame holding the place
+     * @param frame The frame to write in its place, or null to write nothing
+     * @return false if the place was discarded with the rest of the queue
+     */
+    public boolean fill(Frame placeholder, Frame frame) {
+        lock.lock();
+        try {
+            if( placeholder.filled ) {
+                if( frame != null ) {
+                    frame.done();
+                }
+                return false;
+            }
+
+            placeholder.filled = true;
+            placeholder.filling = frame;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next frame that can be written, passing over the places that have been filled.
+     * Must be called holding the lock.
+     *
+     * @return The next frame, or null if the queue is empty or waiting for a place to be filled
+     */
+    private Frame next() {
+        Frame frame;
+        while( (frame = frames.peek()) != null && frame.placeholder ) {
+            if( !frame.filled ) {
+                return null;
+            }
+
+            frames.poll();
+            if( frame.filling != null ) {
+                return frame.filling;
+            }
+        }
+        return frames.poll();
+    }
+
+    /**
+     * @return The next frame, or null if there is none that can be written yet
+     */
+    public Frame poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Whether there is a frame that can be written
+     */
+    public boolean isReady() {
+        lock.lock();
+        try {
+            Frame frame = frames.peek();
+            return frame != null && (!frame.placeholder || frame.filled);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes as many frames as are queued, up to a limit, so that they can be written together.
+     * A frame that ends in a file region has to be written on its own after its bytes, so the
+     * batch stops after one.
+     *
+     * @param batch Where to put the frames, starting from the beginning
+     * @param max The most frames to take
+     * @return The number of frames taken
+     */
+    public int drainTo(Frame[] batch, int max) {
+        lock.lock();
+        try {
+            int count = 0;
+            Frame frame;
+            while( count < max && (frame = next()) != null ) {
+                batch[count++] = frame;
+                if( frame.file != null ) {
+                    break;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @param timeout How long to wait, in milliseconds
+     * @return The next frame, or null if none could be written before the timeout
+     */
+    public Frame poll(long timeout) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            Frame frame;
+            while( (frame = next()) == null ) {
+                if( nanos <= 0 ) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards every frame in the queue, for when the client has gone away.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            Frame frame;
+            while( (frame = frames.poll()) != null ) {
+                if( frame.placeholder ) {
+                    // Whatever fills the place later is discarded too
+                    frame.filled = true;
+                    if( frame.filling != null ) {
+                        frame.filling.done();
+                    }
+                }
+                frame.done();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of frames waiting to be written
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of frames that have been dropped by the slow consumer policy
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
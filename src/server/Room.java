@@ -1,43 +1,224 @@
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A room that users can join and send messages to.
+ *
+ * Messages sent to a room and changes to its members are put in order by locking the room. The
+ * lock is only held while the change is made, such as adding a message to the scrollback or a
+ * member to the members; sending whatever the change has to send is queued as a delivery and done
+ * once the lock is released. Deliveries are run one at a time in the order they were queued, by
+ * whichever thread finds them waiting as it unlocks the room, so a member is sent each message
+ * once and in order without joins and leaves waiting on the whole of a broadcast.
+ */
 public class Room {
-    // Global variables
-    private static int globalRoomIdCounter = 0;
-
     // Information about the room
     private final int id;
     private final String roomName;
-    private Set<Integer> users;
+    private final IntSet users;
+
+    // The codec members encode audio sent to the room with, negotiated by the server once anyone
+    // has sent audio to the room
+    private volatile AudioCodec audioCodec = AudioCodecs.PCM;
+    private volatile boolean hasAudio;
+
+    // How many members can decode each codec, by the codec's id, kept up to date as members join
+    // and leave so that the codec can be chosen without visiting every member
+    private final int[] codecMembers = new int[Integer.SIZE];
+
+    // The recent messages sent to the room, for users who join it
+    private volatile Scrollback scrollback;
 
-    public Room(String roomName) {
-        this.id = globalRoomIdCounter;
+    // How fast everyone in the room together is sending chat, and bytes of files and audio
+    private final TokenBucket chatBucket = new TokenBucket();
+    private final TokenBucket bulkBucket = new TokenBucket();
+
+    // Puts changes to the room in order, and the deliveries waiting to be run for them
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Runnable> deliveries = new ArrayDeque<>();
+    private boolean delivering;
+
+    /**
+     * @param id The id of the room, which the server allocates so that it is unique across every
+     * node of a cluster
+     * @param roomName The name of the room
+     * @param scrollback Where the recent messages sent to the room are kept
+     */
+    public Room(int id, String roomName, Scrollback scrollback) {
+        this.id = id;
         this.roomName = roomName;
-        globalRoomIdCounter++;
+        this.scrollback = scrollback;
+
+        this.users = new IntSet();
+    }
+
+    public void lock() {
+        this.lock.lock();
+    }
+
+    /**
+     * Unlocks the room, then runs every delivery waiting to be run unless another thread is
+     * already running them.
+     */
+    public void unlock() {
+        boolean deliver = lock.getHoldCount() == 1 && !delivering && !deliveries.isEmpty();
+        if( deliver ) {
+            delivering = true;
+        }
+        this.lock.unlock();
+
+        if( deliver ) {
+            runDeliveries();
+        }
+    }
+
+    /**
+     * Queues something to be sent once the room is unlocked, after everything queued before it.
+     * Must be called with the room locked.
+     */
+    public void deliver(Runnable delivery) {
+        this.deliveries.add(delivery);
+    }
+
+    private void runDeliveries() {
+        while( true ) {
+            Runnable delivery;
+            lock.lock();
+            try {
+                delivery = deliveries.poll();
+                if( delivery == null ) {
+                    delivering = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                delivery.run();
+            } catch( RuntimeException re ) {
+                ServerLog.error("Server -> Delivery to room %s failed: %s\n", roomName, re);
+            }
+        }
+    }
+
+    /**
+     * Adds a member to the room. Must be called with the room locked.
+     *
+     * @param audioCodecs The mask of the codecs the member can decode
+     */
+    public void addUser(int userId, int audioCodecs) {
+        if( this.users.add(userId) ) {
+            countCodecs(audioCodecs, 1);
+        }
+    }
+
+    /**
+     * Removes a member from the room. Must be called with the room locked.
+     *
+     * @param audioCodecs The mask of the codecs the member could decode when it was added, or
+     * last changed them
+     */
+    public void removeUser(int userId, int audioCodecs) {
+        if( this.users.remove(userId) ) {
+            countCodecs(audioCodecs, -1);
+        }
+    }
 
-        this.users = new TreeSet<>();
+    /**
+     * Changes the codecs a member can decode. Must be called with the room locked.
+     */
+    public void changeAudioCodecs(int userId, int before, int after) {
+        if( this.users.contains(userId) ) {
+            countCodecs(before, -1);
+            countCodecs(after, 1);
+        }
     }
 
-    public void addUser(int userId) {
-        this.users.add(userId);
+    private void countCodecs(int mask, int change) {
+        for( int id = 0; id < codecMembers.length; id++ ) {
+            if( (mask & (1 << id)) != 0 ) {
+                codecMembers[id] += change;
+            }
+        }
+    }
+
+    /**
+     * @return The mask of the codecs every member can decode. Must be called with the room locked.
+     */
+    public int getCommonAudioCodecs() {
+        int members = this.users.size();
+        int mask = 0;
+        for( int id = 0; id < codecMembers.length; id++ ) {
+            if( codecMembers[id] == members ) {
+                mask |= 1 << id;
+            }
+        }
+        return mask;
     }
 
-    public void removeUser(int userId) {
-        this.users.remove(userId);
+    public boolean hasUser(int userId) {
+        return this.users.contains(userId);
     }
 
     public String getName() {
         return this.roomName;
     }
 
-    public Set<Integer> getUsers() {
-        return this.users;
+    /**
+     * Returns the users in the room at this moment. Users can join and leave while the array is
+     * being iterated over without affecting it.
+     *
+     * @return The ids of the users in the room, which must not be modified
+     */
+    public int[] getUsers() {
+        return this.users.snapshot();
+    }
+
+    public int getUserCount() {
+        return this.users.size();
     }
 
     public int getId() {
         return this.id;
     }
 
+    public AudioCodec getAudioCodec() {
+        return this.audioCodec;
+    }
+
+    public void setAudioCodec(AudioCodec audioCodec) {
+        this.audioCodec = audioCodec;
+    }
+
+    /**
+     * @return Whether anyone has sent audio to the room, before which there is no need to choose
+     * a codec for it
+     */
+    public boolean hasAudio() {
+        return this.hasAudio;
+    }
+
+    public void setHasAudio() {
+        this.hasAudio = true;
+    }
+
+    public Scrollback getScrollback() {
+        return this.scrollback;
+    }
+
+    public void setScrollback(Scrollback scrollback) {
+        this.scrollback = scrollback;
+    }
+
+    public TokenBucket getChatBucket() {
+        return this.chatBucket;
+    }
+
+    public TokenBucket getBulkBucket() {
+        return this.bulkBucket;
+    }
+
     public boolean equals(Object other) {
         if( other instanceof Room ) {
             return id == ((Room)other).getId();
@@ -0,0 +1,287 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The most recent messages sent to a room, kept in memory so that they can be sent to users as
+ * they join. Messages are kept already encoded as binary frames, in a ring that holds no more
+ * than a set number of messages or bytes, whichever it reaches first; once it is full each new
+ * message pushes out the oldest.
+ *
+ * Files and audio are not kept, since a single chunk or second of speech would push out much of
+ * the chat. They are kept as a short line saying that a file was shared or that someone spoke,
+ * so that what is kept for a room never grows beyond the limits however it is used.
+ *
+ * The id of each message is kept alongside it, so that a client resuming its session can be sent
+ * just the messages after the last one it saw.
+ *
+ * Messages are taken out as a History while the room is locked, which only copies references to
+ * the frames, and encoded for the client once the room has been unlocked. A History can also be
+ * narrowed down to the last few messages or those sent since a given time, for a user who asked
+ * for that much when joining.
+ */
+public final class Scrollback {
+
+    /**
+     * Some of the messages kept, oldest first, as they were when they were taken out.
+     */
+    public static final class History {
+        private final byte[][] frames;
+        private final long[] ids;
+        private final int bytes;
+
+        // Whether the messages carry straight on from the one they were asked to follow, rather
+        // than that message having been pushed out or never kept
+        public final boolean complete;
+
+        private History(byte[][] frames, long[] ids, int bytes, boolean complete) {
+            this.frames = frames;
+            this.ids = ids;
+            this.bytes = bytes;
+            this.complete = complete;
+        }
+
+        /**
+         * @param frames Messages encoded as binary frames, oldest first, such as those read back
+         * from the message log
+         */
+        public static History of(List<byte[]> frames) {
+            byte[][] kept = frames.toArray(new byte[0][]);
+            long[] ids = new long[kept.length];
+            int bytes = 0;
+            for( int i = 0; i < kept.length; i++ ) {
+                ids[i] = idOf(kept[i]);
+                bytes += kept[i].length;
+            }
+            return new History(kept, ids, bytes, true);
+        }
+
+        public boolean isEmpty() {
+            return frames.length == 0;
+        }
+
+        public int size() {
+            return frames.length;
+        }
+
+        /**
+         * @return Whether the oldest message was sent at or before a time, so that nothing sent
+         * since then is missing
+         */
+        public boolean reachesBack(long time) {
+            return frames.length > 0 && IdGenerator.timestampOf(ids[0]) <= time;
+        }
+
+        /**
+         * @return Just the newest messages
+         */
+        public History newest(int count) {
+            return from(Math.max(0, frames.length - count));
+        }
+
+        /**
+         * @return Just the messages sent at or after a time
+         */
+        public History since(long time) {
+            int first = 0;
+            while( first < frames.length && IdGenerator.timestampOf(ids[first]) < time ) {
+                first++;
+            }
+            return from(first);
+        }
+
+        private History from(int first) {
+            byte[][] kept = new byte[frames.length - first][];
+            long[] keptIds = new long[kept.length];
+            int keptBytes = 0;
+            for( int i = first; i < frames.length; i++ ) {
+                kept[i - first] = frames[i];
+                keptIds[i - first] = ids[i];
+                keptBytes += frames[i].length;
+            }
+            return new History(kept, keptIds, keptBytes, complete);
+        }
+
+        /**
+         * Encodes the messages one frame after another, so that they can be written to a client
+         * all at once.
+         *
+         * @param format The format the client reads
+         * @return The encoded messages, or null if there are none
+         */
+        public byte[] encode(MessageCodec.Format format) throws IOException {
+            if( frames.length == 0 ) {
+                return null;
+            }
+
+            if( format == MessageCodec.Format.BINARY ) {
+                byte[] encoded = new byte[bytes];
+                int position = 0;
+                for( byte[] frame : frames ) {
+                    System.arraycopy(frame, 0, encoded, position, frame.length);
+                    position += frame.length;
+                }
+                return encoded;
+            }
+
+            // Other formats have to be encoded again from the messages
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(bytes);
+            try {
+                for( byte[] frame : frames ) {
+                    Message<?> message = MessageCodec.decode(frame, MessageCodec.HEADER_SIZE,
+                            frame.length - MessageCodec.HEADER_SIZE);
+                    encoded.write(MessageCodec.encodeFrame(message, format));
+                }
+            } catch( ClassNotFoundException cnfe ) {
+                throw new IOException(cnfe);
+            }
+            return encoded.toByteArray();
+        }
+    }
+
+    private final int maxMessages;
+    private final int maxBytes;
+
+    private final byte[][] frames;
+    private final long[] ids;
+    private int head;
+    private int count;
+    private int bytes;
+
+    // The user whose speech the newest message stands in for, or SERVER_ID
+    private int lastSpeaker;
+
+    /**
+     * @param maxMessages The most messages kept
+     * @param maxBytes The most bytes of encoded messages kept
+     */
+    public Scrollback(int maxMessages, int maxBytes) {
+        this.maxMessages = Math.max(0, maxMessages);
+        this.maxBytes = maxBytes;
+        this.frames = new byte[this.maxMessages][];
+        this.ids = new long[this.maxMessages];
+        this.lastSpeaker = Server.SERVER_ID;
+    }
+
+    /**
+     * Adds a message to the end of the scrollback. A message larger than the byte limit is not
+     * kept.
+     *
+     * @param frame The message encoded as a binary frame, which must not change once added
+     */
+    public synchronized void add(byte[] frame) {
+        if( frame.length > maxBytes || maxMessages == 0 ) {
+            return;
+        }
+
+        long id = idOf(frame);
+
+        while( count == maxMessages || bytes + frame.length > maxBytes ) {
+            bytes -= frames[head].length;
+            frames[head] = null;
+            head = (head + 1) % maxMessages;
+            count--;
+        }
+
+        frames[(head + count) % maxMessages] = frame;
+        ids[(head + count) % maxMessages] = id;
+        count++;
+        bytes += frame.length;
+        lastSpeaker = Server.SERVER_ID;
+    }
+
+    /**
+     * Adds a line standing in for a FILE or AUDIO message. Audio from the same speaker only adds
+     * a line when something else has been added since their last one.
+     *
+     * @param message The message being sent to the room
+     */
+    public <E extends Serializable> void addPlaceholder(Message<E> message) {
+        String line;
+        if( message.getContents() instanceof FileTransfer.Header ) {
+            FileTransfer.Header header = (FileTransfer.Header) message.getContents();
+            line = String.format("%s shared %s (%d bytes)", message.getSender(), header.fileName,
+                    header.size);
+        } else if( message.getContents() instanceof AudioStream.Frame ) {
+            synchronized( this ) {
+                if( lastSpeaker == message.getSenderId() ) {
+                    return;
+                }
+            }
+            line = String.format("%s spoke", message.getSender());
+        } else {
+            return;
+        }
+
+        Message<String> placeholder = new Message<>(message.getSender(), message.getDestination(),
+                line, MessageType.CHAT);
+        placeholder.setSenderId(message.getSenderId());
+        placeholder.setId(message.getId());
+
+        try {
+            byte[] frame = MessageCodec.encodeFrame(placeholder, MessageCodec.Format.BINARY);
+            synchronized( this ) {
+                add(frame);
+                if( message.getType() == MessageType.AUDIO ) {
+                    lastSpeaker = message.getSenderId();
+                }
+            }
+        } catch( IOException ioe ) {
+            ServerLog.error("Server -> Could not encode a placeholder for room %d: %s\n",
+                    message.getDestination(), ioe);
+        }
+    }
+
+    /**
+     * @return The number of messages kept
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return Every message kept
+     */
+    public History history() {
+        return historyAfter(0);
+    }
+
+    /**
+     * Takes out the messages kept after the one with the given id. If no message kept has that
+     * id, which happens once it has been pushed out, every message kept is taken and the history
+     * is not complete.
+     *
+     * @param lastId The id of the last message the client saw, or 0 if it saw none
+     * @return The messages after lastId
+     */
+    public synchronized History historyAfter(long lastId) {
+        // Searched from the newest, since a resuming client has usually only missed a few
+        int first = 0;
+        boolean found = lastId == 0;
+        for( int i = count - 1; !found && i >= 0; i-- ) {
+            if( ids[(head + i) % maxMessages] == lastId ) {
+                first = i + 1;
+                found = true;
+            }
+        }
+
+        byte[][] kept = new byte[count - first][];
+        long[] keptIds = new long[kept.length];
+        int keptBytes = 0;
+        for( int i = first; i < count; i++ ) {
+            kept[i - first] = frames[(head + i) % maxMessages];
+            keptIds[i - first] = ids[(head + i) % maxMessages];
+            keptBytes += kept[i - first].length;
+        }
+        return new History(kept, keptIds, keptBytes, found);
+    }
+
+    private static long idOf(byte[] frame) {
+        try {
+            return MessageCodec.idOf(frame, MessageCodec.HEADER_SIZE);
+        } catch( IOException ioe ) {
+            return 0;
+        }
+    }
+}
@@ -1,17 +1,27 @@
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 
+import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class Server {
 
-    private static final String SERVER_NAME = "Server";
+    static final String SERVER_NAME = "Server";
     // Server information
     private ServerSocket serverSocket;
     private int portNumber;
@@ -22,107 +32,1347 @@ public class Server {
     // The ID for the server
     public static final int SERVER_ID = -1;
 
-    // Clients and rooms on the server
-    private static int userIdCounter = 0;
+    private static final MessageCodec.Format[] FORMATS = MessageCodec.Format.values();
+
+    // The number of random bytes in a session token, and how often held sessions are checked
+    private static final int SESSION_TOKEN_BYTES = 16;
+    private static final long SESSION_CHECK_MILLIS = 1000;
+
+    // The most messages of a room's history sent to someone joining it
+    private static final int MAX_JOIN_HISTORY = 1000;
+
+    // Clients and rooms on the server. Ids are handed out in steps of the number of nodes in the
+    // cluster, offset by this node's index, so that no two nodes ever hand out the same id. The
+    // global room is always 0, so rooms are counted from 1.
+    private final IdCounter userIdCounter = new IdCounter(0);
+    private final IdCounter roomIdCounter = new IdCounter(1);
+    private int idStride = 1;
+    private int idOffset = 0;
+
+    // Hands out the ids of messages sent to rooms
+    private IdGenerator messageIds = new IdGenerator(0);
     private static int roomId = 0;
-    private Map<Integer, ClientHandler> clientConnections;
+    private Map<Integer, ClientConnection> clientConnections;
     private Map<Integer, Room> rooms;
-    private Map<MessageType, List<MessageHandler>> handlers;
-    private List<String> clientUsernames;
+    private MessageDispatcher handlers;
+    private UsernameIndex clientUsernames;
+
+    // Limits on how far behind a client may fall before the slow consumer policy applies
+    private int outboundQueueCapacity = 1024;
+    private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy =
+        OutboundQueue.SlowConsumerPolicy.DROP_BULK_FIRST;
+
+    // How the messages queued for a client are gathered into writes, and how well that works
+    private long flushLatencyMillis = 0;
+    private int maxWriteBatch = 64;
+    private final LongAdder messagesWritten = new LongAdder();
+    private final LongAdder writeCalls = new LongAdder();
+
+    // Files shared with rooms are spooled here when spooling is enabled, and relayed otherwise
+    private FileSpool fileSpool;
+
+    // Audio sent to rooms is mixed here when mixing is enabled, and relayed otherwise
+    private AudioMixer audioMixer;
+
+    // Chat sent to rooms is logged here when history is enabled
+    private MessageLog messageLog;
+
+    // How much of what was sent to a room is kept in memory for users who join it
+    private int scrollbackMessages = 50;
+    private int scrollbackBytes = 64 * 1024;
+
+    // Whether clients that ask for compressed messages are sent them
+    private volatile boolean compression;
+
+    // How fast each client, and everyone in a room together, may send messages. A null limit
+    // means there is no limit.
+    private volatile TokenBucket.Limit chatLimit;
+    private volatile TokenBucket.Limit commandLimit;
+    private volatile TokenBucket.Limit bulkLimit;
+    private volatile TokenBucket.Limit roomChatLimit;
+    private volatile TokenBucket.Limit roomBulkLimit;
+    private final LongAdder throttledMessages = new LongAdder();
+
+    // The other nodes that rooms are shared with, or null if this server runs alone
+    private Cluster cluster;
+
+    // The sessions clients can resume by token, and how long a session is held for once its
+    // connection drops. Sessions are only handed out while the grace period is above 0.
+    private final Map<String, Session> sessions;
+    private final SecureRandom sessionTokens;
+    private volatile long resumeGraceMillis;
+    private Thread sessionReaper;
+
+    public Server(int portNumber) {
+        this.portNumber = portNumber;
+        this.clientConnections = new ConcurrentHashMap<>();
+        this.rooms = new ConcurrentHashMap<>();
+        this.handlers = new MessageDispatcher("server-handler");
+        this.clientUsernames = new UsernameIndex();
+        this.sessions = new ConcurrentHashMap<>();
+        this.sessionTokens = new SecureRandom();
+
+        registerHandler(MessageType.LOGIN_INFORMATION, this::loginUser);
+        registerHandler(MessageType.CREATE_ROOM, this::createRoom);
+        registerHandler(MessageType.JOIN_ROOM, this::joinRoom);
+        registerHandler(MessageType.LEAVE_ROOM, this::leaveRoom);
+        // Listings walk every user or room, so they are kept off the thread reading the client
+        registerHandler(MessageType.LIST_USERS, this::listUsers, ExecutionPolicy.BY_SENDER);
+        registerHandler(MessageType.LIST_ROOMS, this::listRooms, ExecutionPolicy.BY_SENDER);
+        registerHandler(MessageType.FILE_RESUME, this::resumeFile);
+        registerHandler(MessageType.AUDIO_CODECS, this::setAudioCodecs);
+        registerHandler(MessageType.RESUME, this::resumeSession);
+
+        // Create the global chat room that all users can join
+        GLOBAL_ROOM_ID = 0;
+        Room globalRoom = new Room(GLOBAL_ROOM_ID, "Global Room", newScrollback());
+        this.rooms.put(GLOBAL_ROOM_ID, globalRoom);
+    }
+
+    /**
+     * This will register an implementation of the MessageHandler interface as being able to handle
+     * messages of a particular type. The handler is run inline on the thread that read the
+     * message.
+     *
+     * @param type The type of messages that this handler can work with
+     * @param listener Provides the handler function which will be called when a message of the
+     * specified type is received by the client.
+     */
+    public void registerHandler(MessageType type, MessageHandler listener) {
+        registerHandler(type, listener, ExecutionPolicy.INLINE);
+    }
+
+    /**
+     * This will register an implementation of the MessageHandler interface as being able to handle
+     * messages of a particular type.
+     *
+     * @param type The type of messages that this handler can work with
+     * @param listener Provides the handler function which will be called when a message of the
+     * specified type is received by the client.
+     * @param policy Which thread the handler is run on
+     */
+    public void registerHandler(MessageType type, MessageHandler listener,
+            ExecutionPolicy policy) {
+        this.handlers.register(type, listener, policy);
+    }
+
+    /**
+     * @return How every registered handler has performed so far
+     */
+    public List<MessageDispatcher.HandlerStats> getHandlerStats() {
+        return this.handlers.getStats();
+    }
+
+    /**
+     * Sets how many messages may be queued for a single client, and what happens to a client that
+     * falls that far behind. This applies to clients that connect after it has been called.
+     *
+     * @param capacity The maximum number of messages queued per client
+     * @param policy What to do when a message is sent to a client whose queue is full
+     */
+    public void setSlowConsumerPolicy(int capacity, OutboundQueue.SlowConsumerPolicy policy) {
+        this.outboundQueueCapacity = capacity;
+        this.slowConsumerPolicy = policy;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return this.outboundQueueCapacity;
+    }
+
+    public OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy() {
+        return this.slowConsumerPolicy;
+    }
+
+    /**
+     * Sets how the messages queued for a client are gathered into writes. A client's queue is
+     * written out in batches, each in as few writes to the socket as possible, so that a burst of
+     * messages does not cost a system call each.
+     *
+     * @param flushLatencyMillis How long a queued message may wait for others to be written with
+     * it. At 0 messages wait only for the rest of the work already in hand.
+     * @param maxBatch The most messages written together, which are written straight away once
+     * that many are queued
+     */
+    public void setWriteCoalescing(long flushLatencyMillis, int maxBatch) {
+        this.flushLatencyMillis = flushLatencyMillis;
+        this.maxWriteBatch = Math.max(1, maxBatch);
+    }
+
+    public long getFlushLatencyMillis() {
+        return this.flushLatencyMillis;
+    }
+
+    public int getMaxWriteBatch() {
+        return this.maxWriteBatch;
+    }
+
+    /**
+     * Counts messages written to a client. Every engine calls this as it writes.
+     *
+     * @param client The client that was written to
+     * @param messages The number of messages written
+     * @param writes The number of writes to the socket they took
+     */
+    void recordWrites(ClientConnection client, int messages, int writes) {
+        client.recordWrites(messages, writes);
+        messagesWritten.add(messages);
+        writeCalls.add(writes);
+    }
+
+    /**
+     * @return The number of messages written to clients for each write to a socket, across every
+     * client since the server started
+     */
+    public double getMessagesPerWrite() {
+        long writes = writeCalls.sum();
+        return writes == 0 ? 0 : (double) messagesWritten.sum() / writes;
+    }
+
+    /**
+     * Logs how well writes to clients are being batched, and how long handlers are taking, every
+     * so often.
+     *
+     * @param intervalMillis How often to log
+     */
+    public void logStats(long intervalMillis) {
+        Thread stats = new Thread(() -> {
+            while( true ) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch( InterruptedException ie ) {
+                    return;
+                }
+
+                ServerLog.info("Server -> %d messages written in %d writes, %.2f per write\n",
+                        messagesWritten.sum(), writeCalls.sum(), getMessagesPerWrite());
+                for( MessageDispatcher.HandlerStats handler : getHandlerStats() ) {
+                    ServerLog.info("Server -> Handler %s\n", handler);
+                }
+                if( messageLog != null ) {
+                    ServerLog.info("Server -> %d messages left out of the history\n",
+                            messageLog.getDroppedCount());
+                }
+                if( cluster != null ) {
+                    ServerLog.info("Server -> %d messages to other nodes dropped\n",
+                            cluster.getDroppedCount());
+                }
+                ServerLog.info("Server -> %d messages over a rate limit dropped\n",
+                        getThrottledCount());
+            }
+        }, "server-stats");
+        stats.setDaemon(true);
+        stats.start();
+    }
+
+    /**
+     * Makes the server spool files shared with a room to disk instead of relaying them. Receivers
+     * are only told about a spooled file, and fetch it from the server once they accept it.
+     *
+     * @param retentionMillis How long spooled files are kept for
+     */
+    public void setFileSpooling(long retentionMillis) {
+        this.fileSpool = new FileSpool(retentionMillis);
+    }
+
+    /**
+     * @return The spool for shared files, or null if files are relayed
+     */
+    public FileSpool getFileSpool() {
+        return this.fileSpool;
+    }
+
+    /**
+     * Makes the server keep the chat sent to each room on disk. The rooms kept before the server
+     * restarted are opened again, and their scrollback filled from what was kept, so this should
+     * be called after setScrollback and setCluster. In a cluster only the rooms this node owns
+     * are opened again, since only the owner keeps a room's history. The ids of users and rooms
+     * are kept alongside the history, so that they carry on from where they were and history is
+     * never mixed up with a new room's. This must be called before any clients are accepted or
+     * rooms created.
+     *
+     * @param directory Where the history is kept
+     */
+    public void setMessageHistory(Path directory) throws IOException {
+        this.messageLog = new MessageLog(directory);
+        this.userIdCounter.persistIn(directory.resolve("user-ids"));
+        this.roomIdCounter.persistIn(directory.resolve("room-ids"));
+        this.messageIds.persistIn(directory.resolve("message-ids"));
+        this.messageLog.start();
+
+        Scrollback scrollback = this.rooms.get(GLOBAL_ROOM_ID).getScrollback();
+        this.messageLog.replay(GLOBAL_ROOM_ID, scrollbackMessages, scrollback::add);
+
+        for( Map.Entry<Integer, String> logged : this.messageLog.loggedRooms().entrySet() ) {
+            int id = logged.getKey();
+            if( id == GLOBAL_ROOM_ID || (cluster != null && !cluster.owns(id)) ) {
+                continue;
+            }
+
+            Room room = new Room(id, logged.getValue(), newScrollback());
+            this.messageLog.replay(id, scrollbackMessages, room.getScrollback()::add);
+            this.rooms.put(id, room);
+            if( cluster != null ) {
+                cluster.roomOpened(room);
+            }
+            ServerLog.info("Server -> Opened room %s(%d) again from its history\n",
+                    room.getName(), id);
+        }
+    }
+
+    /**
+     * Sets how much of what was sent to each room is kept in memory and sent to users as they
+     * join it. This applies to the global room and to rooms created after it has been called.
+     *
+     * @param messages The most messages kept for a room, or 0 to keep none
+     * @param bytes The most bytes of messages kept for a room
+     */
+    public void setScrollback(int messages, int bytes) {
+        this.scrollbackMessages = messages;
+        this.scrollbackBytes = bytes;
+        this.rooms.get(GLOBAL_ROOM_ID).setScrollback(newScrollback());
+    }
+
+    private Scrollback newScrollback() {
+        return new Scrollback(scrollbackMessages, scrollbackBytes);
+    }
+
+    /**
+     * @return The history of the rooms, or null if none is kept
+     */
+    public MessageLog getMessageLog() {
+        return this.messageLog;
+    }
+
+    /**
+     * Makes the server mix the audio sent to each room into a single stream, rather than relaying
+     * every speaker's audio to every member.
+     */
+    public void setAudioMixing(boolean enabled) {
+        if( enabled && this.audioMixer == null ) {
+            this.audioMixer = new AudioMixer(this);
+            this.audioMixer.start();
+        }
+    }
+
+    /**
+     * Lets clients that ask for compression be sent compressed messages. A message sent to a room
+     * is compressed once, however many members there are. This applies to clients that connect
+     * after it has been called.
+     */
+    public void setCompression(boolean enabled) {
+        this.compression = enabled;
+    }
+
+    /**
+     * Sets how fast each client may send messages. Messages over a limit are dropped, and the
+     * client is sent an error the first time it goes over. This may be called at any time, and
+     * applies to every client straight away.
+     *
+     * @param chat The limit on chat messages, or null for none
+     * @param commands The limit on commands sent to the server, or null for none
+     * @param bulkBytes The limit on bytes of files and audio, or null for none
+     */
+    public void setClientRateLimits(TokenBucket.Limit chat, TokenBucket.Limit commands,
+            TokenBucket.Limit bulkBytes) {
+        this.chatLimit = chat;
+        this.commandLimit = commands;
+        this.bulkLimit = bulkBytes;
+        ServerLog.info("Server -> Each client may send chat at %s, commands at %s, bytes of "
+                + "files and audio at %s\n", describe(chat), describe(commands),
+                describe(bulkBytes));
+    }
+
+    /**
+     * Sets how fast the members of each room together may send messages to it, so that a room
+     * cannot be flooded by many clients that are each within their own limits. This may be called
+     * at any time, and applies to every room straight away.
+     *
+     * @param chat The limit on chat messages, or null for none
+     * @param bulkBytes The limit on bytes of files and audio, or null for none
+     */
+    public void setRoomRateLimits(TokenBucket.Limit chat, TokenBucket.Limit bulkBytes) {
+        this.roomChatLimit = chat;
+        this.roomBulkLimit = bulkBytes;
+        ServerLog.info("Server -> Each room may be sent chat at %s, bytes of files and audio "
+                + "at %s\n", describe(chat), describe(bulkBytes));
+    }
+
+    /**
+     * Takes tokens from a client's bucket and a room's bucket only if both hold enough, so a
+     * message refused by one does not use up the other. The client's bucket is only taken from by
+     * the thread reading that client, so checking it first and taking from it last cannot race;
+     * the room's bucket is shared, so it is checked and taken from in one step.
+     *
+     * @param room The room's bucket, or null if the message is not going to a room
+     */
+    private static boolean withinBothLimits(TokenBucket client, TokenBucket.Limit clientLimit,
+            TokenBucket room, TokenBucket.Limit roomLimit, long tokens, long now) {
+        if( !client.canTake(clientLimit, tokens, now) ) {
+            return false;
+        }
+        if( room != null && !room.tryTake(roomLimit, tokens, now) ) {
+            return false;
+        }
+        return client.tryTake(clientLimit, tokens, now);
+    }
+
+    private static String describe(TokenBucket.Limit limit) {
+        return limit == null ? "any rate" : limit.toString();
+    }
+
+    /**
+     * @return The number of messages dropped for going over a rate limit since the server started
+     */
+    public long getThrottledCount() {
+        return throttledMessages.sum();
+    }
+
+    /**
+     * Lets clients resume their sessions after their connections drop. A client is given a token
+     * when it logs in, and when its connection drops it stays in its rooms, without anyone being
+     * told it has left, until the grace period runs out. If it comes back with its token in time
+     * it is sent the messages it missed instead of having to log in and join its rooms again.
+     * This applies to clients that log in after it has been called.
+     *
+     * @param graceMillis How long a session is held for once its connection drops, or 0 to
+     * disconnect clients straight away
+     */
+    public void setSessionResume(long graceMillis) {
+        this.resumeGraceMillis = graceMillis;
+
+        synchronized( this.sessions ) {
+            if( graceMillis > 0 && this.sessionReaper == null ) {
+                this.sessionReaper = new Thread(this::expireSessions, "session-reaper");
+                this.sessionReaper.setDaemon(true);
+                this.sessionReaper.start();
+            }
+        }
+    }
+
+    public long getResumeGraceMillis() {
+        return this.resumeGraceMillis;
+    }
+
+    /**
+     * Makes this server one node of a cluster, sharing its rooms with the other nodes, without
+     * checking that links come from the other nodes.
+     */
+    public void setCluster(int nodeIndex, List<InetSocketAddress> nodes) throws IOException {
+        setCluster(nodeIndex, nodes, null);
+    }
+
+    /**
+     * Makes this server one node of a cluster, sharing its rooms with the other nodes. This must
+     * be called before any clients are accepted or rooms created. Only chat is shared, so files
+     * and audio are refused in rooms with members on other nodes.
+     *
+     * @param nodeIndex The position of this node in the list of nodes
+     * @param nodes The address every node listens for the other nodes on, in the same order on
+     * every node
+     * @param secret The secret every node shares, or null to take links from anyone
+     */
+    public void setCluster(int nodeIndex, List<InetSocketAddress> nodes, byte[] secret)
+            throws IOException {
+        this.idStride = nodes.size();
+        this.idOffset = nodeIndex;
+        this.messageIds = new IdGenerator(nodeIndex);
+        this.cluster = new Cluster(this, nodeIndex, nodes, secret);
+        this.cluster.start();
+    }
+
+    /**
+     * @return The cluster this server is a node of, or null if it runs alone
+     */
+    public Cluster getCluster() {
+        return this.cluster;
+    }
+
+    /**
+     * @return The room with the given id, or null if there is no such room
+     */
+    Room getRoom(int roomId) {
+        return this.rooms.get(roomId);
+    }
+
+    /**
+     * @return Every room known to this server, including those owned by other nodes
+     */
+    Collection<Room> getRooms() {
+        return this.rooms.values();
+    }
+
+    /**
+     * Will block listening for incoming clients, reading from each one on its own platform thread.
+     */
+    public void startAccepting() {
+        startAccepting(false);
+    }
+
+    /**
+     * Will block listening for incoming clients. Upon accepting a client, it will send the client
+     * a user id to confirm that they are logged into the server.
+     *
+     * Each client takes a reader and a writer thread. With platform threads that is two thread
+     * stacks per client: 10,000 idle clients on JDK 17 took 20,017 threads and about 1GB of
+     * resident memory, 740MB of it committed to threads, against 17 threads and 300MB for the
+     * same clients on NioServer. Neither thread holds a monitor while it blocks on the socket, so
+     * virtual threads are not pinned to their carriers.
+     *
+     * @param virtualThreads Whether each client should be read from on a virtual thread rather
+     * than a platform thread
+     */
+    public void startAccepting(boolean virtualThreads) {
+        // Bind the server socket
+        try {
+            this.serverSocket = new ServerSocket(portNumber);
+        } catch( IOException ioe ) {
+            System.err.printf("Error while attempting to open server on port %d\n", portNumber);
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+
+        if( virtualThreads && !ReaderThreads.virtualThreadsAvailable() ) {
+            System.err.println("Virtual threads are not available, using platform threads");
+        }
+
+        System.out.printf("Server -> The server is now listening on %s:%d\n",
+                this.serverSocket.getInetAddress().getHostName(), portNumber);
+
+        while ( true ) {
+            try {
+                // Wait until a new client has arrived
+                Socket newClient = serverSocket.accept();
+                newClient.setTcpNoDelay(true);
+
+                // Create a handler for that client
+                ClientHandler client = new ClientHandler(newClient);
+                ReaderThreads.start("client-" + client.userId, client, virtualThreads);
+                ReaderThreads.start("client-writer-" + client.userId, client.writer,
+                        virtualThreads);
+
+            } catch( IOException ioe ) {
+                System.err.printf("Error attempting to accept client on port %d\n", portNumber);
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Allocates the id for a newly accepted client.
+     */
+    int nextUserId() {
+        return userIdCounter.next() * idStride + idOffset;
+    }
+
+    /**
+     * Allocates the id for a newly created room. The global room is always 0.
+     */
+    private int nextRoomId() {
+        return roomIdCounter.next() * idStride + idOffset;
+    }
+
+    /**
+     * Adds a newly accepted client to the global client table and lets it know that it has
+     * connected successfully. Every engine must call this once per accepted client.
+     *
+     * @param client The connection for the new client
+     */
+    void addConnection(ClientConnection client) {
+        client.setCompressionAllowed(compression);
+        clientConnections.put(client.userId, client);
+
+        Message<Integer> connectionSuccess = new Message<>(SERVER_NAME, SERVER_ID, client.userId,
+                MessageType.CONNECTION_SUCCESS);
+        client.sendMessage(connectionSuccess);
+    }
+
+    /**
+     * Routes a message that has been read from a client, either to the handlers for server commands
+     * or to every member of the destination room.
+     *
+     * @param client The client that the message was read from
+     * @param messageRecieved The message that was read
+     * @param frameLength The length of the frame the message was read from
+     */
+    void routeMessage(ClientConnection client, Message<?> messageRecieved, int frameLength) {
+        if( !withinRateLimits(client, messageRecieved, frameLength) ) {
+            return;
+        }
+
+        // Handlers find the sender, and order its commands, by the sender id, so it is always the
+        // id of the connection the message came from whatever the client sent
+        messageRecieved.setSenderId(client.userId);
+
+        // Discover where the user is sending the message to
+        int destination = messageRecieved.getDestination();
+
+        if ( destination == SERVER_ID ) {
+            if( !notifyHandlers(messageRecieved) ) {
+                // Turned away rather than waited for, which would hold up every other client
+                // read by this thread
+                Message<String> busy = new Message<>(SERVER_NAME, GLOBAL_ROOM_ID,
+                        String.format("The server is too busy to handle %s, please try again",
+                            messageRecieved.getType()), MessageType.ERROR);
+                busy.setSenderId(SERVER_ID);
+                client.sendMessage(busy);
+            }
+        } else {
+            // Whatever id the client sent is replaced, so that ids can be trusted
+            messageRecieved.setId(messageIds.next());
+
+            Room destinationRoom = rooms.get(destination);
+            if( destinationRoom != null ) {
+                if( messageRecieved.getType() != MessageType.CHAT
+                        && isSharedWithOtherNodes(destinationRoom) ) {
+                    refuseInSharedRoom(client, messageRecieved, destinationRoom);
+                } else if( fileSpool != null
+                        && spoolFile(client, messageRecieved, destinationRoom) ) {
+                    // The file is being spooled rather than relayed
+                } else if( messageRecieved.getContents() instanceof FileTransfer.Chunk ) {
+                    relayChunk(client, messageRecieved, destinationRoom);
+                } else if( messageRecieved.getContents() instanceof AudioStream.Frame ) {
+                    AudioStream.Frame frame = (AudioStream.Frame) messageRecieved.getContents();
+                    if( !destinationRoom.hasAudio() ) {
+                        startAudio(destinationRoom);
+                    }
+                    // Added under the room's lock, so the line is in order with the room's chat
+                    destinationRoom.lock();
+                    try {
+                        destinationRoom.getScrollback().addPlaceholder(messageRecieved);
+                    } finally {
+                        destinationRoom.unlock();
+                    }
+                    if( audioMixer != null ) {
+                        audioMixer.offer(destinationRoom, client.userId, frame);
+                    } else {
+                        // Speakers never need their own audio back
+                        sendToUsers(messageRecieved, destinationRoom.getUsers(), client.userId,
+                                null);
+                    }
+                } else {
+                    sendMessageToRoom(messageRecieved, destinationRoom);
+                }
+            } else {
+                Message<String> errorMessage = new Message<>(SERVER_NAME, -1,
+                        String.format("%d is not a valid room id!",
+                                messageRecieved.getDestination()), MessageType.ERROR);
+
+                client.sendMessage(errorMessage);
+            }
+        }
+    }
+
+    /**
+     * @return Whether a room may have members on other nodes of the cluster, which only chat
+     * reaches
+     */
+    private boolean isSharedWithOtherNodes(Room room) {
+        return cluster != null
+            && (!cluster.owns(room.getId()) || cluster.hasSubscribers(room.getId()));
+    }
+
+    /**
+     * Drops a file or audio sent to a room with members on other nodes, telling the sender once
+     * for each file or stream rather than for every chunk or frame.
+     */
+    private void refuseInSharedRoom(ClientConnection client, Message<?> message, Room room) {
+        Object contents = message.getContents();
+        if( contents instanceof FileTransfer.Chunk || contents instanceof FileTransfer.End
+                || (contents instanceof AudioStream.Frame
+                    && ((AudioStream.Frame) contents).sequence != 0) ) {
+            return;
+        }
+
+        String what = contents instanceof AudioStream.Frame ? "Audio" : "Files";
+        Message<String> error = new Message<>(SERVER_NAME, room.getId(), String.format(
+                    "%s cannot be sent to %s, which has members on other servers", what,
+                    room.getName()), MessageType.ERROR);
+        error.setSenderId(SERVER_ID);
+        client.sendMessage(error);
+    }
+
+    /**
+     * Checks a message read from a client against the rate limits of the client, and of the room
+     * it is sent to. Chat and commands count one token per message, and files and audio one
+     * token per byte.
+     *
+     * @return false if the message is over a limit and should be dropped
+     */
+    private boolean withinRateLimits(ClientConnection client, Message<?> message,
+            int frameLength) {
+        long now = System.nanoTime();
+        MessageType type = message.getType();
+        int destination = message.getDestination();
+
+        boolean allowed;
+        if( destination == SERVER_ID ) {
+            allowed = client.commandBucket.tryTake(commandLimit, 1, now);
+        } else {
+            boolean bulk = type == MessageType.FILE || type == MessageType.FILE_CHUNK
+                || type == MessageType.FILE_END || type == MessageType.AUDIO;
+            Room room = rooms.get(destination);
+            if( bulk ) {
+                allowed = withinBothLimits(client.bulkBucket, bulkLimit,
+                        room == null ? null : room.getBulkBucket(), roomBulkLimit, frameLength,
+                        now);
+            } else {
+                allowed = withinBothLimits(client.chatBucket, chatLimit,
+                        room == null ? null : room.getChatBucket(), roomChatLimit, 1, now);
+            }
+        }
+
+        if( allowed ) {
+            if( client.throttled ) {
+                client.throttled = false;
+            }
+            return true;
+        }
+
+        throttledMessages.increment();
+
+        // Only the first message dropped in a row is answered, so the answers cannot be a flood
+        if( !client.throttled ) {
+            client.throttled = true;
+            ServerLog.warn("Server -> %s(%d) is sending too fast, dropping %s messages\n",
+                    client.clientName, client.userId, type);
+            Message<String> error = new Message<>(SERVER_NAME,
+                    destination == SERVER_ID ? GLOBAL_ROOM_ID : destination,
+                    "You are sending messages too quickly, some were dropped", MessageType.ERROR);
+            error.setSenderId(SERVER_ID);
+            client.sendMessage(error);
+        }
+
+        // The chunk's window is given back, so the sender does not stall waiting for it
+        if( message.getContents() instanceof FileTransfer.Chunk ) {
+            FileTransfer.Chunk chunk = (FileTransfer.Chunk) message.getContents();
+            FileTransfer.Control credit = new FileTransfer.Control(chunk.transferId,
+                    client.userId, chunk.offset);
+            client.sendMessage(new Message<>(SERVER_NAME, SERVER_ID, credit,
+                        MessageType.FILE_CREDIT));
+        }
+        return false;
+    }
+
+    /**
+     * Removes a client from the server and from every room that it was a member of.
+     *
+     * @param client The client that has disconnected
+     * @param sendMessage Whether or not the rooms the client was in should be notified
+     */
+    void disconnect(ClientConnection client, boolean sendMessage) {
+        if( clientConnections.remove(client.userId) == null ) {
+            // This client has already been disconnected
+            return;
+        }
+
+        if( !holdSession(client, sendMessage) ) {
+            leaveServer(client, sendMessage);
+        }
+    }
+
+    /**
+     * Removes a client that has disconnected from every room that it was a member of, and gives up
+     * its name.
+     */
+    private void leaveServer(ClientConnection client, boolean sendMessage) {
+        clientUsernames.release(client.clientName, client.userId);
+        if( ServerLog.isEnabled(ServerLog.Level.DEBUG) ) {
+            ServerLog.debug("Server -> %s(%d) was written %d messages in %d writes\n",
+                    client.clientName, client.userId, client.getMessagesWritten(),
+                    client.getWriteCalls());
+        }
+
+        // Only the rooms the client was actually in need to be visited
+        for( int roomId : client.getJoinedRooms() ) {
+            Room room = rooms.get(roomId);
+            if( room == null ) {
+                continue;
+            }
+            removeFromRoom(room, client);
+
+            if( sendMessage ) {
+                // Notify all rooms that the user was in that this user has disconnected
+                Message<String> disconnected = new Message<>(SERVER_NAME, room.getId(),
+                        String.format("%s has disconnected from %s", client.clientName,
+                            room.getName()), MessageType.CHAT);
+                disconnected.setSenderId(-1);
+
+                sendMessageToRoom(disconnected, room);
+            }
+
+            removeIfEmpty(room);
+        }
+    }
+
+    /**
+     * Adds a client to a room, recording the room against the client as well.
+     */
+    private void addToRoom(Room room, ClientConnection client) {
+        room.lock();
+        try {
+            room.addUser(client.userId, client.getAudioCodecs());
+            updateSubscription(room);
+        } finally {
+            room.unlock();
+        }
+        client.roomJoined(room.getId());
+        negotiateAudioCodec(room, client);
+    }
+
+    /**
+     * Removes a client from a room, removing the room from the client's rooms as well.
+     */
+    private void removeFromRoom(Room room, ClientConnection client) {
+        room.lock();
+        try {
+            room.removeUser(client.userId, client.getAudioCodecs());
+            updateSubscription(room);
+        } finally {
+            room.unlock();
+        }
+        client.roomLeft(room.getId());
+        negotiateAudioCodec(room, null);
+    }
+
+    /**
+     * Subscribes to a room owned by another node while this node has members of it. Must be
+     * called with the room locked.
+     */
+    private void updateSubscription(Room room) {
+        if( cluster != null ) {
+            cluster.membersChanged(room, room.getUserCount() > 0);
+        }
+    }
+
+    /**
+     * Chooses the audio codec for a room from the codecs that every member can decode, which the
+     * room counts as members join and leave. The whole room is told if the codec changes, and
+     * otherwise a member that has just joined is told what it is. Nothing is chosen for a room
+     * until someone sends audio to it, so rooms only used for chat cost nothing here.
+     *
+     * @param room The room whose members have changed
+     * @param joined The member that has just joined or changed its codecs, or null
+     */
+    private void negotiateAudioCodec(Room room, ClientConnection joined) {
+        if( !room.hasAudio() ) {
+            return;
+        }
+
+        AudioCodec chosen;
+        boolean changed;
+
+        room.lock();
+        try {
+            chosen = AudioCodecs.preferred(room.getCommonAudioCodecs());
+            changed = chosen != room.getAudioCodec();
+            room.setAudioCodec(chosen);
+        } finally {
+            room.unlock();
+        }
+
+        Message<Integer> codecMessage = new Message<>(SERVER_NAME, room.getId(),
+                (int) chosen.getId(), MessageType.AUDIO_CODEC);
+        if( changed ) {
+            ServerLog.info("Server -> Room %s now sends audio as %s\n", room.getName(),
+                    chosen.getName());
+            sendMessageToRoom(codecMessage, room);
+        } else if( joined != null ) {
+            joined.sendMessage(codecMessage);
+        }
+    }
+
+    /**
+     * Chooses the audio codec for a room the first time audio is sent to it, and tells every
+     * member what it is.
+     */
+    private void startAudio(Room room) {
+        AudioCodec chosen = null;
+
+        room.lock();
+        try {
+            if( !room.hasAudio() ) {
+                chosen = AudioCodecs.preferred(room.getCommonAudioCodecs());
+                room.setAudioCodec(chosen);
+                room.setHasAudio();
+            }
+        } finally {
+            room.unlock();
+        }
+
+        if( chosen != null ) {
+            ServerLog.info("Server -> Room %s now sends audio as %s\n", room.getName(),
+                    chosen.getName());
+            sendMessageToRoom(new Message<>(SERVER_NAME, room.getId(), (int) chosen.getId(),
+                        MessageType.AUDIO_CODEC), room);
+        }
+    }
+
+    /**
+     * Removes a room from the server if nobody is left in it. The global room is never removed,
+     * and in a cluster only the owner of a room removes it, once no other node has members of it
+     * either. The history of an empty room that is kept is closed until it is next used.
+     *
+     * @return true if the room was removed
+     */
+    private boolean removeIfEmpty(Room room) {
+        int id = room.getId();
+        if( room.getUserCount() != 0 ) {
+            return false;
+        }
+        if( id == GLOBAL_ROOM_ID || this.rooms.get(id) != room
+                || (cluster != null && !cluster.owns(id)) ) {
+            closeHistory(id);
+            return false;
+        }
+
+        // Checked and removed together, so that a node subscribing at the same time either keeps
+        // the room or opens it again
+        Room remaining = this.rooms.computeIfPresent(id, (key, current) ->
+                current == room && room.getUserCount() == 0
+                    && (cluster == null || !cluster.hasSubscribers(key)) ? null : current);
+        if( remaining != null ) {
+            closeHistory(id);
+            return false;
+        }
+
+        ServerLog.info("Server -> Room %s is empty, removing\n", room.getName());
+        if( messageLog != null ) {
+            messageLog.drop(id);
+        }
+        if( cluster != null ) {
+            cluster.roomClosed(id);
+        }
+        return true;
+    }
+
+    private void closeHistory(int roomId) {
+        if( messageLog != null ) {
+            messageLog.close(roomId);
+        }
+    }
+
+    public void joinGlobalRoom(int userId) {
+        ClientConnection client = this.clientConnections.get(userId);
+        if( client != null ) {
+            joinWithHistory(this.rooms.get(GLOBAL_ROOM_ID), client);
+        }
+    }
+
+    public <E extends Serializable> void sendMessageToRoom( Message<E> message, Room room ) {
+        if( room != null & message != null ) {
+            if( ServerLog.isEnabled(ServerLog.Level.DEBUG) ) {
+                ServerLog.debug("%s -> %s(%d) [type = %s]: %s\n", message.getSender(),
+                        room.getName(), room.getId(), message.getType(),
+                        ServerLog.payload(message.getContents()));
+            }
+
+            if( message.getId() == 0 ) {
+                message.setId(messageIds.next());
+            }
+
+            if( message.getType() != MessageType.CHAT ) {
+                room.lock();
+                try {
+                    room.getScrollback().addPlaceholder(message);
+                    int[] members = room.getUsers();
+                    room.deliver(() -> sendToUsers(message, members, SERVER_ID, null));
+                } finally {
+                    room.unlock();
+                }
+                return;
+            }
+
+            // The binary frame is kept in the scrollback as well as being sent
+            OutboundQueue.Frame binary;
+            try {
+                binary = OutboundQueue.Frame.encode(message, MessageCodec.Format.BINARY);
+            } catch( IOException ioe ) {
+                System.err.printf("Error while encoding message for room %d!\n", room.getId());
+                ioe.printStackTrace();
+                return;
+            }
+
+            // The owner puts the message in order with the rest of the room's and sends it back
+            if( cluster != null && !cluster.owns(room.getId()) ) {
+                cluster.publish(room.getId(), binary.bytes);
+                return;
+            }
+
+            deliverToRoom(message, room, binary, true);
+        }
+    }
+
+    /**
+     * Sends a chat message to the members of a room on this node and keeps it in the room's
+     * scrollback. The owner of the room also adds it to the history and sends it on to the other
+     * nodes with members of the room.
+     *
+     * @param binary The message encoded in the binary format
+     * @param owned Whether this node owns the room
+     */
+    private <E extends Serializable> void deliverToRoom(Message<E> message, Room room,
+            OutboundQueue.Frame binary, boolean owned) {
+        // Added to the scrollback together with taking the members it is sent to, so that someone
+        // joining gets each message either in the scrollback or live, never both or neither. The
+        // deliveries of a room run in order, so every member on every node, and the history, get
+        // the room's messages in the same order.
+        room.lock();
+        try {
+            room.getScrollback().add(binary.bytes);
+            int[] members = room.getUsers();
+            room.deliver(() -> {
+                if( owned && messageLog != null ) {
+                    messageLog.append(room, message);
+                }
+                if( owned && cluster != null ) {
+                    cluster.deliver(room.getId(), binary.bytes);
+                }
+                sendToUsers(message, members, SERVER_ID, null, binary);
+            });
+        } finally {
+            room.unlock();
+        }
+    }
+
+    /**
+     * Called by the cluster when another node tells this node about a room.
+     *
+     * @return true if the room was not known to this node before
+     */
+    boolean clusterRoomOpened(int roomId, String name) {
+        if( this.rooms.putIfAbsent(roomId, new Room(roomId, name, newScrollback())) == null ) {
+            ServerLog.info("Server -> Room %s(%d) opened on another node\n", name, roomId);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called by the cluster when the owner of a room has removed it. The room is kept while this
+     * node still has members of it, since they have subscribed to the owner again.
+     */
+    void clusterRoomClosed(int roomId) {
+        Room room = this.rooms.computeIfPresent(roomId, (id, current) ->
+                current.getUserCount() == 0 ? null : current);
+        if( room == null ) {
+            ServerLog.info("Server -> Room %d closed on another node\n", roomId);
+        }
+    }
+
+    /**
+     * Called by the cluster when another node no longer has members of a room this node owns.
+     */
+    void clusterRoomDeserted(int roomId) {
+        Room room = this.rooms.get(roomId);
+        if( room != null ) {
+            removeIfEmpty(room);
+        }
+    }
+
+    /**
+     * Called by the cluster when another node forwards a message sent to a room this node owns.
+     */
+    void clusterPublished(int roomId, byte[] frame) {
+        clusterReceived(roomId, frame, true);
+    }
+
+    /**
+     * Called by the cluster when the owner of a room sends on a message sent to it.
+     */
+    void clusterDelivered(int roomId, byte[] frame) {
+        clusterReceived(roomId, frame, false);
+    }
+
+    private void clusterReceived(int roomId, byte[] frame, boolean owned) {
+        Room room = this.rooms.get(roomId);
+        if( room == null ) {
+            // The room was removed while the message was on its way, such as when the last member
+            // leaving it is announced
+            if( ServerLog.isEnabled(ServerLog.Level.DEBUG) ) {
+                ServerLog.debug("Server -> Dropped a message from another node for room %d\n",
+                        roomId);
+            }
+            return;
+        }
+
+        // Other nodes only ever send chat, and are not trusted to send serialized objects
+        try {
+            Message<?> message = MessageCodec.decodeUntrusted(frame, MessageCodec.HEADER_SIZE,
+                    frame.length - MessageCodec.HEADER_SIZE);
+            if( message.getType() != MessageType.CHAT || message.getDestination() != roomId ) {
+                throw new IOException(String.format("Unexpected %s message for room %d",
+                            message.getType(), message.getDestination()));
+            }
+            deliverToRoom(message, room, new OutboundQueue.Frame(frame, false), owned);
+        } catch( IOException ioe ) {
+            ServerLog.error("Server -> Invalid message from another node for room %d: %s\n",
+                    roomId, ioe);
+        }
+    }
+
+    /**
+     * @return The names of the members of a room on this node
+     */
+    List<String> localUserNames(int roomId) {
+        Room room = this.rooms.get(roomId);
+        if( room == null ) {
+            return Collections.emptyList();
+        }
+
+        return Arrays.stream(room.getUsers())
+            .mapToObj( i -> clientConnections.get(i) )
+            .filter( ch -> ch != null )
+            .map( ch -> ch.clientName )
+            .collect(Collectors.toList());
+    }
 
-    public Server(int portNumber) {
-        this.portNumber = portNumber;
-        this.clientConnections = new HashMap<>();
-        this.rooms = new HashMap<>();
-        this.handlers = new HashMap<>();
-        this.clientUsernames = new ArrayList<>();
+    /**
+     * Adds a client to a room, first sending it the room's scrollback in a single frame.
+     */
+    private void joinWithHistory(Room room, ClientConnection client) {
+        joinWithHistory(room, client, 0, 0);
+    }
 
-        // Bind the server socket
+    /**
+     * Adds a client to a room, first sending it as much of the room's history as it asked for in
+     * a single frame. What the scrollback does not reach back to is read from the message log,
+     * if one is kept for the room.
+     *
+     * @param count The number of most recent messages to send, or 0
+     * @param since The time to send messages from, in milliseconds since the epoch, or 0
+     */
+    private void joinWithHistory(Room room, ClientConnection client, int count, long since) {
+        boolean logged = messageLog != null && (cluster == null || cluster.owns(room.getId()));
+
+        room.lock();
         try {
-            this.serverSocket = new ServerSocket(portNumber);
-        } catch( IOException ioe ) {
-            System.err.printf("Error while attempting to open server on port %d\n", portNumber);
-            ioe.printStackTrace();
-            System.exit(1);
+            Scrollback.History history = room.getScrollback().history();
+            if( count > 0 && history.size() >= count ) {
+                history = history.newest(count);
+            } else if( since > 0 && history.reachesBack(since) ) {
+                history = history.since(since);
+            } else if( (count > 0 || since > 0) && logged ) {
+                // Read once every message sent before the client joined has been appended to the
+                // log, which is done in the room's deliveries
+                room.deliver(() -> sendLoggedHistory(room, client, count, since));
+                history = null;
+            } else if( since > 0 ) {
+                history = history.since(since);
+            }
+
+            Scrollback.History kept = history;
+            if( kept != null && !kept.isEmpty() ) {
+                room.deliver(() -> sendHistory(room, client, kept));
+            }
+            room.addUser(client.userId, client.getAudioCodecs());
+            updateSubscription(room);
+        } finally {
+            room.unlock();
         }
+        client.roomJoined(room.getId());
+        negotiateAudioCodec(room, client);
+    }
 
-        registerHandler(MessageType.LOGIN_INFORMATION, this::loginUser);
-        registerHandler(MessageType.CREATE_ROOM, this::createRoom);
-        registerHandler(MessageType.JOIN_ROOM, this::joinRoom);
-        registerHandler(MessageType.LEAVE_ROOM, this::leaveRoom);
-        registerHandler(MessageType.LIST_USERS, this::listUsers);
-        registerHandler(MessageType.LIST_ROOMS, this::listRooms);
+    /**
+     * Sends messages taken from a room's scrollback to a client in a single frame, encoded in
+     * the client's format. Called from the room's deliveries, so the messages reach the client
+     * before any sent to the room after they were taken.
+     */
+    private void sendHistory(Room room, ClientConnection client, Scrollback.History history) {
+        OutboundQueue.Frame frame = historyFrame(room, client, history);
+        if( frame != null ) {
+            client.sendFrame(frame);
+        }
+    }
 
-        // Create the global chat room that all users can join
-        Room globalRoom = new Room("Global Room");
-        GLOBAL_ROOM_ID = globalRoom.getId();
-        this.rooms.put(GLOBAL_ROOM_ID, globalRoom);
+    /**
+     * Sends messages read back from the message log to a client, as sendHistory does. The log is
+     * read on its own thread, so a place is held for the messages in the client's queue, and
+     * anything else sent to the client waits behind it until they have been read.
+     */
+    private void sendLoggedHistory(Room room, ClientConnection client, int count, long since) {
+        OutboundQueue.Frame place = client.holdPlace();
+        Consumer<List<byte[]>> send = frames -> client.fillPlace(place,
+                historyFrame(room, client, Scrollback.History.of(frames)));
+
+        if( since > 0 ) {
+            messageLog.replaySinceLater(room.getId(), since, MAX_JOIN_HISTORY, send);
+        } else {
+            messageLog.replayLater(room.getId(), count, send);
+        }
     }
 
     /**
-     * This will register an implementation of the MessageHandler interface as being able to handle
-     * messages of a particular type.
+     * Encodes history for a client in the client's format.
      *
-     * @param type The type of messages that this handler can work with
-     * @param listener Provides the handler function which will be called when a message of the
-     * specified type is received by the client.
+     * @return The frame, or null if there is nothing to send
      */
-    public void registerHandler(MessageType type, MessageHandler listener) {
-        List<MessageHandler> typeHandlers = this.handlers.get(type);
-
-        if( typeHandlers == null ) {
-            typeHandlers = new ArrayList<>();
+    private OutboundQueue.Frame historyFrame(Room room, ClientConnection client,
+            Scrollback.History history) {
+        try {
+            byte[] encoded = history.encode(client.getFormat());
+            if( encoded != null ) {
+                return new OutboundQueue.Frame(encoded, false);
+            }
+        } catch( IOException ioe ) {
+            ServerLog.error("Server -> Could not send the scrollback of %s to %s: %s\n",
+                    room.getName(), client.clientName, ioe);
         }
+        return null;
+    }
 
-        typeHandlers.add(listener);
+    /**
+     * Sends a frame of audio mixed by the server to some of the members of a room.
+     */
+    void sendAudio(Room room, int[] userIds, AudioStream.Frame frame) {
+        Message<AudioStream.Frame> message = new Message<>(SERVER_NAME, room.getId(), frame,
+                MessageType.AUDIO);
+        message.setSenderId(SERVER_ID);
 
-        this.handlers.put(type, typeHandlers);
+        sendToUsers(message, userIds, SERVER_ID, null);
     }
 
     /**
-     * Will block listening for incoming clients. Upon accepting a client, it will send the client
-     * a user id to confirm that they are logged into the server.
+     * Sends a message to a group of users, encoding it once for each format in use.
+     *
+     * @param message The message to send
+     * @param userIds The users to send it to
+     * @param skipUserId A user in the group that should not be sent the message, or SERVER_ID
+     * @param completion Retained for every user the message is queued for, or null
      */
-    public void startAccepting() {
-        System.out.printf("Server -> The server is now listening on %s:%d\n",
-                this.serverSocket.getInetAddress().getHostName(), portNumber);
-
-        while ( true ) {
-            try {
-                // Wait until a new client has arrived
-                Socket newClient = serverSocket.accept();
+    private <E extends Serializable> void sendToUsers( Message<E> message, int[] userIds,
+            int skipUserId, OutboundQueue.Completion completion ) {
+        sendToUsers(message, userIds, skipUserId, completion, null);
+    }
 
-                // Create a handler for that client
-                ClientHandler client = new ClientHandler(newClient);
-                client.start();
+    /**
+     * Sends a message to a group of users, as above, reusing a binary frame that has already
+     * been encoded.
+     *
+     * @param binary The message encoded in the binary format without a completion, or null
+     */
+    private <E extends Serializable> void sendToUsers( Message<E> message, int[] userIds,
+            int skipUserId, OutboundQueue.Completion completion, OutboundQueue.Frame binary ) {
+        if( message.getId() == 0 ) {
+            message.setId(messageIds.next());
+        }
 
+        // Each format is only encoded once, no matter how many users there are
+        OutboundQueue.Frame[] encoded = new OutboundQueue.Frame[FORMATS.length];
+        encoded[MessageCodec.Format.BINARY.ordinal()] = binary;
+
+        for( int userId : userIds ) {
+            ClientConnection ch = this.clientConnections.get(userId);
+
+            if( ch != null && userId != skipUserId ) {
+                MessageCodec.Format format = ch.getFormat();
+                OutboundQueue.Frame frame = encoded[format.ordinal()];
+
+                if( frame == null ) {
+                    try {
+                        frame = OutboundQueue.Frame.encode(message, format, completion);
+                    } catch( IOException ioe ) {
+                        System.err.printf("Error while encoding message for room %d!\n",
+                                message.getDestination());
+                        ioe.printStackTrace();
+                        return;
+                    }
+                    encoded[format.ordinal()] = frame;
+                }
 
-            } catch( IOException ioe ) {
-                System.err.printf("Error attempting to accept client on port %d\n", portNumber);
-                ioe.printStackTrace();
+                if( completion != null ) {
+                    completion.retain();
+                }
+                ch.sendFrame(frame);
             }
         }
     }
 
-    public void joinGlobalRoom(int userId) {
-        this.rooms.get(GLOBAL_ROOM_ID).addUser(userId);
+    /**
+     * Relays a chunk of a file to a room, or to the single member of the room it is addressed to.
+     * The sender is not sent its own chunk. Once every recipient has been written the chunk (or
+     * has gone away), the sender is given back one chunk of window with a FILE_CREDIT, so the
+     * server never holds more than a window of any one file no matter how large it is.
+     *
+     * @param sender The client sending the file
+     * @param message The FILE_CHUNK message
+     * @param room The room the file is being sent to
+     */
+    private void relayChunk( ClientConnection sender, Message<?> message, Room room ) {
+        FileTransfer.Chunk chunk = (FileTransfer.Chunk) message.getContents();
+
+        FileTransfer.Control credit = new FileTransfer.Control(chunk.transferId, sender.userId,
+                chunk.offset);
+        Message<FileTransfer.Control> creditMessage = new Message<>(SERVER_NAME, SERVER_ID,
+                credit, MessageType.FILE_CREDIT);
+        OutboundQueue.Completion completion =
+            new OutboundQueue.Completion(() -> sender.sendMessage(creditMessage));
+
+        int[] recipients;
+        if( chunk.recipient == FileTransfer.ALL_RECIPIENTS ) {
+            recipients = room.getUsers();
+        } else if( room.hasUser(chunk.recipient) ) {
+            recipients = new int[] { chunk.recipient };
+        } else {
+            recipients = new int[0];
+        }
+
+        sendToUsers(message, recipients, sender.userId, completion);
+        completion.release();
     }
 
-    public <E extends Serializable> void sendMessageToRoom( Message<E> message, Room room ) {
-        if( room != null & message != null ) {
-            System.out.printf("%s -> %s(%d) [type = %s]: %s\n", message.getSender(),
-                    room.getName(), room.getId(), message.getType(), message.getContents());
+    /**
+     * Handles the messages that make up a file shared with a room when files are being spooled.
+     * The header starts a new spooled file and is announced to the room, chunks are written to the
+     * spool and credited straight away, and the end of the file is kept to be sent to each
+     * receiver after the file itself.
+     *
+     * @return false if the message is not part of a spooled file and should be routed as usual
+     */
+    private boolean spoolFile( ClientConnection sender, Message<?> message, Room room ) {
+        Object contents = message.getContents();
 
-            for( int userId : room.getUsers() ) {
-                ClientHandler ch = this.clientConnections.get(userId);
+        try {
+            if( contents instanceof FileTransfer.Header ) {
+                FileSpool.SpooledFile file = fileSpool.open(sender.clientName, sender.userId,
+                        room.getId(), (FileTransfer.Header) contents);
+                ServerLog.info("Server -> Spooling %s from %s(%d) for room %s\n",
+                        file.header.fileName, sender.clientName, sender.userId, room.getName());
+                sendToUsers(file.announcement(), room.getUsers(), sender.userId, null);
+                return true;
+            } else if( contents instanceof FileTransfer.Chunk ) {
+                FileTransfer.Chunk chunk = (FileTransfer.Chunk) contents;
+                FileSpool.SpooledFile file = fileSpool.get(sender.userId, chunk.transferId);
+                if( file == null || chunk.recipient != FileTransfer.ALL_RECIPIENTS ) {
+                    return false;
+                }
 
-                if( ch != null ) {
-                    ch.sendMessage(message);
-                } else {
-                    System.out.printf("Server -> No users in room %s", room.getName());
+                file.write(chunk);
+                FileTransfer.Control credit = new FileTransfer.Control(chunk.transferId,
+                        sender.userId, chunk.offset);
+                sender.sendMessage(new Message<>(SERVER_NAME, SERVER_ID, credit,
+                            MessageType.FILE_CREDIT));
+                return true;
+            } else if( contents instanceof FileTransfer.End ) {
+                FileTransfer.End end = (FileTransfer.End) contents;
+                FileSpool.SpooledFile file = fileSpool.get(sender.userId, end.transferId);
+                if( file == null || file.isComplete() ) {
+                    return false;
                 }
+
+                file.complete(end);
+                return true;
             }
+        } catch( IOException ioe ) {
+            ServerLog.error("Server -> Could not spool file from %s(%d): %s\n",
+                    sender.clientName, sender.userId, ioe);
+            Message<String> error = new Message<>(SERVER_NAME, room.getId(),
+                    "The server could not store your file", MessageType.ERROR);
+            sender.sendMessage(error);
+            return true;
         }
+
+        return false;
     }
 
     /**
@@ -130,25 +1380,26 @@ public class Server {
      * handle messages of a particular type.
      *
      * @param message The message that has been received by the client
+     * @return false if a handler was too far behind to take the message
      */
-    public <E extends Serializable> void notifyHandlers(Message<E> message) {
-        MessageType type = message.getType();
-
-        if( this.handlers.containsKey(type) ) {
-            List<MessageHandler> typeHandlers = this.handlers.get(type);
-            typeHandlers.stream().forEach(h -> h.recieveMessage(message));
-        } else {
-            System.err.printf("Received message with unhandled type: %s\n", type);
+    public <E extends Serializable> boolean notifyHandlers(Message<E> message) {
+        MessageDispatcher.Result result = this.handlers.dispatch(message);
+        if( result == MessageDispatcher.Result.UNHANDLED ) {
+            ServerLog.warn("Received message with unhandled type: %s\n", message.getType());
         }
+        return result != MessageDispatcher.Result.REJECTED;
     }
 
     private <E extends Serializable> void createRoom(Message<E> message) {
-        Room room = new Room((String)message.getContents());
-        room.addUser(message.getSenderId());
+        Room room = new Room(nextRoomId(), (String)message.getContents(), newScrollback());
+        ClientConnection ch = clientConnections.get(message.getSenderId());
         this.rooms.put(room.getId(), room);
+        if( cluster != null ) {
+            cluster.roomOpened(room);
+        }
+        addToRoom(room, ch);
         Message<String> response = new Message<>(SERVER_NAME, room.getId(), room.getName(), MessageType.JOIN_ROOM_SUCCESS);
-        ClientHandler ch = clientConnections.get(message.getSenderId());
-        System.out.printf("Server -> %s(%d) created room %s(%d)\n", message.getSender(), message.getSenderId(), message.getContents(), room.getId());
+        ServerLog.info("Server -> %s(%d) created room %s(%d)\n", message.getSender(), message.getSenderId(), message.getContents(), room.getId());
         ch.sendMessage(response);
     }
 
@@ -158,10 +1409,11 @@ public class Server {
             int roomId = Integer.parseInt((String) message.getContents());
             Room room = this.rooms.get(roomId);
 
-            String users = room.getUsers().stream()
-                .map( i -> clientConnections.get(i) )
-                .map( ch -> ch.clientName )
-                .collect(Collectors.joining(", "));
+            List<String> names = new ArrayList<>(localUserNames(room.getId()));
+            if( cluster != null ) {
+                names.addAll(cluster.remoteUserNames(roomId));
+            }
+            String users = String.join(", ", names);
 
             response = new Message<>(SERVER_NAME, roomId, users, MessageType.CHAT);
         } catch( Exception e ) {
@@ -169,7 +1421,11 @@ public class Server {
                     "/listusers does not take an argument!", MessageType.CHAT);
         }
 
-        this.clientConnections.get(message.getSenderId()).sendMessage(response);
+        // Listings are built off the reader, so the sender may have gone by now
+        ClientConnection sender = this.clientConnections.get(message.getSenderId());
+        if( sender != null ) {
+            sender.sendMessage(response);
+        }
     }
 
     private <E extends Serializable> void listRooms(Message<E> message) {
@@ -186,31 +1442,55 @@ public class Server {
                     "/listrooms does not take an argument!", MessageType.CHAT);
         }
 
-        this.clientConnections.get(message.getSenderId()).sendMessage(response);
+        // Listings are built off the reader, so the sender may have gone by now
+        ClientConnection sender = this.clientConnections.get(message.getSenderId());
+        if( sender != null ) {
+            sender.sendMessage(response);
+        }
     }
 
     private <E extends Serializable> void joinRoom(Message<E> message) {
-        Room roomToJoin;
-        Message<String> response;
+        Room roomToJoin = null;
+        Message<String> response = null;
 
         // Get the sender and contents
-        ClientHandler ch = clientConnections.get(message.getSenderId());
+        ClientConnection ch = clientConnections.get(message.getSenderId());
         E contents = message.getContents();
 
         // Find the room
         try {
-            // Get the room being joined
-            int roomId = Integer.parseInt( (String)contents );
+            // Get the room being joined, and how much of its history to send: the last few
+            // messages, those sent within some minutes, hours or days, or by default whatever the
+            // scrollback holds
+            String[] arguments = ((String) contents).trim().split("\\s+");
+            int roomId = Integer.parseInt(arguments[0]);
+            int count = 0;
+            long since = 0;
+            if( arguments.length > 1 ) {
+                String wanted = arguments[1];
+                long unit = historyUnitMillis(wanted.charAt(wanted.length() - 1));
+                if( unit == 0 ) {
+                    count = Math.min(Integer.parseInt(wanted), MAX_JOIN_HISTORY);
+                } else {
+                    long amount = Long.parseLong(wanted.substring(0, wanted.length() - 1));
+                    since = Math.max(1, System.currentTimeMillis() - amount * unit);
+                }
+                if( count < 0 || (unit != 0 && since <= 0) ) {
+                    throw new IllegalArgumentException(wanted);
+                }
+            }
             roomToJoin = this.rooms.get(roomId);
 
             if( roomToJoin != null ) {
+                // Send the confirmation to the user, which has to arrive before the room's history
+                ch.sendMessage(new Message<>(SERVER_NAME, roomId, roomToJoin.getName(), MessageType.JOIN_ROOM_SUCCESS));
+
                 // Add the user
-                roomToJoin.addUser(message.getSenderId());
+                joinWithHistory(roomToJoin, ch, count, since);
                 this.rooms.put(roomId, roomToJoin);
-
-                // Send the confirmation to the user
-                response = new Message<>(SERVER_NAME, roomId, roomToJoin.getName(), MessageType.JOIN_ROOM_SUCCESS);
-                System.out.printf("Server -> %s(%d) joined room %s(%d)\n", message.getSender(), message.getSenderId(), roomToJoin.getName(), roomId);
+                if( ServerLog.isEnabled(ServerLog.Level.INFO) ) {
+                    ServerLog.info("Server -> %s(%d) joined room %s(%d)\n", message.getSender(), message.getSenderId(), roomToJoin.getName(), roomId);
+                }
 
                 // Notify everyone of the new client
                 String joined = String.format("%s has joined the room %s!", ch.clientName, roomToJoin.getName());
@@ -226,30 +1506,50 @@ public class Server {
             }
         } catch( Exception e ) {
             // Handle invalid input from user
-            response = new Message<>(SERVER_NAME, roomId, "Must send a valid room id!\n",
-                    MessageType.JOIN_ROOM_FAILURE);
+            response = new Message<>(SERVER_NAME, roomId, "Must send a valid room id, "
+                    + "optionally followed by a number of messages or a time such as 30m, 2h or "
+                    + "1d!\n", MessageType.JOIN_ROOM_FAILURE);
         }
 
-        // Send the response
-        ch.sendMessage(response);
+        // Send the failure, if there was one
+        if( response != null ) {
+            ch.sendMessage(response);
+        }
 
+        if( roomToJoin != null ) {
+            announceSpooledFiles(ch, roomToJoin);
+        }
 
+    }
 
+    /**
+     * @return The milliseconds in a unit of time asked for when joining a room, or 0 if the unit
+     * is not one
+     */
+    private static long historyUnitMillis(char unit) {
+        switch( unit ) {
+            case 'm':
+                return 60 * 1000L;
+            case 'h':
+                return 60 * 60 * 1000L;
+            case 'd':
+                return 24 * 60 * 60 * 1000L;
+            default:
+                return 0;
+        }
     }
 
     private <E extends Serializable> void leaveRoom(Message<E> message) {
         try {
             Room room = this.rooms.get(Integer.parseInt(message.getContents().toString()));
-            int senderId = message.getSenderId();
-            room.removeUser(senderId);
+            ClientConnection client = clientConnections.get(message.getSenderId());
+            removeFromRoom(room, client);
             Message<Integer> leaveRoomMessage = new Message<>(SERVER_NAME, SERVER_ID, room.getId(), MessageType.LEAVE_ROOM_SUCCESS);
-            ClientHandler client = clientConnections.get(message.getSenderId());
             client.sendMessage(leaveRoomMessage);
-            System.out.printf("Server -> %s(%d) has left room %s(%d)\n", message.getSender(), message.getSenderId(), room.getName(), room.getId());
-            if (room.getUsers().size() == 0) {
-                rooms.remove(room.getId());
-                System.out.printf("Server -> Room %s is empty, removing\n", room.getName());
-            } else {
+            if( ServerLog.isEnabled(ServerLog.Level.INFO) ) {
+                ServerLog.info("Server -> %s(%d) has left room %s(%d)\n", message.getSender(), message.getSenderId(), room.getName(), room.getId());
+            }
+            if (!removeIfEmpty(room)) {
                 Message<String> disconnected = new Message<>(SERVER_NAME, room.getId(),
                         String.format("%s has disconnected from %s", client.clientName,
                                 room.getName()), MessageType.CHAT);
@@ -260,72 +1560,425 @@ public class Server {
             String errorMessage = String.format("Improperly formatted leaveroom command 'leaveroom %s'", message.getContents());
             Message<String> leaveRoomMessage = new Message<>(SERVER_NAME, SERVER_ID, errorMessage, MessageType.LEAVE_ROOM_FAILURE);
             clientConnections.get(message.getSenderId()).sendMessage(leaveRoomMessage);
-            System.out.printf("Server -> Improperly formatted message of type %s from %s\n", message.getType(), clientConnections.get(message.getSenderId()).getName());
+            ServerLog.warn("Server -> Improperly formatted message of type %s from %s\n", message.getType(), clientConnections.get(message.getSenderId()).clientName);
+        }
+    }
+
+    /**
+     * Passes a receiver's request for the rest of a file on to the client sending the file.
+     */
+    private <E extends Serializable> void resumeFile(Message<E> message) {
+        if( message.getContents() instanceof FileTransfer.Control ) {
+            FileTransfer.Control resume = (FileTransfer.Control) message.getContents();
+
+            // Spooled files are sent by the server, so the owner does not have to be around
+            FileSpool.SpooledFile spooled = fileSpool == null ? null
+                : fileSpool.get(resume.ownerId, resume.transferId);
+            if( spooled != null ) {
+                ClientConnection receiver = this.clientConnections.get(message.getSenderId());
+                if( receiver != null && !spooled.deliver(receiver, resume.offset) ) {
+                    Message<String> error = new Message<>(SERVER_NAME, spooled.roomId,
+                            String.format("%s is no longer available", spooled.header.fileName),
+                            MessageType.ERROR);
+                    receiver.sendMessage(error);
+                }
+                return;
+            }
+
+            ClientConnection owner = this.clientConnections.get(resume.ownerId);
+            if( owner != null ) {
+                owner.sendMessage(message);
+            }
+        }
+    }
+
+    private <E extends Serializable> void setAudioCodecs(Message<E> message) {
+        ClientConnection client = this.clientConnections.get(message.getSenderId());
+
+        if( client != null && message.getContents() instanceof Integer ) {
+            // Only the client's own reader changes its codecs, which is also what joins it to
+            // rooms, so what the rooms counted for it is what it had before
+            int before = client.getAudioCodecs();
+            client.setAudioCodecs((Integer) message.getContents());
+            int after = client.getAudioCodecs();
+
+            for( int roomId : client.getJoinedRooms() ) {
+                Room room = this.rooms.get(roomId);
+                if( room != null ) {
+                    room.lock();
+                    try {
+                        room.changeAudioCodecs(client.userId, before, after);
+                    } finally {
+                        room.unlock();
+                    }
+                    negotiateAudioCodec(room, client);
+                }
+            }
         }
     }
 
     private <E extends Serializable> void loginUser(Message<E> message) {
-        ClientHandler ch = this.clientConnections.get(message.getSenderId());
-        ch.validate(message);
+        ClientConnection ch = this.clientConnections.get(message.getSenderId());
+        validate(ch, message);
+    }
+
+    private <E extends Serializable> void validate(ClientConnection client, Message<E> connectionInfo) {
+        String clientName = (String)connectionInfo.getContents();
+
+        // Create message indicating either success or failure of validation
+        Message<?> loginResponse;
+        if ( clientName == null || clientName.trim().isEmpty()
+                || !clientUsernames.reserve(clientName, client.userId) ) {
+            String errorString = "Username already exists\nPlease try again";
+            loginResponse = new Message<>(SERVER_NAME, SERVER_ID, errorString,
+                    MessageType.LOGIN_FAILURE);
+            loginResponse.setSenderId(SERVER_ID);
+        } else {
+            // A client logging in again gives up the name it had before
+            if( client.clientName != null && !client.clientName.equalsIgnoreCase(clientName) ) {
+                clientUsernames.release(client.clientName, client.userId);
+            }
+
+            client.clientName = clientName;
+            loginResponse = new Message<>(SERVER_NAME, GLOBAL_ROOM_ID, client.userId,
+                    MessageType.LOGIN_SUCCESS);
+            loginResponse.setSenderId(SERVER_ID);
+            joinServer(client);
+        }
+
+        // Send the response created above
+        client.sendMessage(loginResponse);
+
+        if( loginResponse.getType() == MessageType.LOGIN_SUCCESS && resumeGraceMillis > 0
+                && client.sessionToken == null ) {
+            startSession(client);
+        }
+    }
+
+    /**
+     * Gives a client that has logged in a token it can resume its session with.
+     */
+    private void startSession(ClientConnection client) {
+        byte[] random = new byte[SESSION_TOKEN_BYTES];
+        sessionTokens.nextBytes(random);
+        StringBuilder token = new StringBuilder(random.length * 2);
+        for( byte b : random ) {
+            token.append(String.format("%02x", b));
+        }
+
+        client.sessionToken = token.toString();
+        sessions.put(client.sessionToken, new Session(client));
+
+        Message<String> session = new Message<>(SERVER_NAME, SERVER_ID, client.sessionToken,
+                MessageType.SESSION);
+        session.setSenderId(SERVER_ID);
+        client.sendMessage(session);
+    }
+
+    /**
+     * Holds on to the session of a client whose connection has dropped, leaving it in its rooms
+     * until it resumes the session or the grace period runs out.
+     *
+     * @return false if the client has no session to hold
+     */
+    private boolean holdSession(ClientConnection client, boolean sendMessage) {
+        Session session = client.sessionToken == null ? null : sessions.get(client.sessionToken);
+        if( session == null ) {
+            return false;
+        }
+
+        synchronized( session ) {
+            if( session.connection != client ) {
+                // The session has already been resumed on another connection
+                return true;
+            }
+            session.droppedAt = System.currentTimeMillis();
+            session.announce = sendMessage;
+        }
+
+        if( ServerLog.isEnabled(ServerLog.Level.INFO) ) {
+            ServerLog.info("Server -> %s(%d) lost its connection, holding its session\n",
+                    client.clientName, client.userId);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the clients whose sessions have been held for longer than the grace period from the
+     * server, every so often.
+     */
+    private void expireSessions() {
+        while( true ) {
+            try {
+                Thread.sleep(SESSION_CHECK_MILLIS);
+            } catch( InterruptedException ie ) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for( Session session : sessions.values() ) {
+                ClientConnection expired = null;
+                boolean announce = false;
+                synchronized( session ) {
+                    if( session.droppedAt != 0 && now - session.droppedAt >= resumeGraceMillis ) {
+                        expired = session.connection;
+                        announce = session.announce;
+                        session.connection = null;
+                    }
+                }
+
+                if( expired != null ) {
+                    sessions.remove(expired.sessionToken, session);
+                    if( ServerLog.isEnabled(ServerLog.Level.INFO) ) {
+                        ServerLog.info("Server -> The session of %s(%d) has expired\n",
+                                expired.clientName, expired.userId);
+                    }
+                    leaveServer(expired, announce);
+                }
+            }
+        }
+    }
+
+    /**
+     * Carries on a session on the new connection of a client whose connection dropped. The new
+     * connection takes over the name and rooms of the old one, and in each room is sent the
+     * messages the client missed before it starts being sent new ones.
+     */
+    private <E extends Serializable> void resumeSession(Message<E> message) {
+        ClientConnection client = this.clientConnections.get(message.getSenderId());
+        if( client == null ) {
+            return;
+        }
+
+        ClientConnection previous = null;
+        SessionResume resume = message.getContents() instanceof SessionResume
+            ? (SessionResume) message.getContents() : null;
+        Session session = resume == null || resume.token == null || client.clientName != null
+            ? null : sessions.get(resume.token);
+        if( session != null ) {
+            synchronized( session ) {
+                if( session.connection != null && clientUsernames.transfer(
+                            session.connection.clientName, session.connection.userId,
+                            client.userId) ) {
+                    previous = session.connection;
+                    session.connection = client;
+                    session.droppedAt = 0;
+                }
+            }
+        }
+
+        if( previous == null ) {
+            Message<String> failure = new Message<>(SERVER_NAME, SERVER_ID,
+                    "Your session has expired, please log in again", MessageType.RESUME_FAILURE);
+            failure.setSenderId(SERVER_ID);
+            client.sendMessage(failure);
+            return;
+        }
+
+        // The old connection may not have been seen to drop yet
+        if( clientConnections.remove(previous.userId, previous) ) {
+            previous.close();
+        }
+
+        client.clientName = previous.clientName;
+        client.sessionToken = resume.token;
+        client.setAudioCodecs(previous.getAudioCodecs());
+
+        // The rooms where the last message the client saw is no longer kept
+        int[] joinedRooms = previous.getJoinedRooms();
+        int[] incomplete = new int[joinedRooms.length];
+        int incompleteCount = 0;
+
+        for( int roomId : joinedRooms ) {
+            previous.roomLeft(roomId);
+            Room room = this.rooms.get(roomId);
+            if( room == null ) {
+                continue;
+            }
+
+            // Swapped while the room is locked, so every message is sent either in what was
+            // missed or live, never both or neither
+            room.lock();
+            try {
+                Scrollback.History missed = room.getScrollback().historyAfter(
+                        resume.lastMessageId(roomId));
+                if( !missed.isEmpty() ) {
+                    room.deliver(() -> sendHistory(room, client, missed));
+                }
+                if( !missed.complete ) {
+                    incomplete[incompleteCount++] = roomId;
+                }
+                room.removeUser(previous.userId, previous.getAudioCodecs());
+                room.addUser(client.userId, client.getAudioCodecs());
+            } finally {
+                room.unlock();
+            }
+            client.roomJoined(roomId);
+            negotiateAudioCodec(room, client);
+        }
+
+        SessionResume.Resumed resumed = new SessionResume.Resumed(client.clientName,
+                Arrays.copyOf(incomplete, incompleteCount));
+        Message<SessionResume.Resumed> success = new Message<>(SERVER_NAME, SERVER_ID, resumed,
+                MessageType.RESUME_SUCCESS);
+        success.setSenderId(SERVER_ID);
+        client.sendMessage(success);
+
+        if( ServerLog.isEnabled(ServerLog.Level.INFO) ) {
+            ServerLog.info("Server -> %s resumed its session as %d, was %d\n", client.clientName,
+                    client.userId, previous.userId);
+        }
+    }
+
+    private void joinServer(ClientConnection client) {
+        // Add the client to the global room
+        joinGlobalRoom(client.userId);
+
+        // Notify everyone of the new client
+        String joined = String.format("%s has joined the server!", client.clientName);
+        Message<String> joinedMessage = new Message<>(SERVER_NAME, GLOBAL_ROOM_ID, joined,
+                MessageType.CHAT);
+        joinedMessage.setSenderId(-1);
+
+        Room globalRoom = rooms.get(GLOBAL_ROOM_ID);
+        sendMessageToRoom(joinedMessage, globalRoom);
+        announceSpooledFiles(client, globalRoom);
+    }
+
+    /**
+     * Tells a new member of a room about the files that were shared with it before they joined and
+     * are still on the spool.
+     */
+    private void announceSpooledFiles(ClientConnection client, Room room) {
+        if( fileSpool != null ) {
+            for( FileSpool.SpooledFile file : fileSpool.filesForRoom(room.getId()) ) {
+                client.sendMessage(file.announcement());
+            }
+        }
+    }
+
+    /**
+     * A client's session, which outlives its connection for the grace period so that the client
+     * can resume it
+     */
+    private static final class Session {
+        // The connection the session is on, or null once the session has expired
+        private ClientConnection connection;
+
+        // When the connection dropped, or 0 while it is connected
+        private long droppedAt;
+
+        // Whether the client's rooms are told it has left if the session expires
+        private boolean announce;
+
+        Session(ClientConnection connection) {
+            this.connection = connection;
+        }
     }
 
-    private class ClientHandler extends Thread {
-        // Client information
-        public final int userId;
-        public String clientName;
+    /**
+     * Handles a single client on its own thread, blocking while waiting for messages to arrive.
+     * Messages to the client are written by a separate writer thread that drains its queue.
+     */
+    private class ClientHandler extends ClientConnection implements Runnable {
+        // How long the writer waits for a message before checking if the client has closed
+        private static final long WRITER_POLL_MILLIS = 1000;
 
         // Socket and stream
         private Socket clientSocket;
-        private ObjectInputStream readFromClient;
-        private ObjectOutputStream writeToClient;
+        private DataInputStream readFromClient;
+        private DataOutputStream writeToClient;
+
+        // Where regions of spooled files are written. A blocking socket's channel cannot be
+        // written while the reader is blocked on it, so this goes through the stream instead and
+        // only the non-blocking engine copies files to the socket without them leaving the kernel.
+        private WritableByteChannel fileRegionChannel;
+
+        // Drains the outbound queue to the client
+        public final Runnable writer = this::writeFrames;
 
         public ClientHandler(Socket clientSocket) {
-            this.userId = userIdCounter++;
+            super(nextUserId(), outboundQueueCapacity, slowConsumerPolicy);
             this.clientSocket = clientSocket;
 
-            // Add the client to the global client table
-            clientConnections.put(userId, this);
-
-            // Open the inputstream on the client
+            // Open the streams on the client
             try {
-                this.readFromClient = new ObjectInputStream(clientSocket.getInputStream());
-                this.writeToClient = new ObjectOutputStream(clientSocket.getOutputStream());
+                this.readFromClient = new DataInputStream(
+                        new BufferedInputStream(clientSocket.getInputStream()));
+                this.writeToClient = new DataOutputStream(
+                        new BufferedOutputStream(clientSocket.getOutputStream()));
+                this.fileRegionChannel = Channels.newChannel(writeToClient);
             } catch( IOException ioe ) {
                 System.err.printf("Error while opening streams for client!\n");
                 ioe.printStackTrace();
             }
-            Message<Integer> connectionSuccess = new Message<>(SERVER_NAME, SERVER_ID, userId, MessageType.CONNECTION_SUCCESS);
-            sendMessage(connectionSuccess);
-        }
 
-        public void disconnect(boolean sendMessage) {
-            for(Iterator<Room> iter = rooms.values().iterator(); iter.hasNext(); ) {
-                Room room = iter.next();
-                room.removeUser(this.userId);
+            // Add the client to the global client table
+            addConnection(this);
+        }
 
-                if( sendMessage ) {
-                    // Notify all rooms that the user was in that this user has disconnected
-                    Message<String> disconnected = new Message<>(SERVER_NAME, room.getId(),
-                            String.format("%s has disconnected from %s", this.clientName,
-                                room.getName()), MessageType.CHAT);
-                    disconnected.setSenderId(-1);
+        protected void framesQueued() {
+            // The writer is woken by the queue itself
+        }
 
-                    sendMessageToRoom(disconnected, room);
-                    clientUsernames.remove(this.clientName);
-                }
+        protected void slowConsumer() {
+            // Closing the socket makes the reader fail, which disconnects the client
+            close();
+        }
 
-                if ( room.getUsers().size() == 0 && room.getId() != GLOBAL_ROOM_ID ) {
-                    iter.remove();
-                    System.out.printf("Server -> Room %s is empty, removing\n", room.getName());
-                }
+        public void close() {
+            closed = true;
+            try {
+                this.clientSocket.close();
+            } catch( IOException ioe ) {
+                // The socket is being discarded anyway
             }
+            outbound.clear();
         }
 
-        public <E extends Serializable> void sendMessage(Message<E> messageToSend) {
+        /**
+         * Writes queued frames to the client, only flushing once the queue has been emptied, the
+         * flush latency has passed, or a whole batch has been written, so that a burst of messages
+         * goes out together.
+         */
+        private void writeFrames() {
+            OutboundQueue.Frame frame = null;
             try {
-                this.writeToClient.writeObject(messageToSend);
-            } catch( IOException ioe ) {
-                disconnect(false);
+                while( !closed ) {
+                    frame = outbound.poll(WRITER_POLL_MILLIS);
+                    if( frame == null ) {
+                        continue;
+                    }
+
+                    long flushAt = System.currentTimeMillis() + flushLatencyMillis;
+                    int batched = 0;
+                    do {
+                        this.writeToClient.write(frame.bytes);
+                        if( frame.file != null ) {
+                            frame.writeFileRegion(fileRegionChannel);
+                        }
+                        frame.done();
+                        frame = null;
+
+                        if( ++batched >= maxWriteBatch ) {
+                            break;
+                        }
+
+                        frame = outbound.poll();
+                        long wait = flushAt - System.currentTimeMillis();
+                        if( frame == null && wait > 0 ) {
+                            frame = outbound.poll(wait);
+                        }
+                    } while( frame != null );
+
+                    this.writeToClient.flush();
+                    Server.this.recordWrites(this, batched, 1);
+                }
+            } catch( IOException | InterruptedException e ) {
+                if( frame != null ) {
+                    frame.done();
+                }
+                close();
             }
         }
 
@@ -334,27 +1987,14 @@ public class Server {
             // Block until we recieve a message
             while( true ) {
                 try {
-                    // Discover where the user is sending the message to
-                    Message<?> messageRecieved = (Message<?>)this.readFromClient.readObject();
-                    MessageType type = messageRecieved.getType();
-                    int destination = messageRecieved.getDestination();
+                    byte[] frame = MessageCodec.readFrame(this.readFromClient);
+                    frameReceived(frame, 0);
 
-                    if ( destination == SERVER_ID ) {
-                        notifyHandlers(messageRecieved);
-                    } else {
-                        Room destinationRoom = rooms.get(destination);
-                        if( destinationRoom != null ) {
-                            sendMessageToRoom(messageRecieved, destinationRoom);
-                        } else {
-                            Message<String> errorMessage = new Message<>(SERVER_NAME, -1,
-                                    String.format("%d is not a valid room id!",
-                                            messageRecieved.getDestination()), MessageType.ERROR);
-
-                            writeToClient.writeObject(errorMessage);
-                        }
-                    }
+                    Message<?> messageRecieved = MessageCodec.decode(frame, 0, frame.length);
+                    routeMessage(this, messageRecieved, frame.length);
                 } catch( IOException ioe ) {
-                    disconnect(true);
+                    disconnect(this, true);
+                    close();
                     break;
                 } catch( ClassNotFoundException cnfe ) {
                     System.err.printf("Invalid message class recieved over socket!\n");
@@ -362,44 +2002,6 @@ public class Server {
                 }
             }
         }
-
-        private <E extends Serializable> void validate(Message<E> connectionInfo) {
-            String clientName = (String)connectionInfo.getContents();
-
-            // Create message indicating either success or failure of validation
-            Message<?> loginResponse;
-            if ( clientUsernames.contains(clientName) ) {
-                String errorString = "Username already exists\nPlease try again";
-                loginResponse = new Message<>(SERVER_NAME, SERVER_ID, errorString,
-                        MessageType.LOGIN_FAILURE);
-                loginResponse.setSenderId(SERVER_ID);
-            } else {
-                this.clientName = clientName;
-                loginResponse = new Message<>(SERVER_NAME, GLOBAL_ROOM_ID, userId,
-                        MessageType.LOGIN_SUCCESS);
-                loginResponse.setSenderId(SERVER_ID);
-                joinServer();
-            }
-
-            // Send the response created above
-            sendMessage(loginResponse);
-        }
-
-        private void joinServer() {
-            clientUsernames.add(clientName);
-            // Add the client to the global room
-            joinGlobalRoom(userId);
-
-            // Notify everyone of the new client
-            String joined = String.format("%s has joined the server!", clientName);
-            Message<String> joinedMessage = new Message<>(SERVER_NAME, GLOBAL_ROOM_ID, joined,
-                    MessageType.CHAT);
-            joinedMessage.setSenderId(-1);
-
-            Room globalRoom = rooms.get(GLOBAL_ROOM_ID);
-            sendMessageToRoom(joinedMessage, globalRoom);
-        }
-
     }
 
 }
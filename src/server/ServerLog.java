@@ -0,0 +1,189 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous log for the server. Logging a line only fills in one of a fixed set of
+ * preallocated events with the format string and its arguments; formatting and writing happen on a
+ * background thread. Threads that are sending messages therefore never format strings or contend
+ * for the lock on standard out. If the background thread falls so far behind that every event is
+ * in use, new lines are dropped rather than making the caller wait.
+ *
+ * Lines below the current level are discarded before anything is recorded, but the caller has
+ * already built the array of arguments and boxed any primitives by then. Lines logged for every
+ * message or connection are therefore guarded with isEnabled(). Message contents can be kept out
+ * of the log entirely with setLogPayloads(false).
+ */
+public final class ServerLog {
+
+    /**
+     * The levels that lines can be logged at, from most to least verbose
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    // The number of events in the ring, which must be a power of two
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    // How long the writer sleeps when there is nothing to log
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private static final String REDACTED = "<redacted>";
+
+    private static final Event[] events = new Event[CAPACITY];
+    private static final AtomicLong nextClaim = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile long nextWrite = 0;
+
+    private static volatile Level level = Level.INFO;
+    private static volatile boolean logPayloads = true;
+    private static final PrintStream out = System.out;
+
+    static {
+        for( int i = 0; i < CAPACITY; i++ ) {
+            events[i] = new Event();
+        }
+
+        Thread writer = new Thread(ServerLog::writeEvents, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * A preallocated log line. The sequence is written last, which publishes the event to the
+     * writer.
+     */
+    private static final class Event {
+        volatile long sequence = -1;
+        Level level;
+        String format;
+        Object[] args;
+    }
+
+    private ServerLog() { }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets whether message contents may appear in the log. When they may not, contents passed
+     * through payload() are replaced with a placeholder.
+     */
+    public static void setLogPayloads(boolean enabled) {
+        logPayloads = enabled;
+    }
+
+    /**
+     * Wraps the contents of a message so that it is only logged if payload logging is enabled.
+     *
+     * @param contents The contents of a message
+     * @return The contents, or a placeholder if payloads are not being logged
+     */
+    public static Object payload(Object contents) {
+        return logPayloads ? contents : REDACTED;
+    }
+
+    public static boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) >= 0 && lineLevel != Level.OFF;
+    }
+
+    /**
+     * @return The number of lines dropped because the writer fell behind
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    /**
+     * Records a line to be formatted with String.format and written by the background thread.
+     */
+    public static void log(Level lineLevel, String format, Object... args) {
+        if( !isEnabled(lineLevel) ) {
+            return;
+        }
+
+        // Claim the next event, unless every event is still waiting to be written
+        long claim;
+        do {
+            claim = nextClaim.get();
+            if( claim - nextWrite >= CAPACITY ) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while( !nextClaim.compareAndSet(claim, claim + 1) );
+
+        Event event = events[(int) (claim & MASK)];
+        event.level = lineLevel;
+        event.format = format;
+        event.args = args;
+        event.sequence = claim;
+    }
+
+    private static void writeEvents() {
+        long reportedDrops = 0;
+
+        while( true ) {
+            Event event = events[(int) (nextWrite & MASK)];
+
+            if( event.sequence != nextWrite ) {
+                out.flush();
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+
+            write(event);
+            event.format = null;
+            event.args = null;
+            nextWrite++;
+
+            long drops = dropped.get();
+            if( drops != reportedDrops ) {
+                out.printf("Server -> %d log lines dropped\n", drops - reportedDrops);
+                reportedDrops = drops;
+            }
+        }
+    }
+
+    private static void write(Event event) {
+        Object[] args = event.args;
+        for( int i = 0; args != null && i < args.length; i++ ) {
+            if( args[i] instanceof byte[] ) {
+                args[i] = String.format("<%d bytes>", ((byte[]) args[i]).length);
+            }
+        }
+
+        try {
+            PrintStream stream = event.level.compareTo(Level.WARN) >= 0 ? System.err : out;
+            stream.print(String.format(event.format, args));
+        } catch( RuntimeException re ) {
+            out.printf("Server -> Could not format log line '%s'\n", event.format);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast something may be used, such as how many messages a client may send a second. A
+ * bucket holds up to a burst of tokens and is refilled at a steady rate, and each use takes tokens
+ * out of it; a use that would take more tokens than the bucket holds is refused.
+ *
+ * Rather than counting tokens, the bucket keeps the time at which it will next be full, which is
+ * pushed further into the future by each use. That single value is updated with a compare and
+ * set, so checking a bucket takes no locks, allocates nothing, and needs no thread to refill it.
+ *
+ * The limit is passed in on each use rather than kept in the bucket, so limits can be changed at
+ * any time and apply to every bucket straight away.
+ */
+public final class TokenBucket {
+
+    /**
+     * A rate and burst that buckets are held to. Limits never change once created.
+     */
+    public static final class Limit {
+        public final double perSecond;
+        public final double burst;
+
+        // How long the bucket takes to refill one token, and to refill completely
+        private final double nanosPerToken;
+        private final long burstNanos;
+
+        /**
+         * @param perSecond The tokens added to a bucket each second
+         * @param burst The most tokens a bucket holds, which is how many may be used at once
+         */
+        public Limit(double perSecond, double burst) {
+            if( perSecond <= 0 || burst <= 0 ) {
+                throw new IllegalArgumentException("Limits must be above 0");
+            }
+
+            this.perSecond = perSecond;
+            this.burst = burst;
+            this.nanosPerToken = 1e9 / perSecond;
+            this.burstNanos = (long) (burst * nanosPerToken);
+        }
+
+        public String toString() {
+            return String.format("%.0f/s (burst %.0f)", perSecond, burst);
+        }
+    }
+
+    // The time at which the bucket will be full again, on the System.nanoTime clock
+    private final AtomicLong fullAt;
+
+    public TokenBucket() {
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes tokens from the bucket if it holds enough. A bucket that is full always lets a use
+     * through, however many tokens it takes, so that a single use larger than the burst is slowed
+     * down rather than refused forever.
+     *
+     * @param limit The limit the bucket is held to, or null for no limit
+     * @param tokens The number of tokens to take
+     * @param now The current System.nanoTime
+     * @return false if the bucket does not hold enough tokens, in which case none are taken
+     */
+    public boolean tryTake(Limit limit, long tokens, long now) {
+        if( limit == null ) {
+            return true;
+        }
+
+        long cost = (long) (tokens * limit.nanosPerToken);
+        while( true ) {
+            long current = fullAt.get();
+            if( !allows(limit, current, cost, now) ) {
+                return false;
+            }
+
+            long start = current - now > 0 ? current : now;
+            if( fullAt.compareAndSet(current, start + cost) ) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the bucket holds enough tokens without taking any. The answer only holds
+     * until another thread takes tokens, so this is for buckets that a single thread takes from,
+     * checked before a shared bucket is taken from so that a refusal by the shared bucket does not
+     * cost the single thread anything.
+     *
+     * @param limit The limit the bucket is held to, or null for no limit
+     * @param tokens The number of tokens that would be taken
+     * @param now The current System.nanoTime
+     * @return Whether tryTake would succeed
+     */
+    public boolean canTake(Limit limit, long tokens, long now) {
+        return limit == null
+            || allows(limit, fullAt.get(), (long) (tokens * limit.nanosPerToken), now);
+    }
+
+    private static boolean allows(Limit limit, long current, long cost, long now) {
+        return current - now <= 0 || current + cost - now <= limit.burstNanos;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks which usernames are in use on the server. Names are compared without regard to case, so
+ * "Alice" and "alice" cannot both be logged in. Reserving and releasing a name are single atomic
+ * operations on a hash map, so two clients logging in with the same name at the same moment can
+ * never both succeed.
+ */
+public class UsernameIndex {
+
+    // Maps the lower case form of each name to the id of the user holding it
+    private final ConcurrentHashMap<String, Integer> owners;
+
+    public UsernameIndex() {
+        this.owners = new ConcurrentHashMap<>();
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Attempts to reserve a username for a user.
+     *
+     * @param username The name being requested
+     * @param userId The user requesting it
+     * @return true if the name is now held by the user, false if someone else holds it
+     */
+    public boolean reserve(String username, int userId) {
+        Integer owner = owners.putIfAbsent(key(username), userId);
+        return owner == null || owner == userId;
+    }
+
+    /**
+     * Releases a username, but only if it is held by the given user. This means a late release
+     * from a stale connection can never free a name that has since been taken by someone else.
+     *
+     * @param username The name being released
+     * @param userId The user that held it
+     */
+    public void release(String username, int userId) {
+        if( username != null ) {
+            owners.remove(key(username), userId);
+        }
+    }
+
+    /**
+     * Hands a username from one user to another, but only if the first user still holds it.
+     *
+     * @param username The name being handed over
+     * @param fromUserId The user that holds it
+     * @param toUserId The user that will hold it
+     * @return true if the name is now held by toUserId
+     */
+    public boolean transfer(String username, int fromUserId, int toUserId) {
+        return owners.replace(key(username), fromUserId, toUserId);
+    }
+
+    /**
+     * @param username The name to look up, in any case
+     * @return The id of the user holding the name, or null if it is free
+     */
+    public Integer lookup(String username) {
+        return owners.get(key(username));
+    }
+
+    public int size() {
+        return owners.size();
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Runs a node that keeps history in a cluster of two, playing the other node by hand over a link
+ * of its own. The other node subscribes to a room the real node owns, sends it some chat, and then
+ * its link drops. Nobody is left in the room on either node, but the room's history must still be
+ * there, since a link dropping says nothing about whether the room is still wanted.
+ */
+public class ClusterLinkTest {
+
+    // The operations on a link, as Cluster numbers them
+    private static final byte HELLO = 0;
+    private static final byte SUBSCRIBE = 3;
+    private static final byte PUBLISH = 5;
+    private static final byte CHALLENGE = 9;
+
+    private static final byte[] SECRET = "cluster-link-test".getBytes(StandardCharsets.UTF_8);
+    private static final int MESSAGES = 3;
+
+    public static void main(String[] args) throws Exception {
+        ServerLog.setLevel(ServerLog.Level.ERROR);
+        Path history = Files.createTempDirectory("cluster-link-test");
+
+        // The other node never listens, so the real node's link to it just keeps retrying
+        int ownPort = freePort();
+        List<InetSocketAddress> nodes = Arrays.asList(new InetSocketAddress("localhost", ownPort),
+                new InetSocketAddress("localhost", freePort()));
+        Server server = new Server(0);
+        server.setCluster(0, nodes, SECRET);
+        server.setMessageHistory(history);
+
+        int roomId = 1;
+        while( !server.getCluster().owns(roomId) ) {
+            roomId++;
+        }
+
+        try( Socket link = new Socket("localhost", ownPort) ) {
+            DataInputStream in = new DataInputStream(link.getInputStream());
+            DataOutputStream out = new DataOutputStream(link.getOutputStream());
+
+            byte[] challenge = MessageCodec.readFrame(in);
+            check(challenge[0] == CHALLENGE, "The link did not start with a challenge");
+            byte[] nonce = Arrays.copyOfRange(challenge, 5, challenge.length);
+            write(out, HELLO, 1, proof(nonce, 1, 0));
+
+            write(out, SUBSCRIBE, roomId, "linked".getBytes(StandardCharsets.UTF_8));
+            for( int i = 0; i < MESSAGES; i++ ) {
+                Message<String> chat = new Message<>("remote", roomId, "message " + i,
+                        MessageType.CHAT);
+                chat.setSenderId(1);
+                chat.setId(i + 1);
+                write(out, PUBLISH, roomId,
+                        MessageCodec.encodeFrame(chat, MessageCodec.Format.BINARY));
+            }
+            out.flush();
+
+            check(logged(server, roomId) == MESSAGES, "The room's messages were not logged");
+        }
+
+        // Give the node time to notice the link has gone
+        Thread.sleep(500);
+
+        check(server.getRoom(roomId) != null, "The room was removed when the link dropped");
+        check(logged(server, roomId) == MESSAGES, "The room's history was lost when the link "
+                + "dropped");
+        check(new MessageLog(history).loggedRooms().containsKey(roomId),
+                "The room's history is not on disk");
+
+        System.out.printf("ClusterLinkTest passed: %d messages kept after the link dropped\n",
+                MESSAGES);
+        System.exit(0);
+    }
+
+    /**
+     * @return The number of messages in a room's history, waiting a while for them to be written
+     */
+    private static int logged(Server server, int roomId) throws InterruptedException {
+        int count = 0;
+        for( int attempt = 0; attempt < 50 && count < MESSAGES; attempt++ ) {
+            List<byte[]> frames = new ArrayList<>();
+            server.getMessageLog().replay(roomId, MESSAGES * 2, frames::add);
+            count = frames.size();
+            if( count < MESSAGES ) {
+                Thread.sleep(20);
+            }
+        }
+        return count;
+    }
+
+    private static byte[] proof(byte[] nonce, int from, int to) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+        return mac.doFinal(ByteBuffer.allocate(nonce.length + 8)
+                .put(nonce).putInt(from).putInt(to).array());
+    }
+
+    private static void write(DataOutputStream out, byte op, int roomId, byte[] body)
+            throws Exception {
+        out.writeInt(5 + body.length);
+        out.writeByte(op);
+        out.writeInt(roomId);
+        out.write(body);
+    }
+
+    private static int freePort() throws Exception {
+        try( ServerSocket socket = new ServerSocket(0) ) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void check(boolean condition, String failure) {
+        if( !condition ) {
+            System.err.println("ClusterLinkTest failed: " + failure);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Joins, leaves and sends to a single room from many threads at once, then checks that nothing
+ * was lost along the way. The members the room ends up with must be exactly the clients that last
+ * joined it, and every member must have been sent each of the room's messages exactly once and in
+ * the room's order, whether in the history it was sent on joining or live.
+ *
+ * The room's order is taken from the client that created it, which never leaves. Each time a
+ * client joins, it is sent the scrollback as one frame holding several messages, while live
+ * messages come one to a frame, so the messages a client is sent can be split up by when it
+ * joined. Each run of messages from one join to the next has to be an unbroken stretch of the
+ * room's order.
+ */
+public class RoomStressTest {
+
+    private static final int SENDERS = 4;
+    private static final int MESSAGES_PER_SENDER = 2000;
+    private static final int CHURNERS = 8;
+    private static final int JOINS_PER_CHURNER = 300;
+
+    /**
+     * A client that is not connected to anything, which decodes and keeps every message queued
+     * for it, noting the messages that arrived together in one frame.
+     */
+    private static final class RecordingConnection extends ClientConnection {
+        // The ids of the chat messages sent to the room, and the index into them of each frame
+        // that held more than one message
+        final List<Long> received = new ArrayList<>();
+        final List<Integer> histories = new ArrayList<>();
+        final List<String> texts = new ArrayList<>();
+        volatile int roomId = -1;
+        int joinsSeen;
+
+        RecordingConnection(int userId) {
+            super(userId, Integer.MAX_VALUE, OutboundQueue.SlowConsumerPolicy.DISCONNECT);
+            frameReceived(new byte[] { MessageCodec.BINARY_VERSION }, 0);
+        }
+
+        protected synchronized void framesQueued() {
+            OutboundQueue.Frame frame;
+            while( (frame = outbound.poll()) != null ) {
+                record(frame.bytes);
+                frame.done();
+            }
+        }
+
+        private void record(byte[] bytes) {
+            List<Message<?>> messages = new ArrayList<>();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                while( buffer.hasRemaining() ) {
+                    int start = buffer.position();
+                    int length = buffer.getInt(start);
+                    messages.add(MessageCodec.decode(bytes, start + MessageCodec.HEADER_SIZE,
+                                length));
+                    buffer.position(start + MessageCodec.HEADER_SIZE + length);
+                }
+            } catch( Exception e ) {
+                throw new IllegalStateException(e);
+            }
+
+            int before = received.size();
+            for( Message<?> message : messages ) {
+                if( message.getType() == MessageType.JOIN_ROOM_SUCCESS && roomId < 0 ) {
+                    roomId = message.getDestination();
+                } else if( message.getType() == MessageType.CHAT
+                        && message.getDestination() == roomId ) {
+                    received.add(message.getId());
+                    texts.add(String.valueOf(message.getContents()));
+                }
+            }
+            if( messages.size() > 1 && received.size() > before ) {
+                histories.add(before);
+            }
+        }
+
+        protected void slowConsumer() {
+            throw new IllegalStateException("The queue has no limit");
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        Server server = new Server(0);
+
+        RecordingConnection creator = connect(server, "creator");
+        send(server, creator, Message.SERVER_ID, "stress", MessageType.CREATE_ROOM);
+        int roomId = creator.roomId;
+        check(roomId > 0, "The room was not created");
+
+        // Joining is only told apart from live messages if there are at least two to send
+        send(server, creator, roomId, "first", MessageType.CHAT);
+        send(server, creator, roomId, "second", MessageType.CHAT);
+
+        RecordingConnection[] senders = new RecordingConnection[SENDERS];
+        for( int i = 0; i < SENDERS; i++ ) {
+            senders[i] = connect(server, "sender" + i);
+            senders[i].roomId = roomId;
+            send(server, senders[i], Message.SERVER_ID, String.valueOf(roomId),
+                    MessageType.JOIN_ROOM);
+        }
+
+        RecordingConnection[] churners = new RecordingConnection[CHURNERS];
+        for( int i = 0; i < CHURNERS; i++ ) {
+            churners[i] = connect(server, "churner" + i);
+            churners[i].roomId = roomId;
+        }
+
+        // Everyone starts at once, so that joins, leaves and messages overlap as much as possible
+        CyclicBarrier start = new CyclicBarrier(SENDERS + CHURNERS);
+        List<Thread> threads = new ArrayList<>();
+        for( RecordingConnection sender : senders ) {
+            threads.add(new Thread(() -> {
+                await(start);
+                for( int n = 0; n < MESSAGES_PER_SENDER; n++ ) {
+                    send(server, sender, roomId, sender.clientName + ":" + n, MessageType.CHAT);
+                }
+            }));
+        }
+        for( int i = 0; i < CHURNERS; i++ ) {
+            RecordingConnection churner = churners[i];
+            boolean stays = i % 2 == 0;
+            threads.add(new Thread(() -> {
+                await(start);
+                for( int n = 0; n < JOINS_PER_CHURNER; n++ ) {
+                    send(server, churner, Message.SERVER_ID, String.valueOf(roomId),
+                            MessageType.JOIN_ROOM);
+                    if( n < JOINS_PER_CHURNER - 1 || !stays ) {
+                        send(server, churner, Message.SERVER_ID, String.valueOf(roomId),
+                                MessageType.LEAVE_ROOM);
+                    }
+                }
+            }));
+        }
+        for( Thread thread : threads ) {
+            thread.start();
+        }
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+
+        // Whoever sent last has run every delivery before returning, so all is quiet now
+        Room room = server.getRoom(roomId);
+        List<Integer> expected = new ArrayList<>();
+        expected.add(creator.userId);
+        for( RecordingConnection sender : senders ) {
+            expected.add(sender.userId);
+        }
+        for( int i = 0; i < CHURNERS; i += 2 ) {
+            expected.add(churners[i].userId);
+        }
+        int[] members = room.getUsers();
+        int[] wanted = expected.stream().mapToInt(Integer::intValue).sorted().toArray();
+        check(Arrays.equals(members, wanted), "The room has members " + Arrays.toString(members)
+                + " rather than " + Arrays.toString(wanted));
+        for( int i = 0; i < CHURNERS; i++ ) {
+            boolean joined = Arrays.stream(churners[i].getJoinedRooms()).anyMatch(r -> r == roomId);
+            check(joined == (i % 2 == 0), churners[i].clientName + " has the wrong rooms");
+        }
+
+        // The creator was there throughout, so it was sent everything in the room's order
+        List<Long> order = creator.received;
+        Map<Long, Integer> position = new HashMap<>();
+        for( int i = 0; i < order.size(); i++ ) {
+            check(position.put(order.get(i), i) == null,
+                    "The creator was sent message " + order.get(i) + " twice");
+        }
+        int sent = 0;
+        for( String text : creator.texts ) {
+            if( text.matches("sender[0-9]+:[0-9]+") ) {
+                sent++;
+            }
+        }
+        check(sent == SENDERS * MESSAGES_PER_SENDER, "The room was sent " + sent + " of "
+                + SENDERS * MESSAGES_PER_SENDER + " messages");
+
+        int periods = 0;
+        for( RecordingConnection client : senders ) {
+            periods += checkContiguous(client, position, true);
+        }
+        for( int i = 0; i < CHURNERS; i++ ) {
+            periods += checkContiguous(churners[i], position, i % 2 == 0);
+        }
+
+        System.out.printf("RoomStressTest passed: %d messages to the room, %d joins checked\n",
+                order.size(), periods);
+        System.exit(0);
+    }
+
+    /**
+     * Checks that each run of messages a client was sent from one join to the next is an unbroken
+     * stretch of the room's order, and that a client still in the room was sent its last message.
+     *
+     * @return The number of runs checked
+     */
+    private static int checkContiguous(RecordingConnection client, Map<Long, Integer> position,
+            boolean member) {
+        List<Integer> starts = new ArrayList<>(client.histories);
+        starts.add(client.received.size());
+        check(client.histories.size() > 0 && client.histories.get(0) == 0,
+                client.clientName + " was not sent the history when it first joined");
+
+        for( int run = 0; run + 1 < starts.size(); run++ ) {
+            for( int i = starts.get(run); i < starts.get(run + 1); i++ ) {
+                Integer at = position.get(client.received.get(i));
+                check(at != null, client.clientName + " was sent a message the room never had");
+                if( i > starts.get(run) ) {
+                    int previous = position.get(client.received.get(i - 1));
+                    check(at == previous + 1, client.clientName + " was sent message " + at
+                            + " after " + previous + " in join " + run);
+                }
+            }
+        }
+
+        if( member ) {
+            long last = client.received.get(client.received.size() - 1);
+            check(position.get(last) == position.size() - 1,
+                    client.clientName + " missed the last messages");
+        }
+        return client.histories.size();
+    }
+
+    private static RecordingConnection connect(Server server, String name) {
+        RecordingConnection client = new RecordingConnection(server.nextUserId());
+        server.addConnection(client);
+        send(server, client, Message.SERVER_ID, name, MessageType.LOGIN_INFORMATION);
+        return client;
+    }
+
+    private static <E extends Serializable> void send(Server server, RecordingConnection client,
+            int destination, E contents, MessageType type) {
+        Message<E> message = new Message<>(client.clientName, destination, contents, type);
+        message.setSenderId(client.userId);
+        server.routeMessage(client, message, 0);
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch( Exception e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void check(boolean condition, String failure) {
+        if( !condition ) {
+            System.err.println("RoomStressTest failed: " + failure);
+            System.exit(1);
+        }
+    }
+}